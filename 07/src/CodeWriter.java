@@ -1,14 +1,24 @@
 import java.io.*;
 
 public class CodeWriter {
-    private PrintWriter out;
+    private AsmBuffer out;
     // Used to generate unique labels for comparison commands.
     private int labelCounter = 0;
     // Holds the current file name (for static variables).
     private String fileName;
 
+    // Fixed sequences, encoded once.
+    private static final byte[] ADD = AsmBuffer.encode("@SP", "AM=M-1", "D=M", "A=A-1", "M=M+D");
+    private static final byte[] SUB = AsmBuffer.encode("@SP", "AM=M-1", "D=M", "A=A-1", "M=M-D");
+    private static final byte[] AND = AsmBuffer.encode("@SP", "AM=M-1", "D=M", "A=A-1", "M=M&D");
+    private static final byte[] OR = AsmBuffer.encode("@SP", "AM=M-1", "D=M", "A=A-1", "M=M|D");
+    private static final byte[] NEG = AsmBuffer.encode("@SP", "A=M-1", "M=-M");
+    private static final byte[] NOT = AsmBuffer.encode("@SP", "A=M-1", "M=!M");
+    private static final byte[] PUSH_D = AsmBuffer.encode("@SP", "A=M", "M=D", "@SP", "M=M+1");
+    private static final byte[] POP_TO_R13 = AsmBuffer.encode("@SP", "AM=M-1", "D=M", "@R13", "A=M", "M=D");
+
     public CodeWriter(String outputFile) throws IOException {
-        out = new PrintWriter(new BufferedWriter(new FileWriter(outputFile)));
+        out = new AsmBuffer(outputFile);
     }
     
     // Sets the current file name for handling static variables.
@@ -23,23 +33,13 @@ public class CodeWriter {
             return;
         }
         if(command.equals("add")) {
-            out.println("@SP");
-            out.println("AM=M-1"); // SP--, A=SP, M=y
-            out.println("D=M");    // D=y
-            out.println("A=A-1");  // A points to x
-            out.println("M=M+D");  // x = x + y
+            out.write(ADD);    // SP--, D=y, x = x + y
         }
         else if(command.equals("sub")) {
-            out.println("@SP");
-            out.println("AM=M-1");
-            out.println("D=M");
-            out.println("A=A-1");
-            out.println("M=M-D");
+            out.write(SUB);
         }
         else if(command.equals("neg")) {
-            out.println("@SP");
-            out.println("A=M-1");
-            out.println("M=-M");
+            out.write(NEG);
         }
         else if(command.equals("eq") || command.equals("gt") || command.equals("lt")) {
             String jumpCondition = command.equals("eq") ? "JEQ" : (command.equals("gt") ? "JGT" : "JLT");
@@ -66,23 +66,13 @@ public class CodeWriter {
             out.println("(" + endLabel + ")");
         }
         else if(command.equals("and")) {
-            out.println("@SP");
-            out.println("AM=M-1");
-            out.println("D=M");
-            out.println("A=A-1");
-            out.println("M=M&D");
+            out.write(AND);
         }
         else if(command.equals("or")) {
-            out.println("@SP");
-            out.println("AM=M-1");
-            out.println("D=M");
-            out.println("A=A-1");
-            out.println("M=M|D");
+            out.write(OR);
         }
         else if(command.equals("not")) {
-            out.println("@SP");
-            out.println("A=M-1");
-            out.println("M=!M");
+            out.write(NOT);
         }
     }
     
@@ -91,55 +81,51 @@ public class CodeWriter {
         // Handle push command:
         if (commandType == Parser.C_PUSH) {
             if(segment.equals("constant")) {
-                out.println("@" + index);
+                out.printAddress(index);
                 out.println("D=A");
             } else if(segment.equals("local")) {
                 out.println("@LCL");
                 out.println("D=M");
-                out.println("@" + index);
+                out.printAddress(index);
                 out.println("A=D+A");
                 out.println("D=M");
             }
             else if(segment.equals("argument")) {
                 out.println("@ARG");
                 out.println("D=M");
-                out.println("@" + index);
+                out.printAddress(index);
                 out.println("A=D+A");
                 out.println("D=M");
             }
             else if(segment.equals("this")) {
                 out.println("@THIS");
                 out.println("D=M");
-                out.println("@" + index);
+                out.printAddress(index);
                 out.println("A=D+A");
                 out.println("D=M");
             }
             else if(segment.equals("that")) {
                 out.println("@THAT");
                 out.println("D=M");
-                out.println("@" + index);
+                out.printAddress(index);
                 out.println("A=D+A");
                 out.println("D=M");
             }
             else if(segment.equals("pointer")) {
                 int address = (index == 0) ? 3 : 4;
-                out.println("@" + address);
+                out.printAddress(address);
                 out.println("D=M");
             }
             else if(segment.equals("temp")) {
-                out.println("@" + (5 + index));
+                out.printAddress(5 + index);
                 out.println("D=M");
             }
             else if(segment.equals("static")) {
-                out.println("@" + fileName + "." + index);
+                out.printAddress(fileName, index);
                 out.println("D=M");
             }
             // Push D onto the stack.
-            out.println("@SP");
-            out.println("A=M");
-            out.println("M=D");
-            out.println("@SP");
-            out.println("M=M+1");
+            out.write(PUSH_D);
         }
         // Handle pop command.
         else if (commandType == Parser.C_POP) {
@@ -150,37 +136,32 @@ public class CodeWriter {
                               segment.equals("this") ? "THIS" : "THAT";
                 out.println("@" + base);
                 out.println("D=M");
-                out.println("@" + index);
+                out.printAddress(index);
                 out.println("D=D+A");
                 out.println("@R13");
                 out.println("M=D");
             }
             else if(segment.equals("pointer")) {
                 int address = (index == 0) ? 3 : 4;
-                out.println("@" + address);
+                out.printAddress(address);
                 out.println("D=A");
                 out.println("@R13");
                 out.println("M=D");
             }
             else if(segment.equals("temp")) {
-                out.println("@" + (5 + index));
+                out.printAddress(5 + index);
                 out.println("D=A");
                 out.println("@R13");
                 out.println("M=D");
             }
             else if(segment.equals("static")) {
-                out.println("@" + fileName + "." + index);
+                out.printAddress(fileName, index);
                 out.println("D=A");
                 out.println("@R13");
                 out.println("M=D");
             }
-            // Pop the top of the stack into D.
-            out.println("@SP");
-            out.println("AM=M-1");
-            out.println("D=M");
-            out.println("@R13");
-            out.println("A=M");
-            out.println("M=D");
+            // Pop the top of the stack into the address in R13.
+            out.write(POP_TO_R13);
         }
     }
     
@@ -1,72 +1,136 @@
 import java.io.*;
-import java.util.*;
 
 public class Parser {
     // Define command types as constants.
     public static final int C_ARITHMETIC = 0;
     public static final int C_PUSH = 1;
     public static final int C_POP = 2;
-    
-    private List<String> commands;
-    private int currentIndex = 0;
-    private String currentCommand;
 
+    private final BufferedReader reader;
+    // The next decoded command (read ahead by hasMoreCommands), or null.
+    private VMCommand nextCommand;
+    private VMCommand currentCommand;
+    // Source line of nextCommand and currentCommand (1-based).
+    private int lineNumber = 0;
+    private int nextLine = 0;
+    private int currentLine = 0;
+
+    // Lines are read and decoded one at a time, so memory use does not grow with the file.
     public Parser(String filePath) throws IOException {
-        commands = new ArrayList<>();
-        BufferedReader reader = new BufferedReader(new FileReader(filePath));
+        reader = new BufferedReader(new FileReader(filePath));
+    }
+
+    // Are there more commands in the input?
+    public boolean hasMoreCommands() throws IOException {
+        if (nextCommand != null) {
+            return true;
+        }
         String line;
         while ((line = reader.readLine()) != null) {
-            // Remove comments and trim whitespace.
-            if (line.contains("//")) {
-                line = line.substring(0, line.indexOf("//"));
+            lineNumber++;
+            // Remove inline comments and trim whitespace.
+            int comment = line.indexOf("//");
+            if (comment >= 0) {
+                line = line.substring(0, comment);
             }
             line = line.trim();
             if (!line.isEmpty()) {
-                commands.add(line);
+                nextCommand = decode(line);
+                nextLine = lineNumber;
+                return true;
             }
         }
         reader.close();
+        return false;
     }
 
-    public boolean hasMoreCommands() {
-        return currentIndex < commands.size();
+    // Reads the next command from the input.
+    public void advance() throws IOException {
+        if (!hasMoreCommands()) {
+            throw new IllegalStateException("No more commands");
+        }
+        currentCommand = nextCommand;
+        currentLine = nextLine;
+        nextCommand = null;
+    }
+
+    // The current command, decoded.
+    public VMCommand current() {
+        return currentCommand;
     }
 
-    public void advance() {
-        currentCommand = commands.get(currentIndex);
-        currentIndex++;
+    // Source line of the current command.
+    public int lineNumber() {
+        return currentLine;
     }
-    
-    // Determine the command type.
+
+    // Determines the command type of the current command.
     public int commandType() {
-        if (currentCommand.startsWith("push")) {
-            return C_PUSH;
-        } else if (currentCommand.startsWith("pop")) {
-            return C_POP;
-        } else {
-            // For Project 7, remaining commands are arithmetic.
-            return C_ARITHMETIC;
-        }
+        return currentCommand.type;
     }
 
     // For an arithmetic command, return the command itself (like "add", "sub", etc.)
     // For push/pop, arg1() will return the segment (like "local", "argument").
     public String arg1() {
-        if (commandType() == C_ARITHMETIC) {
-            return currentCommand;
-        } else {
-            String[] parts = currentCommand.split("\\s+");
-            return parts[1];
-        }
+        return currentCommand.arg1;
     }
 
     // For push/pop commands, return the index (as an integer)
     public int arg2() {
-        if (commandType() == C_PUSH || commandType() == C_POP) {
-            String[] parts = currentCommand.split("\\s+");
-            return Integer.parseInt(parts[2]);
+        return currentCommand.arg2;
+    }
+
+    // Closes the input early (it is closed automatically once all commands are read).
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    // Splits a trimmed, comment-free line into its fields and decodes it.
+    static VMCommand decode(String line) {
+        int end = wordEnd(line, 0);
+        String word = line.substring(0, end);
+        int type = typeOf(word);
+        if (type == C_ARITHMETIC) {
+            return new VMCommand(C_ARITHMETIC, word.intern(), -1);
         }
-        return -1; // Should not be reached for arithmetic commands.
+        int start = wordStart(line, end);
+        end = wordEnd(line, start);
+        String arg1 = line.substring(start, end).intern();
+        return new VMCommand(type, arg1, parseInt(line, wordStart(line, end)));
+    }
+
+    private static int typeOf(String word) {
+        switch (word) {
+            case "push": return C_PUSH;
+            case "pop":  return C_POP;
+            // For Project 7, remaining commands are arithmetic.
+            default:     return C_ARITHMETIC;
+        }
+    }
+
+    private static int wordStart(String line, int pos) {
+        while (pos < line.length() && Character.isWhitespace(line.charAt(pos))) pos++;
+        return pos;
     }
-}
 
+    private static int wordEnd(String line, int pos) {
+        while (pos < line.length() && !Character.isWhitespace(line.charAt(pos))) pos++;
+        return pos;
+    }
+
+    private static int parseInt(String line, int pos) {
+        int end = wordEnd(line, pos);
+        if (pos == end) {
+            throw new NumberFormatException("Missing argument in: " + line);
+        }
+        int value = 0;
+        for (int i = pos; i < end; i++) {
+            char c = line.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new NumberFormatException("Bad argument in: " + line);
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+}
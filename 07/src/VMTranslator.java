@@ -54,11 +54,11 @@ public class VMTranslator {
             Parser parser = new Parser(file.getAbsolutePath());
             while (parser.hasMoreCommands()) {
                 parser.advance();
-                int type = parser.commandType();
-                if (type == Parser.C_ARITHMETIC) {
-                    codeWriter.writeArithmetic(parser.arg1());
-                } else if (type == Parser.C_PUSH || type == Parser.C_POP) {
-                    codeWriter.writePushPop(type, parser.arg1(), parser.arg2());
+                VMCommand command = parser.current();
+                if (command.type == Parser.C_ARITHMETIC) {
+                    codeWriter.writeArithmetic(command.arg1);
+                } else if (command.type == Parser.C_PUSH || command.type == Parser.C_POP) {
+                    codeWriter.writePushPop(command.type, command.arg1, command.arg2);
                 }
                 // For Project 7, these two types are sufficient.
             }
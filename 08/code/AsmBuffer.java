@@ -0,0 +1,151 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// Output layer of the translators: assembly text is appended as ASCII bytes to one reusable
+// array and written to a FileChannel in 64 KB blocks. Fixed instruction sequences can be
+// encoded once (see encode) and copied in, and numeric operands are written digit by digit,
+// so emitting a line does not allocate. The same class is used by projects 7 and 8.
+public class AsmBuffer {
+    private static final int BLOCK_SIZE = 1 << 16;
+
+    // Destination file; null when the text is kept in memory.
+    private final FileChannel channel;
+    private byte[] bytes = new byte[BLOCK_SIZE];
+    private int length = 0;
+    // Scratch space for the digits of a number.
+    private final byte[] digits = new byte[11];
+
+    public AsmBuffer(String outputFile) throws IOException {
+        channel = FileChannel.open(Paths.get(outputFile), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    // Creates a buffer that grows in memory instead of writing to a file.
+    public AsmBuffer() {
+        channel = null;
+    }
+
+    // Encodes lines of assembly once, for use with write(byte[]).
+    public static byte[] encode(String... lines) {
+        StringBuilder text = new StringBuilder();
+        for (String line : lines) {
+            text.append(line).append('\n');
+        }
+        return text.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // Appends pre-encoded lines.
+    public void write(byte[] encoded) {
+        reserve(encoded.length);
+        System.arraycopy(encoded, 0, bytes, length, encoded.length);
+        length += encoded.length;
+    }
+
+    // Appends one line.
+    public void println(String line) {
+        reserve(line.length() + 1);
+        append(line);
+        bytes[length++] = '\n';
+    }
+
+    // Appends "@value".
+    public void printAddress(int value) {
+        reserve(13);
+        bytes[length++] = '@';
+        appendNumber(value);
+        bytes[length++] = '\n';
+    }
+
+    // Appends "@symbol.index", the address of a static variable.
+    public void printAddress(String symbol, int index) {
+        reserve(symbol.length() + 14);
+        bytes[length++] = '@';
+        append(symbol);
+        bytes[length++] = '.';
+        appendNumber(index);
+        bytes[length++] = '\n';
+    }
+
+    // Appends the text held by an in-memory buffer.
+    public void write(AsmBuffer other) {
+        reserve(other.length);
+        System.arraycopy(other.bytes, 0, bytes, length, other.length);
+        length += other.length;
+    }
+
+    // Writes what is buffered to the file and closes it.
+    public void close() {
+        if (channel != null && channel.isOpen()) {
+            try {
+                flush();
+                channel.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    // Returns the text of an in-memory buffer.
+    public String getText() {
+        return new String(bytes, 0, length, StandardCharsets.US_ASCII);
+    }
+
+    // Returns the bytes of an in-memory buffer.
+    public byte[] toByteArray() {
+        return Arrays.copyOf(bytes, length);
+    }
+
+    // Makes room for count more bytes, writing out a full block if there is a file.
+    private void reserve(int count) {
+        if (length + count <= bytes.length) {
+            return;
+        }
+        if (channel != null) {
+            try {
+                flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (count <= bytes.length) {
+                return;
+            }
+        }
+        bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + count));
+    }
+
+    private void flush() throws IOException {
+        ByteBuffer block = ByteBuffer.wrap(bytes, 0, length);
+        while (block.hasRemaining()) {
+            channel.write(block);
+        }
+        length = 0;
+    }
+
+    // Assembly is plain ASCII, so every char is one byte.
+    private void append(String text) {
+        int n = text.length();
+        for (int i = 0; i < n; i++) {
+            bytes[length++] = (byte) text.charAt(i);
+        }
+    }
+
+    private void appendNumber(int value) {
+        if (value < 0) {
+            bytes[length++] = '-';
+            value = -value;
+        }
+        int count = 0;
+        do {
+            digits[count++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        while (count > 0) {
+            bytes[length++] = digits[--count];
+        }
+    }
+}
@@ -0,0 +1,156 @@
+import java.io.*;
+
+public class AsmWriter {
+    private final AsmBuffer out;
+    // Optional peephole stage; when set every line goes through it before reaching the file.
+    private PeepholeOptimizer peephole;
+    // Number of instructions handed to this writer (label declarations are not counted).
+    private int instructionCount = 0;
+    // ROM address of the next instruction to reach the output (after peephole rewriting).
+    private int address = 0;
+
+    // A fixed instruction sequence, encoded once (see AsmBuffer.encode).
+    public static final class Template {
+        private final String[] lines;
+        private final byte[] bytes;
+        private final int instructions;
+
+        public Template(String... lines) {
+            this.lines = lines;
+            this.bytes = AsmBuffer.encode(lines);
+            int count = 0;
+            for (String line : lines) {
+                if (!line.startsWith("(")) {
+                    count++;
+                }
+            }
+            this.instructions = count;
+        }
+    }
+
+    public AsmWriter(String outputFile) throws IOException {
+        out = new AsmBuffer(outputFile);
+    }
+
+    // Creates a writer that keeps its output in memory (see getText).
+    public AsmWriter() {
+        out = new AsmBuffer();
+    }
+
+    // Routes all following lines through the given peephole optimizer.
+    public void setPeephole(PeepholeOptimizer peephole) {
+        this.peephole = peephole;
+    }
+
+    public PeepholeOptimizer getPeephole() {
+        return peephole;
+    }
+
+    // Writes one line of assembly.
+    public void println(String line) {
+        if (!line.startsWith("(")) {
+            instructionCount++;
+        }
+        if (peephole != null) {
+            peephole.add(line);
+        } else {
+            out.println(line);
+            if (!line.startsWith("(")) {
+                address++;
+            }
+        }
+    }
+
+    // Writes a fixed instruction sequence.
+    public void write(Template template) {
+        if (peephole != null) {
+            for (String line : template.lines) {
+                println(line);
+            }
+            return;
+        }
+        instructionCount += template.instructions;
+        address += template.instructions;
+        out.write(template.bytes);
+    }
+
+    // Writes "@value".
+    public void printAddress(int value) {
+        if (peephole != null) {
+            println("@" + value);
+            return;
+        }
+        instructionCount++;
+        address++;
+        out.printAddress(value);
+    }
+
+    // Writes "@symbol.index".
+    public void printAddress(String symbol, int index) {
+        if (peephole != null) {
+            println("@" + symbol + "." + index);
+            return;
+        }
+        instructionCount++;
+        address++;
+        out.printAddress(symbol, index);
+    }
+
+    // Number of instructions written before any peephole rewriting.
+    public int getInstructionCount() {
+        return instructionCount;
+    }
+
+    // ROM address the next instruction will get. With a peephole optimizer the instructions
+    // still in its window are counted as they are; a later rewrite may remove some of them.
+    public int getAddress() {
+        return peephole == null ? address : address + peephole.getPendingInstructions();
+    }
+
+    // Fills an empty in-memory writer with assembly produced earlier (see TranslationCache):
+    // the text, the instructions written before peephole rewriting and the ROM size after it.
+    public void restore(byte[] text, int instructionCount, int address) {
+        out.write(text);
+        this.instructionCount = instructionCount;
+        this.address = address;
+    }
+
+    // Flushes any pending peephole window and closes the file.
+    public void close() {
+        if (peephole != null) {
+            peephole.flush();
+        }
+        out.close();
+    }
+
+    // Returns the assembly written to an in-memory writer.
+    public String getText() {
+        return out.getText();
+    }
+
+    // Returns the assembly written to an in-memory writer as ASCII bytes.
+    public byte[] getBytes() {
+        return out.toByteArray();
+    }
+
+    // Copies a finished in-memory writer into this one, together with its statistics.
+    public void append(AsmWriter fragment) {
+        fragment.close();
+        if (peephole != null) {
+            // The fragment went through its own peephole pass; keep the order of the output.
+            peephole.flush();
+            peephole.addRemovedCounts(fragment.peephole);
+        }
+        out.write(fragment.out);
+        instructionCount += fragment.instructionCount;
+        address += fragment.address;
+    }
+
+    // Writes a line straight to the file (used as the peephole sink).
+    void writeLine(String line) {
+        out.println(line);
+        if (!line.startsWith("(")) {
+            address++;
+        }
+    }
+}
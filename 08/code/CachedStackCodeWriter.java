@@ -0,0 +1,221 @@
+import java.io.IOException;
+
+// A CodeWriter that keeps the top of the VM stack in D across straight-line code.
+// While the top is cached, RAM[SP] already points at its (empty) slot, so the value is
+// only written to memory when something needs the real stack: a push of another value,
+// a label, goto, function, call or return.
+public class CachedStackCodeWriter extends CodeWriter {
+    // Is the top of the stack currently held in D instead of RAM?
+    private boolean cached = false;
+
+    public CachedStackCodeWriter(String outputFile) throws IOException {
+        super(outputFile);
+    }
+
+    // Creates a writer that keeps its output in memory.
+    public CachedStackCodeWriter() {
+        super();
+    }
+
+    // Writes a cached top of stack back to memory.
+    private void flush() {
+        if (cached) {
+            out.println("@SP");
+            out.println("M=M+1");
+            out.println("A=M-1");
+            out.println("M=D");
+            cached = false;
+        }
+    }
+
+    // Makes sure the top of the stack is in D (and no longer counted in SP).
+    private void loadTop() {
+        if (!cached) {
+            out.println("@SP");
+            out.println("AM=M-1");
+            out.println("D=M");
+            cached = true;
+        }
+    }
+
+    @Override
+    public void writeArithmetic(String command) {
+        switch (command) {
+            case "add": case "sub": case "and": case "or":
+                loadTop();
+                out.println("@SP");
+                out.println("AM=M-1");    // pop x; the result stays in D
+                out.println(command.equals("add") ? "D=D+M" :
+                            command.equals("sub") ? "D=M-D" :
+                            command.equals("and") ? "D=D&M" : "D=D|M");
+                break;
+            case "neg":
+                loadTop();
+                out.println("D=-D");
+                break;
+            case "not":
+                loadTop();
+                out.println("D=!D");
+                break;
+            case "eq": case "gt": case "lt":
+                if (usesSharedComparison()) {
+                    // The shared routines work on the stack in memory.
+                    flush();
+                    super.writeArithmetic(command);
+                    break;
+                }
+                String jumpCondition = command.equals("eq") ? "JEQ" : (command.equals("gt") ? "JGT" : "JLT");
+                String trueLabel = uniqueLabel("TRUE_LABEL", labelCounter);
+                String endLabel = uniqueLabel("END_LABEL", labelCounter);
+                labelCounter++;
+                loadTop();
+                out.println("@SP");
+                out.println("AM=M-1");
+                out.println("D=M-D");     // D = x - y
+                out.println("@" + trueLabel);
+                out.println("D;" + jumpCondition);
+                out.println("D=0");
+                out.println("@" + endLabel);
+                out.println("0;JMP");
+                out.println("(" + trueLabel + ")");
+                out.println("D=-1");
+                out.println("(" + endLabel + ")");
+                break;
+            default:
+                super.writeArithmetic(command);
+                break;
+        }
+    }
+
+    @Override
+    public void writePushPop(int commandType, String segment, int index) {
+        String base = segment.equals("local")    ? "LCL" :
+                      segment.equals("argument") ? "ARG" :
+                      segment.equals("this")     ? "THIS" :
+                      segment.equals("that")     ? "THAT" : null;
+        if (commandType == Parser.C_PUSH) {
+            flush();
+            if (segment.equals("constant")) {
+                if (index == 0 || index == 1) {
+                    out.println("D=" + index);
+                } else {
+                    out.printAddress(index);
+                    out.println("D=A");
+                }
+            } else if (base != null) {
+                out.println("@" + base);
+                if (index == 0 || index == 1) {
+                    out.println(index == 0 ? "A=M" : "A=M+1");
+                } else {
+                    out.println("D=M");
+                    out.printAddress(index);
+                    out.println("A=D+A");
+                }
+                out.println("D=M");
+            } else {
+                out.println("@" + fixedAddress(segment, index));
+                out.println("D=M");
+            }
+            cached = true;
+        } else if (commandType == Parser.C_POP) {
+            loadTop();
+            if (base == null) {
+                out.println("@" + fixedAddress(segment, index));
+            } else if (index <= 6) {
+                out.println("@" + base);
+                out.println(index == 0 ? "A=M" : "A=M+1");
+                for (int i = 1; i < index; i++) {
+                    out.println("A=A+1");
+                }
+            } else {
+                // The value waits in R13 while the address is computed into R14.
+                out.println("@R13");
+                out.println("M=D");
+                out.println("@" + base);
+                out.println("D=M");
+                out.printAddress(index);
+                out.println("D=D+A");
+                out.println("@R14");
+                out.println("M=D");
+                out.println("@R13");
+                out.println("D=M");
+                out.println("@R14");
+                out.println("A=M");
+            }
+            out.println("M=D");
+            cached = false;
+        }
+    }
+
+    // Address symbol of a pointer, temp or static entry.
+    private String fixedAddress(String segment, int index) {
+        if (segment.equals("pointer")) {
+            return String.valueOf(index == 0 ? 3 : 4);
+        } else if (segment.equals("temp")) {
+            return String.valueOf(5 + index);
+        }
+        return staticSymbol(index);
+    }
+
+    @Override
+    public void writeLabel(String label) {
+        flush();
+        super.writeLabel(label);
+    }
+
+    @Override
+    public void writeGoto(String label) {
+        flush();
+        super.writeGoto(label);
+    }
+
+    @Override
+    public void writeIf(String label) {
+        if (cached) {
+            // The condition is already in D; popping it is free.
+            out.println("@" + functionLabel(label));
+            out.println("D;JNE");
+            cached = false;
+        } else {
+            super.writeIf(label);
+        }
+    }
+
+    @Override
+    public void writeIfNot(String label) {
+        loadTop();
+        out.println("@" + functionLabel(label));
+        out.println("D;JEQ");
+        cached = false;
+    }
+
+    @Override
+    public void writeFunction(String functionName, int nLocals) {
+        flush();
+        super.writeFunction(functionName, nLocals);
+    }
+
+    @Override
+    public void writeCall(String functionName, int nArgs) {
+        flush();
+        super.writeCall(functionName, nArgs);
+    }
+
+    @Override
+    public void writeTailCall(String functionName, int nArgs, int callerArgs) {
+        flush();
+        super.writeTailCall(functionName, nArgs, callerArgs);
+    }
+
+    @Override
+    public void writeReturn() {
+        flush();
+        super.writeReturn();
+    }
+
+    @Override
+    public void close() {
+        flush();
+        super.close();
+    }
+}
@@ -0,0 +1,63 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+// The static call graph of a VM program, built from its function and call commands.
+public class CallGraph {
+    // Function name -> names of the functions it calls, in declaration order.
+    private final Map<String, Set<String>> calls = new LinkedHashMap<>();
+    // Calls made outside of any function (before the first function declaration of a file).
+    private final Set<String> topLevelCalls = new LinkedHashSet<>();
+    // Function name -> number of arguments its callers pass, or -1 if they disagree.
+    private final Map<String, Integer> arity = new HashMap<>();
+
+    // Scans the given .vm files and records every function and call.
+    public static CallGraph build(List<File> files) throws IOException {
+        CallGraph graph = new CallGraph();
+        for (File file : files) {
+            Parser parser = new Parser(file.getAbsolutePath());
+            Set<String> callees = graph.topLevelCalls;
+            while (parser.hasMoreCommands()) {
+                parser.advance();
+                VMCommand command = parser.current();
+                if (command.type == Parser.C_FUNCTION) {
+                    callees = graph.calls.computeIfAbsent(command.arg1, name -> new LinkedHashSet<>());
+                } else if (command.type == Parser.C_CALL) {
+                    callees.add(command.arg1);
+                    graph.arity.merge(command.arg1, command.arg2, (a, b) -> a.equals(b) ? a : -1);
+                }
+            }
+        }
+        return graph;
+    }
+
+    // Is the function declared in one of the scanned files?
+    public boolean defines(String function) {
+        return calls.containsKey(function);
+    }
+
+    // All declared functions, in declaration order.
+    public Set<String> functions() {
+        return calls.keySet();
+    }
+
+    // Number of arguments every call to the function passes; -1 if the calls disagree or
+    // there are none.
+    public int arity(String function) {
+        return arity.getOrDefault(function, -1);
+    }
+
+    // Functions reachable from the root and from any top-level code.
+    public Set<String> reachableFrom(String root) {
+        Set<String> reached = new HashSet<>();
+        Deque<String> pending = new ArrayDeque<>(topLevelCalls);
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            String function = pending.pop();
+            if (reached.add(function)) {
+                pending.addAll(calls.getOrDefault(function, Collections.emptySet()));
+            }
+        }
+        return reached;
+    }
+}
@@ -1,22 +1,282 @@
 import java.io.*;
+import java.util.*;
 
 public class CodeWriter {
-    private PrintWriter out;
+    protected AsmWriter out;
     // Used to generate unique labels (for eq, gt, lt and function calls).
-    private int labelCounter = 0;
+    // Labels are prefixed with the file name, so each file has its own counters.
+    protected int labelCounter = 0;
     private int returnLabelCounter = 0;
     // Holds the current file name for static variable handling.
-    private String fileName;
+    protected String fileName;
+    // File whose static segment is in use; differs from fileName inside an inlined function.
+    private String staticFileName;
     // Holds the current function name (for namespacing labels).
     private String currentFunction = "";
+    // When set, call/return jump into one shared routine instead of inlining the frame code.
+    private boolean sharedFrames = false;
+    // When set, push/pop use the cheapest sequence for their operand (see writeSpecializedPushPop).
+    private boolean specializeOperands = true;
+    // Chooses between inline and shared eq/gt/lt code; null means always inline.
+    private ComparisonPlan comparisonPlan = null;
+    // Source line of the VM command being translated.
+    private int lineNumber = 0;
+    // Maps the generated instructions back to VM lines and functions; null when not recorded.
+    private SourceMap sourceMap = null;
+    // Locals each function writes before reading them, which need no zeroing; null when unused.
+    private WrittenLocals writtenLocals = null;
+    // Statistics used for the before/after size report.
+    private int callCount = 0;
+    private int returnCount = 0;
+    private int routineSize = 0;
+    // Instructions of unreachable functions that were left out of the output.
+    private int droppedInstructionCount = 0;
+    // Calls written as jumps by writeTailCall.
+    private int tailCallCount = 0;
+    // ConstantFolder rewrites per rule in the translated commands, and commands removed.
+    private final Map<String, Integer> foldCounts = new LinkedHashMap<>();
+    private int foldedCommandCount = 0;
+
+    // Fixed sequences, encoded once.
+    private static final AsmWriter.Template ADD = new AsmWriter.Template(
+            "@SP", "AM=M-1", "D=M", "A=A-1", "M=M+D");
+    private static final AsmWriter.Template SUB = new AsmWriter.Template(
+            "@SP", "AM=M-1", "D=M", "A=A-1", "M=M-D");
+    private static final AsmWriter.Template AND = new AsmWriter.Template(
+            "@SP", "AM=M-1", "D=M", "A=A-1", "M=M&D");
+    private static final AsmWriter.Template OR = new AsmWriter.Template(
+            "@SP", "AM=M-1", "D=M", "A=A-1", "M=M|D");
+    private static final AsmWriter.Template NEG = new AsmWriter.Template("@SP", "A=M-1", "M=-M");
+    private static final AsmWriter.Template NOT = new AsmWriter.Template("@SP", "A=M-1", "M=!M");
+    private static final AsmWriter.Template PUSH_D = new AsmWriter.Template(
+            "@SP", "A=M", "M=D", "@SP", "M=M+1");
+    private static final AsmWriter.Template PUSH_ZERO = new AsmWriter.Template(
+            "@0", "D=A", "@SP", "A=M", "M=D", "@SP", "M=M+1");
+    // Pops into the address held in R13.
+    private static final AsmWriter.Template POP_TO_R13 = new AsmWriter.Template(
+            "@SP", "AM=M-1", "D=M", "@R13", "A=M", "M=D");
+    // Pushes the caller's LCL, ARG, THIS and THAT.
+    private static final AsmWriter.Template SAVE_FRAME = new AsmWriter.Template(
+            "@LCL", "D=M", "@SP", "A=M", "M=D", "@SP", "M=M+1",
+            "@ARG", "D=M", "@SP", "A=M", "M=D", "@SP", "M=M+1",
+            "@THIS", "D=M", "@SP", "A=M", "M=D", "@SP", "M=M+1",
+            "@THAT", "D=M", "@SP", "A=M", "M=D", "@SP", "M=M+1");
+    // The frame restore sequence of writeReturnBody.
+    private static final AsmWriter.Template RETURN_BODY = new AsmWriter.Template(
+            // FRAME = LCL; store FRAME in R13.
+            "@LCL", "D=M", "@R13", "M=D",
+            // RET = *(FRAME - 5); store return address in R14.
+            "@5", "A=D-A", "D=M", "@R14", "M=D",
+            // *ARG = pop(); reposition return value for caller.
+            "@SP", "AM=M-1", "D=M", "@ARG", "A=M", "M=D",
+            // SP = ARG + 1.
+            "@ARG", "D=M+1", "@SP", "M=D",
+            // Restore THAT, THIS, ARG, and LCL (in that order).
+            "@R13", "AM=M-1", "D=M", "@THAT", "M=D",
+            "@R13", "AM=M-1", "D=M", "@THIS", "M=D",
+            "@R13", "AM=M-1", "D=M", "@ARG", "M=D",
+            "@R13", "AM=M-1", "D=M", "@LCL", "M=D",
+            // Go to return address.
+            "@R14", "A=M", "0;JMP");
+    
+    // Ways to initialize a function's locals (see writeLocalInit).
+    private static final int PUSH_EACH = 0, UNROLLED = 1, LOOP = 2;
+    // Most locals that are zeroed by straight-line stores; more use the loop.
+    private static final int UNROLL_LIMIT = 8;
+    
+    // Size of the inline call and return templates (see writeCall and writeReturn).
+    private static final int INLINE_CALL_SIZE = 47;
+    private static final int INLINE_RETURN_SIZE = 42;
+    // Size of a call or return site when the shared routines are used.
+    private static final int SHARED_CALL_SIZE = 12;
+    private static final int SHARED_RETURN_SIZE = 2;
 
     public CodeWriter(String outputFile) throws IOException {
-        out = new PrintWriter(new BufferedWriter(new FileWriter(outputFile)));
+        out = new AsmWriter(outputFile);
+    }
+    
+    // Creates a CodeWriter that keeps its output in memory, to be appended to another one later.
+    public CodeWriter() {
+        out = new AsmWriter();
+    }
+    
+    // Enables the peephole pass over the generated assembly.
+    public void setPeephole(boolean enabled) {
+        out.setPeephole(enabled ? PeepholeOptimizer.withDefaultRules(out::writeLine) : null);
+    }
+    
+    // Returns the peephole optimizer, or null if the pass is disabled.
+    public PeepholeOptimizer getPeephole() {
+        return out.getPeephole();
+    }
+    
+    // Enables the shared call/return routines. Must be set before writeInit.
+    public void setSharedFrames(boolean sharedFrames) {
+        this.sharedFrames = sharedFrames;
+    }
+    
+    // Enables or disables the operand-specific push/pop sequences.
+    public void setSpecializeOperands(boolean specializeOperands) {
+        this.specializeOperands = specializeOperands;
+    }
+    
+    // Skips zeroing the locals the analysis found written before they are read; null zeroes all.
+    public void setWrittenLocals(WrittenLocals writtenLocals) {
+        this.writtenLocals = writtenLocals;
+    }
+    
+    // Enables the shared comparison routines for the sites the plan does not inline.
+    // Must be set before writeInit.
+    public void setComparisonPlan(ComparisonPlan comparisonPlan) {
+        this.comparisonPlan = comparisonPlan;
+    }
+
+    // Does the eq/gt/lt at the current line jump into a shared comparison routine?
+    protected boolean usesSharedComparison() {
+        return comparisonPlan != null && !comparisonPlan.isInline(ComparisonPlan.site(fileName, lineNumber));
+    }
+    
+    // Sets the source line of the next VM command.
+    public void setLineNumber(int lineNumber) {
+        this.lineNumber = lineNumber;
+        if (sourceMap != null) {
+            sourceMap.addLine(out.getAddress(), fileName == null ? "-" : fileName, lineNumber, currentFunction);
+        }
+    }
+    
+    // Enables the source map. Must be set before any code is written.
+    public void setSourceMap(boolean enabled) {
+        sourceMap = enabled ? new SourceMap() : null;
+    }
+    
+    // Returns the source map, or null if it is not recorded.
+    public SourceMap getSourceMap() {
+        return sourceMap;
+    }
+    
+    // Number of Hack instructions written so far (before peephole rewriting).
+    public int getInstructionCount() {
+        return out.getInstructionCount();
+    }
+    
+    // Number of Hack instructions the same program would take with inline call/return code.
+    public int getInlineInstructionCount() {
+        if (!sharedFrames) {
+            return getInstructionCount();
+        }
+        return getInstructionCount() - routineSize
+                + callCount * (INLINE_CALL_SIZE - SHARED_CALL_SIZE)
+                + returnCount * (INLINE_RETURN_SIZE - SHARED_RETURN_SIZE);
     }
     
     // Sets the current file name (for static variables).
     public void setFileName(String fileName) {
         this.fileName = fileName;
+        this.staticFileName = fileName;
+        labelCounter = 0;
+        returnLabelCounter = 0;
+    }
+    
+    // Selects the file whose static variables "static i" refers to (see Inliner).
+    public void setStaticFileName(String staticFileName) {
+        this.staticFileName = staticFileName;
+    }
+    
+    // Returns the symbol of static variable i.
+    protected String staticSymbol(int index) {
+        return staticFileName + "." + index;
+    }
+    
+    // Returns a label that is unique within the current file.
+    protected String uniqueLabel(String base, int counter) {
+        return fileName == null ? base + counter : fileName + "$" + base + counter;
+    }
+    
+    // Appends the output of an in-memory CodeWriter (created with the same settings).
+    public void append(CodeWriter fragment) {
+        fragment.close();
+        if (sourceMap != null && fragment.sourceMap != null) {
+            sourceMap.append(fragment.sourceMap, out.getAddress());
+        }
+        out.append(fragment.out);
+        callCount += fragment.callCount;
+        returnCount += fragment.returnCount;
+        droppedInstructionCount += fragment.droppedInstructionCount;
+        tailCallCount += fragment.tailCallCount;
+        addFoldCounts(fragment.foldCounts, fragment.foldedCommandCount);
+    }
+    
+    // Records the rewrites of the ConstantFolder the commands went through.
+    public void addFoldCounts(Map<String, Integer> rewrites, int removedCommands) {
+        for (Map.Entry<String, Integer> entry : rewrites.entrySet()) {
+            foldCounts.merge(entry.getKey(), entry.getValue(), Integer::sum);
+        }
+        foldedCommandCount += removedCommands;
+    }
+    
+    public Map<String, Integer> getFoldCounts() {
+        return foldCounts;
+    }
+    
+    public int getFoldedCommandCount() {
+        return foldedCommandCount;
+    }
+    
+    // Returns the statistics append() takes over from a fragment, by name. The fragment
+    // must be closed.
+    public Map<String, Integer> getFragmentStats() {
+        Map<String, Integer> stats = new LinkedHashMap<>();
+        stats.put("instructions", out.getInstructionCount());
+        stats.put("address", out.getAddress());
+        stats.put("calls", callCount);
+        stats.put("returns", returnCount);
+        stats.put("dropped", droppedInstructionCount);
+        stats.put("folded", foldedCommandCount);
+        for (Map.Entry<String, Integer> entry : foldCounts.entrySet()) {
+            stats.put("fold." + entry.getKey(), entry.getValue());
+        }
+        if (getPeephole() != null) {
+            for (Map.Entry<String, Integer> entry : getPeephole().getRemovedCounts().entrySet()) {
+                stats.put("peephole." + entry.getKey(), entry.getValue());
+            }
+        }
+        return stats;
+    }
+    
+    // Turns an empty in-memory writer into a fragment translated earlier, from its assembly,
+    // getFragmentStats() and source map (null if none was recorded).
+    public void restoreFragment(byte[] assembly, Map<String, Integer> stats, SourceMap map) {
+        out.restore(assembly, stats.get("instructions"), stats.get("address"));
+        callCount = stats.get("calls");
+        returnCount = stats.get("returns");
+        droppedInstructionCount = stats.get("dropped");
+        foldedCommandCount = stats.getOrDefault("folded", 0);
+        for (Map.Entry<String, Integer> entry : stats.entrySet()) {
+            if (entry.getKey().startsWith("fold.")) {
+                foldCounts.put(entry.getKey().substring("fold.".length()), entry.getValue());
+            }
+        }
+        if (getPeephole() != null) {
+            Map<String, Integer> removed = new LinkedHashMap<>();
+            for (Map.Entry<String, Integer> entry : stats.entrySet()) {
+                if (entry.getKey().startsWith("peephole.")) {
+                    removed.put(entry.getKey().substring("peephole.".length()), entry.getValue());
+                }
+            }
+            getPeephole().addRemovedCounts(removed);
+        }
+        if (sourceMap != null) {
+            sourceMap = map;
+        }
+    }
+    
+    // Records the size of code that was translated but left out of the output.
+    public void addDroppedInstructions(int count) {
+        droppedInstructionCount += count;
+    }
+    
+    public int getDroppedInstructionCount() {
+        return droppedInstructionCount;
     }
     
     // Sets the current function (used when processing a function declaration).
@@ -32,25 +292,25 @@ public class CodeWriter {
             return;
         }
         if (command.equals("add")) {
-            out.println("@SP");
-            out.println("AM=M-1"); // SP--, A=SP, M=y
-            out.println("D=M");    // D=y
-            out.println("A=A-1");  // A points to x
-            out.println("M=M+D");  // x = x + y
+            out.write(ADD);    // SP--, D=y, x = x + y
         } else if (command.equals("sub")) {
-            out.println("@SP");
-            out.println("AM=M-1");
-            out.println("D=M");
-            out.println("A=A-1");
-            out.println("M=M-D");
+            out.write(SUB);
         } else if (command.equals("neg")) {
-            out.println("@SP");
-            out.println("A=M-1");
-            out.println("M=-M");
+            out.write(NEG);
         } else if (command.equals("eq") || command.equals("gt") || command.equals("lt")) {
             String jumpCondition = command.equals("eq") ? "JEQ" : (command.equals("gt") ? "JGT" : "JLT");
-            String trueLabel = "TRUE_LABEL" + labelCounter;
-            String endLabel = "END_LABEL" + labelCounter;
+            if (usesSharedComparison()) {
+                // Jump into the shared routine with the return address in D.
+                String returnLabel = uniqueLabel("COMPARE_RETURN", labelCounter++);
+                out.println("@" + returnLabel);
+                out.println("D=A");
+                out.println("@COMPARE_" + jumpCondition);
+                out.println("0;JMP");
+                out.println("(" + returnLabel + ")");
+                return;
+            }
+            String trueLabel = uniqueLabel("TRUE_LABEL", labelCounter);
+            String endLabel = uniqueLabel("END_LABEL", labelCounter);
             labelCounter++;
             
             out.println("@SP");
@@ -71,71 +331,60 @@ public class CodeWriter {
             out.println("M=-1");      // set true = -1
             out.println("(" + endLabel + ")");
         } else if (command.equals("and")) {
-            out.println("@SP");
-            out.println("AM=M-1");
-            out.println("D=M");
-            out.println("A=A-1");
-            out.println("M=M&D");
+            out.write(AND);
         } else if (command.equals("or")) {
-            out.println("@SP");
-            out.println("AM=M-1");
-            out.println("D=M");
-            out.println("A=A-1");
-            out.println("M=M|D");
+            out.write(OR);
         } else if (command.equals("not")) {
-            out.println("@SP");
-            out.println("A=M-1");
-            out.println("M=!M");
+            out.write(NOT);
         }
     }
     
     // Translates push and pop commands.
     public void writePushPop(int commandType, String segment, int index) {
+        if (specializeOperands && writeSpecializedPushPop(commandType, segment, index)) {
+            return;
+        }
         if (commandType == Parser.C_PUSH) {
             if (segment.equals("constant")) {
-                out.println("@" + index);
+                out.printAddress(index);
                 out.println("D=A");
             } else if (segment.equals("local")) {
                 out.println("@LCL");
                 out.println("D=M");
-                out.println("@" + index);
+                out.printAddress(index);
                 out.println("A=D+A");
                 out.println("D=M");
             } else if (segment.equals("argument")) {
                 out.println("@ARG");
                 out.println("D=M");
-                out.println("@" + index);
+                out.printAddress(index);
                 out.println("A=D+A");
                 out.println("D=M");
             } else if (segment.equals("this")) {
                 out.println("@THIS");
                 out.println("D=M");
-                out.println("@" + index);
+                out.printAddress(index);
                 out.println("A=D+A");
                 out.println("D=M");
             } else if (segment.equals("that")) {
                 out.println("@THAT");
                 out.println("D=M");
-                out.println("@" + index);
+                out.printAddress(index);
                 out.println("A=D+A");
                 out.println("D=M");
             } else if (segment.equals("pointer")) {
                 int address = (index == 0) ? 3 : 4;
-                out.println("@" + address);
+                out.printAddress(address);
                 out.println("D=M");
             } else if (segment.equals("temp")) {
-                out.println("@" + (5 + index));
+                out.printAddress(5 + index);
                 out.println("D=M");
             } else if (segment.equals("static")) {
-                out.println("@" + fileName + "." + index);
+                out.printAddress(staticFileName, index);
                 out.println("D=M");
             }
             // Push D onto the stack.
-            out.println("@SP");
-            out.println("A=M");
-            out.println("M=D");
-            out.println("@SP");
-            out.println("M=M+1");
+            out.write(PUSH_D);
         } else if (commandType == Parser.C_POP) {
             if (segment.equals("local") || segment.equals("argument") ||
                 segment.equals("this") || segment.equals("that")) {
@@ -144,34 +393,122 @@ public class CodeWriter {
                               segment.equals("this")     ? "THIS" : "THAT";
                 out.println("@" + base);
                 out.println("D=M");
-                out.println("@" + index);
+                out.printAddress(index);
                 out.println("D=D+A");
                 out.println("@R13");
                 out.println("M=D");
             } else if (segment.equals("pointer")) {
                 int address = (index == 0) ? 3 : 4;
-                out.println("@" + address);
+                out.printAddress(address);
                 out.println("D=A");
                 out.println("@R13");
                 out.println("M=D");
             } else if (segment.equals("temp")) {
-                out.println("@" + (5 + index));
+                out.printAddress(5 + index);
                 out.println("D=A");
                 out.println("@R13");
                 out.println("M=D");
             } else if (segment.equals("static")) {
-                out.println("@" + fileName + "." + index);
+                out.printAddress(staticFileName, index);
                 out.println("D=A");
                 out.println("@R13");
                 out.println("M=D");
             }
-            // Pop the top-of-stack into D.
+            // Pop the top-of-stack into the address in R13.
+            out.write(POP_TO_R13);
+        }
+    }
+    
+    // Writes a cheaper sequence for operands whose address or value is known up front.
+    // Returns false if the general sequence has to be used. Instructions per command
+    // (general -> specialized, checked by printPushPopCosts):
+    //   push constant 0 / 1                          7 -> 5   (M=0 / M=1 on the stack top)
+    //   push local/argument/this/that 0 / 1         10 -> 8   (A=M / A=M+1 instead of @i, A=D+A)
+    //   push local/argument/this/that 2              10 -> 9   (A=A+1 chain; from 3 on it costs 7+i >= 10)
+    //   pop  local/argument/this/that 0 / 1         12 -> 6   (no R13 indirection)
+    //   pop  local/argument/this/that i (2..6)      12 -> 5+i (A=A+1 chain)
+    //   pop  pointer/temp/static                    10 -> 5   (fixed address, no R13)
+    private boolean writeSpecializedPushPop(int commandType, String segment, int index) {
+        String base = segment.equals("local")    ? "LCL" :
+                      segment.equals("argument") ? "ARG" :
+                      segment.equals("this")     ? "THIS" :
+                      segment.equals("that")     ? "THAT" : null;
+        if (commandType == Parser.C_PUSH) {
+            if (segment.equals("constant") && (index == 0 || index == 1)) {
+                out.println("@SP");
+                out.println("A=M");
+                out.println("M=" + index);
+            } else if (base != null && index <= 2) {
+                out.println("@" + base);
+                out.println(index == 0 ? "A=M" : "A=M+1");
+                for (int i = 1; i < index; i++) {
+                    out.println("A=A+1");
+                }
+                out.println("D=M");
+                out.println("@SP");
+                out.println("A=M");
+                out.println("M=D");
+            } else {
+                return false;
+            }
+            out.println("@SP");
+            out.println("M=M+1");
+            return true;
+        } else if (commandType == Parser.C_POP) {
+            String address;
+            if (segment.equals("pointer")) {
+                address = String.valueOf(index == 0 ? 3 : 4);
+            } else if (segment.equals("temp")) {
+                address = String.valueOf(5 + index);
+            } else if (segment.equals("static")) {
+                address = staticSymbol(index);
+            } else if (base != null && index <= 6) {
+                address = null;
+            } else {
+                return false;
+            }
+            // Pop the top-of-stack into D, then store it.
             out.println("@SP");
             out.println("AM=M-1");
             out.println("D=M");
-            out.println("@R13");
-            out.println("A=M");
+            if (address != null) {
+                out.println("@" + address);
+            } else {
+                out.println("@" + base);
+                out.println(index == 0 ? "A=M" : "A=M+1");
+                for (int i = 1; i < index; i++) {
+                    out.println("A=A+1");
+                }
+            }
             out.println("M=D");
+            return true;
+        }
+        return false;
+    }
+    
+    // Prints the instruction count of every push/pop operand class, general and specialized.
+    public static void printPushPopCosts() {
+        String[][] cases = {
+            {"push", "constant", "0"}, {"push", "constant", "1"}, {"push", "constant", "7"},
+            {"push", "local", "0"}, {"push", "local", "1"}, {"push", "local", "2"},
+            {"push", "local", "3"}, {"push", "local", "5"},
+            {"push", "pointer", "0"}, {"push", "temp", "3"}, {"push", "static", "2"},
+            {"pop", "local", "0"}, {"pop", "local", "1"}, {"pop", "local", "6"}, {"pop", "local", "7"},
+            {"pop", "pointer", "1"}, {"pop", "temp", "3"}, {"pop", "static", "2"},
+        };
+        System.out.println("command               general  specialized");
+        for (String[] c : cases) {
+            int type = c[0].equals("push") ? Parser.C_PUSH : Parser.C_POP;
+            int index = Integer.parseInt(c[2]);
+            int[] sizes = new int[2];
+            for (int i = 0; i < 2; i++) {
+                CodeWriter writer = new CodeWriter();
+                writer.setFileName("Cost");
+                writer.setSpecializeOperands(i == 1);
+                writer.writePushPop(type, c[1], index);
+                sizes[i] = writer.getInstructionCount();
+            }
+            System.out.println(String.format("%-22s %7d  %11d", c[0] + " " + c[1] + " " + c[2], sizes[0], sizes[1]));
         }
     }
     // --------------------- End of Project 7 Methods ---------------------
@@ -180,6 +517,7 @@ public class CodeWriter {
     
     // Writes the bootstrap code.
     public void writeInit() {
+        markRuntimeCode();
         // Set SP = 256.
         out.println("@256");
         out.println("D=A");
@@ -187,24 +525,83 @@ public class CodeWriter {
         out.println("M=D");
         // Call Sys.init with 0 arguments.
         writeCall("Sys.init", 0);
+        if (sourceMap != null) {
+            // Nothing returns here: the address after the call is the first shared routine.
+            sourceMap.getReturnPoints().remove(out.getAddress());
+        }
+        // Sys.init never returns, so the routines can follow the bootstrap directly.
+        writeSharedRoutines();
+    }
+    
+    // Writes the shared routines enabled by setSharedFrames and setComparisonPlan.
+    // They must not be reached by falling through from the code before them.
+    public void writeSharedRoutines() {
+        markRuntimeCode();
+        if (sharedFrames) {
+            int start = getInstructionCount();
+            writeCallRoutine();
+            writeReturnRoutine();
+            routineSize = getInstructionCount() - start;
+        }
+        if (comparisonPlan != null) {
+            writeCompareRoutine("JEQ");
+            writeCompareRoutine("JGT");
+            writeCompareRoutine("JLT");
+        }
+    }
+    
+    // Attributes the following code to no VM line in the source map.
+    private void markRuntimeCode() {
+        if (sourceMap != null) {
+            sourceMap.addLine(out.getAddress(), "-", 0, "");
+        }
+    }
+    
+    // Writes the shared routine for one comparison. Expects the return address in D;
+    // R15 holds it while the routine runs.
+    private void writeCompareRoutine(String jumpCondition) {
+        String routine = "COMPARE_" + jumpCondition;
+        out.println("(" + routine + ")");
+        out.println("@R15");
+        out.println("M=D");
+        out.println("@SP");
+        out.println("AM=M-1");    // pop y
+        out.println("D=M");
+        out.println("A=A-1");     // now point to x
+        out.println("D=M-D");     // D = x - y
+        out.println("M=-1");      // assume true
+        out.println("@" + routine + "_END");
+        out.println("D;" + jumpCondition);
+        out.println("@SP");
+        out.println("A=M-1");
+        out.println("M=0");       // set false = 0
+        out.println("(" + routine + "_END)");
+        out.println("@R15");
+        out.println("A=M");
+        out.println("0;JMP");
+    }
+    
+    // Returns the label namespaced by the current function.
+    protected String functionLabel(String label) {
+        return currentFunction.isEmpty() ? label : currentFunction + "$" + label;
     }
     
     // Writes a label command. The label is namespaced by the current function.
     public void writeLabel(String label) {
-        String fullLabel = currentFunction.isEmpty() ? label : currentFunction + "$" + label;
+        String fullLabel = functionLabel(label);
         out.println("(" + fullLabel + ")");
     }
     
     // Writes an unconditional goto command.
     public void writeGoto(String label) {
-        String fullLabel = currentFunction.isEmpty() ? label : currentFunction + "$" + label;
+        String fullLabel = functionLabel(label);
         out.println("@" + fullLabel);
         out.println("0;JMP");
     }
     
     // Writes a conditional if-goto command.
     public void writeIf(String label) {
-        String fullLabel = currentFunction.isEmpty() ? label : currentFunction + "$" + label;
+        String fullLabel = functionLabel(label);
         out.println("@SP");
         out.println("AM=M-1");
         out.println("D=M");
@@ -212,38 +609,170 @@ public class CodeWriter {
         out.println("D;JNE");
     }
     
+    // Writes "not; if-goto" as one branch: jumps if the popped value is zero.
+    public void writeIfNot(String label) {
+        String fullLabel = functionLabel(label);
+        out.println("@SP");
+        out.println("AM=M-1");
+        out.println("D=M");
+        out.println("@" + fullLabel);
+        out.println("D;JEQ");
+    }
+    
     // Writes a function declaration command.
     public void writeFunction(String functionName, int nLocals) {
         setCurrentFunction(functionName);  // update the current function context
         out.println("(" + functionName + ")");
-        // Initialize nLocal local variables by pushing 0 repeatedly.
+        if (sourceMap != null) {
+            sourceMap.addFunctionEntry(out.getAddress(), functionName);
+            sourceMap.addLine(out.getAddress(), fileName == null ? "-" : fileName, lineNumber, functionName);
+        }
+        boolean[] zero = new boolean[nLocals];
+        int zeroCount = 0;
         for (int i = 0; i < nLocals; i++) {
-            out.println("@0");
+            zero[i] = writtenLocals == null || !writtenLocals.isWrittenFirst(functionName, i);
+            zeroCount += zero[i] ? 1 : 0;
+        }
+        int strategy = !specializeOperands ? PUSH_EACH : zeroCount > UNROLL_LIMIT ? LOOP : UNROLLED;
+        writeLocalInit(nLocals, zero, strategy);
+    }
+    
+    // Allocates the locals of a new frame (on entry SP == LCL) and sets those marked in zero
+    // to 0. Instructions and cycles for n locals, all zeroed (checked by printLocalInitCosts):
+    //   PUSH_EACH  push constant 0 per local          7n words, 7n cycles
+    //   UNROLLED   @SP A=M M=0 (A=A+1 M=0)... SP+=n   2n+4 words (4 for n = 1), same cycles
+    //   LOOP       SP++ and M=0 until D reaches 0     9 words, 7n+2 cycles
+    // UNROLLED is used up to UNROLL_LIMIT zeroed locals: it costs at most 11 words more than
+    // LOOP per function and saves 5n-2 cycles on every call. Locals that are not zeroed only
+    // cost the A=A+1 step over them, or nothing after the last zeroed one.
+    private void writeLocalInit(int nLocals, boolean[] zero, int strategy) {
+        if (nLocals == 0) {
+            return;
+        }
+        if (strategy == PUSH_EACH) {
+            for (int i = 0; i < nLocals; i++) {
+                out.write(PUSH_ZERO);
+            }
+            return;
+        }
+        if (strategy == LOOP) {
+            String loop = uniqueLabel("LOCALS", labelCounter++);
+            out.printAddress(nLocals);
             out.println("D=A");
+            out.println("(" + loop + ")");
+            out.println("@SP");
+            out.println("M=M+1");
+            out.println("A=M-1");
+            out.println("M=0");
+            out.println("D=D-1");
+            out.println("@" + loop);
+            out.println("D;JGT");
+            return;
+        }
+        int last = -1;
+        for (int i = 0; i < nLocals; i++) {
+            if (zero[i]) {
+                last = i;
+            }
+        }
+        if (nLocals == 1 && last == 0) {
+            out.println("@SP");
+            out.println("M=M+1");
+            out.println("A=M-1");
+            out.println("M=0");
+            return;
+        }
+        if (last >= 0) {
             out.println("@SP");
             out.println("A=M");
-            out.println("M=D");
+            for (int i = 0; i <= last; i++) {
+                if (i > 0) {
+                    out.println("A=A+1");
+                }
+                if (zero[i]) {
+                    out.println("M=0");
+                }
+            }
+            if (last == nLocals - 1) {
+                out.println("D=A+1");
+                out.println("@SP");
+                out.println("M=D");
+                return;
+            }
+        }
+        // SP += nLocals.
+        if (nLocals == 1) {
             out.println("@SP");
             out.println("M=M+1");
+            return;
+        }
+        out.printAddress(nLocals);
+        out.println("D=A");
+        out.println("@SP");
+        out.println("M=D+M");
+    }
+    
+    // Prints the size and cycles of each way to initialize n locals (see writeLocalInit),
+    // measured by running the generated code.
+    public static void printLocalInitCosts() {
+        String[] names = {"push-each", "unrolled", "loop"};
+        System.out.println("locals   push-each      unrolled          loop   chosen");
+        System.out.println("         words/cycles   words/cycles   words/cycles");
+        for (int n : new int[] {1, 2, 3, 4, 6, 8, 9, 12, 16}) {
+            StringBuilder row = new StringBuilder(String.format("%6d", n));
+            for (int strategy = PUSH_EACH; strategy <= LOOP; strategy++) {
+                CodeWriter writer = new CodeWriter();
+                writer.setFileName("Cost");
+                boolean[] zero = new boolean[n];
+                Arrays.fill(zero, true);
+                writer.writeLocalInit(n, zero, strategy);
+                int words = writer.getInstructionCount();
+                writer.out.println("(END)");
+                writer.out.println("@END");
+                writer.out.println("0;JMP");
+                HackEmulator emulator = new HackEmulator(HackAssembler.assemble(writer.getAssembly()));
+                emulator.setRam(0, 256);
+                emulator.run(1_000_000);
+                // Leave out the two instructions of the end loop.
+                row.append(String.format("   %5d/%-6d", words, emulator.getCycles() - 2));
+            }
+            row.append("   ").append(names[n > UNROLL_LIMIT ? LOOP : UNROLLED]);
+            System.out.println(row);
         }
     }
     
     // Writes a call command.
     public void writeCall(String functionName, int nArgs) {
-        String returnLabel = "RETURN_LABEL" + returnLabelCounter++;
+        String returnLabel = uniqueLabel("RETURN_LABEL", returnLabelCounter++);
+        if (sharedFrames) {
+            // R13 = nArgs, R14 = target, D = return address; the routine does the rest.
+            callCount++;
+            out.printAddress(nArgs);
+            out.println("D=A");
+            out.println("@R13");
+            out.println("M=D");
+            out.println("@" + functionName);
+            out.println("D=A");
+            out.println("@R14");
+            out.println("M=D");
+            out.println("@" + returnLabel);
+            out.println("D=A");
+            out.println("@CALL_ROUTINE");
+            out.println("0;JMP");
+            out.println("(" + returnLabel + ")");
+            markReturnPoint();
+            return;
+        }
         // Push return address.
         out.println("@" + returnLabel);
         out.println("D=A");
         pushD();
         // Push caller's LCL, ARG, THIS, THAT.
-        out.println("@LCL"); out.println("D=M"); pushD();
-        out.println("@ARG"); out.println("D=M"); pushD();
-        out.println("@THIS"); out.println("D=M"); pushD();
-        out.println("@THAT"); out.println("D=M"); pushD();
+        out.write(SAVE_FRAME);
         // Reposition ARG = SP - nArgs - 5.
         out.println("@SP");
         out.println("D=M");
-        out.println("@" + (nArgs + 5));
+        out.printAddress(nArgs + 5);
         out.println("D=D-A");
         out.println("@ARG");
         out.println("M=D");
@@ -257,75 +786,137 @@ public class CodeWriter {
         out.println("0;JMP");
         // Declare the return label.
         out.println("(" + returnLabel + ")");
+        markReturnPoint();
+    }
+    
+    // Records the address after a call in the source map.
+    private void markReturnPoint() {
+        if (sourceMap != null) {
+            sourceMap.addReturnPoint(out.getAddress());
+        }
+    }
+    
+    // Writes "call functionName nArgs" directly followed by "return" in a function that was
+    // called with callerArgs >= nArgs arguments. The callee takes over the current frame:
+    // its arguments replace ours, the saved caller state moves down next to them if it has
+    // fewer, and the jump to it needs no return address, so the stack does not grow.
+    //   nArgs == callerArgs   pop the arguments into argument 0..nArgs-1, SP = LCL
+    //   nArgs <  callerArgs   the same, after moving the 5 saved words down by the difference
+    public void writeTailCall(String functionName, int nArgs, int callerArgs) {
+        tailCallCount++;
+        for (int i = nArgs - 1; i >= 0; i--) {
+            writePushPop(Parser.C_POP, "argument", i);
+        }
+        int shift = callerArgs - nArgs;
+        if (shift > 0) {
+            // R13 = LCL - 5, the saved return address; R14 = where it goes.
+            out.println("@LCL");
+            out.println("D=M");
+            out.printAddress(5);
+            out.println("D=D-A");
+            out.println("@R13");
+            out.println("M=D");
+            out.printAddress(shift);
+            out.println("D=D-A");
+            out.println("@R14");
+            out.println("M=D");
+            for (int i = 0; i < 5; i++) {
+                out.println("@R13");
+                out.println("AM=M+1");
+                out.println("A=A-1");
+                out.println("D=M");
+                out.println("@R14");
+                out.println("AM=M+1");
+                out.println("A=A-1");
+                out.println("M=D");
+            }
+            // R14 now points just past the moved words: the callee's LCL.
+            out.println("@R14");
+            out.println("D=M");
+            out.println("@LCL");
+            out.println("M=D");
+        } else {
+            out.println("@LCL");
+            out.println("D=M");
+        }
+        out.println("@SP");
+        out.println("M=D");
+        out.println("@" + functionName);
+        out.println("0;JMP");
+    }
+    
+    public int getTailCallCount() {
+        return tailCallCount;
     }
     
     // Writes a return command.
     public void writeReturn() {
-        // FRAME = LCL; store FRAME in R13.
-        out.println("@LCL");
+        if (sharedFrames) {
+            returnCount++;
+            out.println("@RETURN_ROUTINE");
+            out.println("0;JMP");
+            return;
+        }
+        writeReturnBody();
+    }
+    
+    // Writes the shared call routine. Expects nArgs in R13, the target in R14
+    // and the return address in D.
+    private void writeCallRoutine() {
+        out.println("(CALL_ROUTINE)");
+        pushD();
+        out.write(SAVE_FRAME);
+        // Reposition ARG = SP - nArgs - 5.
+        out.println("@SP");
         out.println("D=M");
         out.println("@R13");
-        out.println("M=D");
-        // RET = *(FRAME - 5); store return address in R14.
+        out.println("D=D-M");
         out.println("@5");
-        out.println("A=D-A");
-        out.println("D=M");
-        out.println("@R14");
-        out.println("M=D");
-        // *ARG = pop(); reposition return value for caller.
-        out.println("@SP");
-        out.println("AM=M-1");
-        out.println("D=M");
+        out.println("D=D-A");
         out.println("@ARG");
-        out.println("A=M");
         out.println("M=D");
-        // SP = ARG + 1.
-        out.println("@ARG");
-        out.println("D=M+1");
+        // Set LCL = SP.
         out.println("@SP");
-        out.println("M=D");
-        // Restore THAT, THIS, ARG, and LCL (in that order).
-        out.println("@R13");
-        out.println("AM=M-1");
-        out.println("D=M");
-        out.println("@THAT");
-        out.println("M=D");
-        
-        out.println("@R13");
-        out.println("AM=M-1");
-        out.println("D=M");
-        out.println("@THIS");
-        out.println("M=D");
-        
-        out.println("@R13");
-        out.println("AM=M-1");
-        out.println("D=M");
-        out.println("@ARG");
-        out.println("M=D");
-        
-        out.println("@R13");
-        out.println("AM=M-1");
         out.println("D=M");
         out.println("@LCL");
         out.println("M=D");
-        // Go to return address.
+        // Jump to the target.
         out.println("@R14");
         out.println("A=M");
         out.println("0;JMP");
     }
     
+    // Writes the shared return routine.
+    private void writeReturnRoutine() {
+        out.println("(RETURN_ROUTINE)");
+        writeReturnBody();
+    }
+    
+    // Writes the frame restore sequence used by every return (see RETURN_BODY).
+    private void writeReturnBody() {
+        out.write(RETURN_BODY);
+    }
+    
     // Helper method: pushes the value in D onto the stack.
     private void pushD() {
-        out.println("@SP");
-        out.println("A=M");
-        out.println("M=D");
-        out.println("@SP");
-        out.println("M=M+1");
+        out.write(PUSH_D);
     }
     
     // Closes the output writer.
     public void close() {
         out.close();
     }
+    
+    // Closes an in-memory writer and returns the assembly it holds.
+    public String getAssembly() {
+        close();
+        return out.getText();
+    }
+    
+    // Closes an in-memory writer and returns the assembly it holds as ASCII bytes.
+    public byte[] getAssemblyBytes() {
+        close();
+        return out.getBytes();
+    }
 }
 
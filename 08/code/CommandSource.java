@@ -0,0 +1,15 @@
+import java.io.IOException;
+
+// A stream of decoded VM commands with their source lines (see Parser and ConstantFolder).
+public interface CommandSource {
+    // Are there more commands in the input?
+    boolean hasMoreCommands() throws IOException;
+
+    // Makes the next command current.
+    void advance() throws IOException;
+
+    VMCommand current();
+
+    // Source line of the current command.
+    int lineNumber();
+}
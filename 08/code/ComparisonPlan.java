@@ -0,0 +1,91 @@
+import java.io.*;
+import java.util.*;
+
+// Decides, per eq/gt/lt command, whether it is expanded inline or jumps into the shared
+// comparison routine. A site is identified by "<file>:<line>", e.g. "Math:42".
+public class ComparisonPlan {
+    // Extra ROM words an inline comparison costs compared with a call to the shared routine.
+    public static final int EXTRA_INLINE_SIZE = 11;
+
+    private final Set<String> inlineSites = new HashSet<>();
+    private int siteCount = 0;
+
+    // Builds a plan that spends at most budget ROM words on inline comparisons.
+    // The sites that ran most often according to the profile are inlined first;
+    // sites missing from the profile keep their file and line order.
+    public static ComparisonPlan build(List<File> files, Map<String, Long> profile, int budget)
+            throws IOException {
+        ComparisonPlan plan = new ComparisonPlan();
+        List<String> sites = new ArrayList<>();
+        for (File file : files) {
+            String fileName = file.getName().replace(".vm", "");
+            Parser parser = new Parser(file.getAbsolutePath());
+            while (parser.hasMoreCommands()) {
+                parser.advance();
+                if (isComparison(parser.current())) {
+                    sites.add(site(fileName, parser.lineNumber()));
+                }
+            }
+        }
+        plan.siteCount = sites.size();
+        sites.sort(Comparator.comparing((String site) -> profile.getOrDefault(site, 0L)).reversed());
+        for (String site : sites) {
+            if (budget < EXTRA_INLINE_SIZE) {
+                break;
+            }
+            plan.inlineSites.add(site);
+            budget -= EXTRA_INLINE_SIZE;
+        }
+        return plan;
+    }
+
+    // Reads a profile with one "<file>:<line> <count>" entry per line.
+    public static Map<String, Long> readProfile(String path) throws IOException {
+        Map<String, Long> profile = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] parts = line.split("\\s+");
+                profile.put(parts[0].replace(".vm:", ":"), Long.parseLong(parts[1]));
+            }
+        }
+        return profile;
+    }
+
+    public static String site(String fileName, int line) {
+        return fileName + ":" + line;
+    }
+
+    public static boolean isComparison(VMCommand command) {
+        return command.type == Parser.C_ARITHMETIC
+                && (command.arg1.equals("eq") || command.arg1.equals("gt") || command.arg1.equals("lt"));
+    }
+
+    public boolean isInline(String site) {
+        return inlineSites.contains(site);
+    }
+
+    // The inline sites of one file, sorted ("<file>:<line>").
+    public List<String> getInlineSites(String fileName) {
+        List<String> sites = new ArrayList<>();
+        for (String site : inlineSites) {
+            if (site.startsWith(fileName + ":")) {
+                sites.add(site);
+            }
+        }
+        Collections.sort(sites);
+        return sites;
+    }
+
+    public int getSiteCount() {
+        return siteCount;
+    }
+
+    public int getInlineSiteCount() {
+        return inlineSites.size();
+    }
+}
@@ -0,0 +1,265 @@
+import java.io.IOException;
+import java.util.*;
+
+// Simplifies a stream of VM commands before translation. Sits between a Parser and the
+// CodeWriter and keeps the last two commands pending, so that a rule can still rewrite them:
+//   fold-constant    push constant a; push constant b; add  ->  push constant a+b
+//                    (any arithmetic command on constants, and neg/not on one constant)
+//   identity         x; push constant 0; add/sub/or  ->  x   (and x; push constant 0 ... ; and
+//                    x & -1; 0 + x; 0 | x)
+//   double-negation  neg; neg  ->  (nothing), and not; not
+//   constant-branch  push constant 0; if-goto L  ->  (nothing); any other constant  ->  goto L
+//   negated-branch   not; if-goto L  ->  if-not-goto L   (Parser.C_IF_NOT, CodeWriter.writeIfNot)
+//   jump-to-next     goto L; label L  ->  label L
+//   push-pop-same    push s i; pop s i  ->  (nothing)
+// Folded values follow the generated code: 16-bit wraparound, and eq/gt/lt compare the
+// 16-bit difference x - y with 0, as the Hack code does. A negative constant is written as
+// "push constant ~v; not". Commands never move across a label, so jump targets see the
+// same stack as before.
+public class ConstantFolder implements CommandSource {
+    // A pending command, or a constant whose commands are not written yet.
+    private static final class Entry {
+        final VMCommand command;
+        final int line;
+        final boolean constant;
+        final int value;
+
+        Entry(VMCommand command, int line) {
+            this.command = command;
+            this.line = line;
+            this.constant = command.type == Parser.C_PUSH && command.arg1.equals("constant");
+            this.value = command.arg2;
+        }
+
+        Entry(int value, int line) {
+            this.command = null;
+            this.line = line;
+            this.constant = true;
+            this.value = (short) value;
+        }
+
+        boolean isArithmetic(String name) {
+            return command != null && command.type == Parser.C_ARITHMETIC && command.arg1.equals(name);
+        }
+
+        // Number of commands release writes for the entry.
+        int length() {
+            return command != null || value >= 0 ? 1 : 2;
+        }
+
+        // A push without side effects on anything but the stack.
+        boolean isPush() {
+            return command != null && command.type == Parser.C_PUSH;
+        }
+    }
+
+    private static final int WINDOW_SIZE = 2;
+
+    private final CommandSource input;
+    private final List<Entry> pending = new ArrayList<>();
+    // Commands ready to be returned, with their lines.
+    private final ArrayDeque<VMCommand> ready = new ArrayDeque<>();
+    private final ArrayDeque<Integer> readyLines = new ArrayDeque<>();
+    private VMCommand current;
+    private int currentLine;
+    private boolean inputDone = false;
+    // Rewrites per rule, and the commands read and written.
+    private final Map<String, Integer> rewrites = new LinkedHashMap<>();
+    private int inputCount = 0;
+    private int outputCount = 0;
+
+    public ConstantFolder(CommandSource input) {
+        this.input = input;
+        for (String rule : new String[] {"fold-constant", "identity", "double-negation", "constant-branch",
+                "negated-branch", "jump-to-next", "push-pop-same"}) {
+            rewrites.put(rule, 0);
+        }
+    }
+
+    @Override
+    public boolean hasMoreCommands() throws IOException {
+        while (ready.isEmpty() && !inputDone) {
+            if (input.hasMoreCommands()) {
+                input.advance();
+                inputCount++;
+                add(new Entry(input.current(), input.lineNumber()));
+                while (pending.size() > WINDOW_SIZE) {
+                    release(pending.remove(0));
+                }
+            } else {
+                inputDone = true;
+                for (Entry entry : pending) {
+                    release(entry);
+                }
+                pending.clear();
+            }
+        }
+        return !ready.isEmpty();
+    }
+
+    @Override
+    public void advance() throws IOException {
+        if (!hasMoreCommands()) {
+            throw new IllegalStateException("No more commands");
+        }
+        current = ready.poll();
+        currentLine = readyLines.poll();
+    }
+
+    @Override
+    public VMCommand current() {
+        return current;
+    }
+
+    @Override
+    public int lineNumber() {
+        return currentLine;
+    }
+
+    // Rewrites per rule.
+    public Map<String, Integer> getRewrites() {
+        return rewrites;
+    }
+
+    // Number of commands read less the number written, once the input is used up.
+    public int getRemovedCommands() {
+        return inputCount - outputCount;
+    }
+
+    // Applies the rules to the pending commands plus the new one.
+    private void add(Entry entry) {
+        VMCommand command = entry.command;
+        int size = pending.size();
+        Entry last = size > 0 ? pending.get(size - 1) : null;
+        Entry previous = size > 1 ? pending.get(size - 2) : null;
+        switch (command.type) {
+            case Parser.C_ARITHMETIC: {
+                String name = command.arg1;
+                boolean unary = name.equals("neg") || name.equals("not");
+                if (unary && last != null && last.constant) {
+                    replace(1, "fold-constant", new Entry(fold(name, last.value, 0), entry.line));
+                    return;
+                }
+                if (unary && last != null && last.isArithmetic(name)) {
+                    replace(1, "double-negation", null);
+                    return;
+                }
+                if (!unary && last != null && last.constant && previous != null && previous.constant) {
+                    replace(2, "fold-constant", new Entry(fold(name, previous.value, last.value), entry.line));
+                    return;
+                }
+                if (last != null && last.constant && isRightIdentity(name, last.value)) {
+                    replace(1, "identity", null);
+                    return;
+                }
+                if (previous != null && previous.constant && last.isPush()
+                        && isLeftIdentity(name, previous.value)) {
+                    pending.remove(size - 2);
+                    count("identity");
+                    return;
+                }
+                break;
+            }
+            case Parser.C_IF:
+                if (last != null && last.constant) {
+                    boolean taken = last.value != 0;
+                    pending.remove(size - 1);
+                    if (taken) {
+                        pending.add(new Entry(new VMCommand(Parser.C_GOTO, command.arg1, -1), entry.line));
+                    }
+                    count("constant-branch");
+                    return;
+                }
+                if (last != null && last.isArithmetic("not")) {
+                    pending.remove(size - 1);
+                    pending.add(new Entry(new VMCommand(Parser.C_IF_NOT, command.arg1, -1), entry.line));
+                    count("negated-branch");
+                    return;
+                }
+                break;
+            case Parser.C_LABEL:
+                if (last != null && last.command != null && last.command.type == Parser.C_GOTO
+                        && last.command.arg1.equals(command.arg1)) {
+                    pending.remove(size - 1);
+                    count("jump-to-next");
+                }
+                break;
+            case Parser.C_POP:
+                if (last != null && last.command != null && last.command.type == Parser.C_PUSH
+                        && last.command.arg1.equals(command.arg1) && last.command.arg2 == command.arg2) {
+                    replace(1, "push-pop-same", null);
+                    return;
+                }
+                break;
+            default:
+                break;
+        }
+        pending.add(entry);
+    }
+
+    // Replaces the last count pending entries and the new command with result (a folded
+    // constant), or with nothing if result is null. The rewrite is counted only if it writes
+    // fewer commands: "push constant 0; not" folds to -1, which is written the same way.
+    private void replace(int count, String rule, Entry result) {
+        int removed = 1;
+        for (int i = 0; i < count; i++) {
+            removed += pending.remove(pending.size() - 1).length();
+        }
+        if (result == null || result.length() < removed) {
+            count(rule);
+        }
+        if (result != null) {
+            pending.add(result);
+        }
+    }
+
+    private void count(String rule) {
+        rewrites.merge(rule, 1, Integer::sum);
+    }
+
+    // x op c == x
+    private static boolean isRightIdentity(String name, int value) {
+        return (value == 0 && (name.equals("add") || name.equals("sub") || name.equals("or")))
+                || (value == -1 && name.equals("and"));
+    }
+
+    // c op x == x
+    private static boolean isLeftIdentity(String name, int value) {
+        return (value == 0 && (name.equals("add") || name.equals("or")))
+                || (value == -1 && name.equals("and"));
+    }
+
+    // The value the Hack code computes for the command.
+    private static int fold(String name, int x, int y) {
+        switch (name) {
+            case "add": return (short) (x + y);
+            case "sub": return (short) (x - y);
+            case "neg": return (short) -x;
+            case "not": return (short) ~x;
+            case "and": return x & y;
+            case "or":  return x | y;
+            case "eq":  return (short) (x - y) == 0 ? -1 : 0;
+            case "gt":  return (short) (x - y) > 0 ? -1 : 0;
+            case "lt":  return (short) (x - y) < 0 ? -1 : 0;
+            default: throw new IllegalArgumentException("Unknown command: " + name);
+        }
+    }
+
+    // Moves a pending entry to the output.
+    private void release(Entry entry) {
+        if (entry.command != null) {
+            emit(entry.command, entry.line);
+        } else if (entry.value >= 0) {
+            emit(new VMCommand(Parser.C_PUSH, "constant", entry.value), entry.line);
+        } else {
+            emit(new VMCommand(Parser.C_PUSH, "constant", ~entry.value), entry.line);
+            emit(new VMCommand(Parser.C_ARITHMETIC, "not", -1), entry.line);
+        }
+    }
+
+    private void emit(VMCommand command, int line) {
+        outputCount++;
+        ready.add(command);
+        readyLines.add(line);
+    }
+}
@@ -0,0 +1,339 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+// Translates Hack assembly into 16-bit machine words (two passes: labels, then code).
+//
+// Usage: java HackAssembler <file.asm>   (writes file.hack)
+public class HackAssembler {
+    // comp field (a-bit + c1..c6) of every legal computation.
+    private static final Map<String, Integer> COMP = new HashMap<>();
+    private static final Map<String, Integer> JUMP = new HashMap<>();
+    private static final Map<String, Integer> PREDEFINED = new HashMap<>();
+    // The eight binary digits of every byte value, for writeHack.
+    private static final byte[][] BYTE_TEXT = new byte[256][8];
+
+    static {
+        String[][] comp = {
+            {"0", "0101010"}, {"1", "0111111"}, {"-1", "0111010"}, {"D", "0001100"},
+            {"A", "0110000"}, {"!D", "0001101"}, {"!A", "0110001"}, {"-D", "0001111"},
+            {"-A", "0110011"}, {"D+1", "0011111"}, {"A+1", "0110111"}, {"D-1", "0001110"},
+            {"A-1", "0110010"}, {"D+A", "0000010"}, {"D-A", "0010011"}, {"A-D", "0000111"},
+            {"D&A", "0000000"}, {"D|A", "0010101"},
+            {"M", "1110000"}, {"!M", "1110001"}, {"-M", "1110011"}, {"M+1", "1110111"},
+            {"M-1", "1110010"}, {"D+M", "1000010"}, {"D-M", "1010011"}, {"M-D", "1000111"},
+            {"D&M", "1000000"}, {"D|M", "1010101"},
+            // Commuted forms accepted by the standard assembler.
+            {"A+D", "0000010"}, {"M+D", "1000010"}, {"A&D", "0000000"}, {"M&D", "1000000"},
+            {"A|D", "0010101"}, {"M|D", "1010101"},
+        };
+        for (String[] entry : comp) {
+            COMP.put(entry[0], Integer.parseInt(entry[1], 2));
+        }
+        String[] jumps = {"", "JGT", "JEQ", "JGE", "JLT", "JNE", "JLE", "JMP"};
+        for (int i = 0; i < jumps.length; i++) {
+            JUMP.put(jumps[i], i);
+        }
+        String[] registers = {"SP", "LCL", "ARG", "THIS", "THAT"};
+        for (int i = 0; i < registers.length; i++) {
+            PREDEFINED.put(registers[i], i);
+        }
+        for (int i = 0; i < 16; i++) {
+            PREDEFINED.put("R" + i, i);
+        }
+        PREDEFINED.put("SCREEN", 16384);
+        PREDEFINED.put("KBD", 24576);
+        for (int value = 0; value < 256; value++) {
+            for (int bit = 0; bit < 8; bit++) {
+                BYTE_TEXT[value][bit] = (byte) ((value >> (7 - bit) & 1) == 0 ? '0' : '1');
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1 || !args[0].endsWith(".asm")) {
+            System.out.println("Usage: java HackAssembler <file.asm>");
+            return;
+        }
+        String outputPath = args[0].substring(0, args[0].lastIndexOf('.')) + ".hack";
+        try {
+            writeHack(assembleFile(args[0]), outputPath);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        System.out.println("Assembly complete! Output saved to " + outputPath);
+    }
+
+    // Assembles an .asm file.
+    public static int[] assembleFile(String path) throws IOException {
+        byte[] text = Files.readAllBytes(Paths.get(path));
+        return assemble(text, text.length);
+    }
+
+    // Returns the ROM address of every label declared in an .asm file.
+    public static Map<String, Integer> labelsOfFile(String path) throws IOException {
+        byte[] text = Files.readAllBytes(Paths.get(path));
+        Map<String, Integer> labels = new HashMap<>();
+        LineScanner lines = new LineScanner(text, text.length);
+        int count = 0;
+        while (lines.next()) {
+            if (text[lines.start] == '(') {
+                labels.put(new String(text, lines.start + 1, lines.end - lines.start - 2,
+                        StandardCharsets.US_ASCII), count);
+            } else {
+                count++;
+            }
+        }
+        return labels;
+    }
+
+    // Assembles a program held in one string.
+    public static int[] assemble(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+        return assemble(bytes, bytes.length);
+    }
+
+    // Assembles the first length bytes of ASCII assembly text. Works on the bytes directly:
+    // symbols and C-instructions are looked up by their bytes, so only the first occurrence
+    // of each one is turned into a string.
+    public static int[] assemble(byte[] text, int length) {
+        return new Pass(text).assemble(length);
+    }
+
+    // The state of one assembly run.
+    private static class Pass {
+        private final byte[] text;
+        private final SymbolTable symbols = new SymbolTable();
+        // A program repeats few distinct C-instructions, so their encodings are cached.
+        private final SymbolTable encoded = new SymbolTable();
+        private int nextVariable = 16;
+
+        Pass(byte[] text) {
+            this.text = text;
+            for (Map.Entry<String, Integer> entry : PREDEFINED.entrySet()) {
+                byte[] name = entry.getKey().getBytes(StandardCharsets.US_ASCII);
+                symbols.put(name, 0, name.length, entry.getValue());
+            }
+        }
+
+        int[] assemble(int length) {
+            // First pass: record label addresses and count the instructions.
+            LineScanner lines = new LineScanner(text, length);
+            int count = 0;
+            while (lines.next()) {
+                if (text[lines.start] == '(') {
+                    symbols.put(text, lines.start + 1, lines.end - 1, count);
+                } else {
+                    count++;
+                }
+            }
+            if (count > 32768) {
+                throw new IllegalArgumentException("Program does not fit in ROM: " + count + " instructions");
+            }
+            // Second pass: encode, allocating variables from RAM[16] on.
+            int[] rom = new int[count];
+            int i = 0;
+            lines = new LineScanner(text, length);
+            while (lines.next()) {
+                if (text[lines.start] != '(') {
+                    rom[i++] = encode(lines.start, lines.end);
+                }
+            }
+            return rom;
+        }
+
+        // Encodes the instruction text[start, end).
+        private int encode(int start, int end) {
+            if (text[start] == '@') {
+                if (text[start + 1] >= '0' && text[start + 1] <= '9') {
+                    int value = 0;
+                    for (int k = start + 1; k < end; k++) {
+                        value = value * 10 + (text[k] - '0');
+                    }
+                    if (value > 0x7FFF) {
+                        throw new IllegalArgumentException("Constant does not fit in an A-instruction: " + value);
+                    }
+                    return value;
+                }
+                int address = symbols.get(text, start + 1, end);
+                if (address < 0) {
+                    address = nextVariable++;
+                    symbols.put(text, start + 1, end, address);
+                }
+                if (address > 0x7FFF) {
+                    // Only happens for a label after the last instruction of a full ROM.
+                    throw new IllegalArgumentException("Program does not fit in ROM: "
+                            + new String(text, start + 1, end - start - 1, StandardCharsets.US_ASCII)
+                            + " is at address " + address);
+                }
+                return address;
+            }
+            int word = encoded.get(text, start, end);
+            if (word < 0) {
+                word = encodeC(new String(text, start, end - start, StandardCharsets.US_ASCII));
+                encoded.put(text, start, end, word);
+            }
+            return word;
+        }
+    }
+
+    // Maps byte strings to non-negative ints (open addressing, linear probing), so that
+    // a name found in the text can be looked up without creating a String.
+    private static class SymbolTable {
+        private byte[][] keys = new byte[1024][];
+        private int[] values = new int[1024];
+        private int size = 0;
+
+        // Returns the value of text[start, end), or -1.
+        int get(byte[] text, int start, int end) {
+            int mask = keys.length - 1;
+            for (int slot = hash(text, start, end) & mask; keys[slot] != null; slot = (slot + 1) & mask) {
+                if (Arrays.equals(keys[slot], 0, keys[slot].length, text, start, end)) {
+                    return values[slot];
+                }
+            }
+            return -1;
+        }
+
+        void put(byte[] text, int start, int end, int value) {
+            if (2 * (size + 1) > keys.length) {
+                grow();
+            }
+            int mask = keys.length - 1;
+            int slot = hash(text, start, end) & mask;
+            while (keys[slot] != null) {
+                if (Arrays.equals(keys[slot], 0, keys[slot].length, text, start, end)) {
+                    values[slot] = value;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = Arrays.copyOfRange(text, start, end);
+            values[slot] = value;
+            size++;
+        }
+
+        private void grow() {
+            byte[][] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new byte[oldKeys.length * 2][];
+            values = new int[oldKeys.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) {
+                    put(oldKeys[i], 0, oldKeys[i].length, oldValues[i]);
+                }
+            }
+        }
+
+        private static int hash(byte[] text, int start, int end) {
+            int h = 0;
+            for (int i = start; i < end; i++) {
+                h = 31 * h + text[i];
+            }
+            return h ^ (h >>> 16);
+        }
+    }
+
+    // Steps through the non-empty lines of assembly text, without comments and surrounding
+    // whitespace. After next() returns true, [start, end) holds the line.
+    private static class LineScanner {
+        private final byte[] text;
+        private final int length;
+        private int position = 0;
+        int start;
+        int end;
+
+        LineScanner(byte[] text, int length) {
+            this.text = text;
+            this.length = length;
+        }
+
+        boolean next() {
+            while (position < length) {
+                int lineEnd = position;
+                while (lineEnd < length && text[lineEnd] != '\n') {
+                    lineEnd++;
+                }
+                start = position;
+                end = lineEnd;
+                position = lineEnd + 1;
+                for (int i = start; i + 1 < end; i++) {
+                    if (text[i] == '/' && text[i + 1] == '/') {
+                        end = i;
+                        break;
+                    }
+                }
+                while (start < end && text[start] <= ' ') {
+                    start++;
+                }
+                while (end > start && text[end - 1] <= ' ') {
+                    end--;
+                }
+                if (start < end) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // Writes machine words in the .hack text format: one 16-digit binary number per line.
+    // Each word is copied together from the binary text of its two bytes, and the text is
+    // written in blocks of 4096 lines.
+    public static void writeHack(int[] words, String outputPath) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(outputPath), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            byte[] block = new byte[17 * 4096];
+            int position = 0;
+            for (int word : words) {
+                if (position == block.length) {
+                    writeFully(channel, block, position);
+                    position = 0;
+                }
+                System.arraycopy(BYTE_TEXT[(word >> 8) & 0xFF], 0, block, position, 8);
+                System.arraycopy(BYTE_TEXT[word & 0xFF], 0, block, position + 8, 8);
+                block[position + 16] = '\n';
+                position += 17;
+            }
+            writeFully(channel, block, position);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, byte[] bytes, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    // Encodes a C-instruction: dest=comp;jump.
+    static int encodeC(String instruction) {
+        String dest = "";
+        String comp = instruction;
+        String jump = "";
+        int eq = comp.indexOf('=');
+        if (eq >= 0) {
+            dest = comp.substring(0, eq);
+            comp = comp.substring(eq + 1);
+        }
+        int semi = comp.indexOf(';');
+        if (semi >= 0) {
+            jump = comp.substring(semi + 1);
+            comp = comp.substring(0, semi);
+        }
+        Integer compBits = COMP.get(comp);
+        Integer jumpBits = JUMP.get(jump);
+        if (compBits == null || jumpBits == null) {
+            throw new IllegalArgumentException("Invalid instruction: " + instruction);
+        }
+        int destBits = (dest.contains("A") ? 4 : 0) | (dest.contains("D") ? 2 : 0) | (dest.contains("M") ? 1 : 0);
+        return 0xE000 | (compBits << 6) | (destBits << 3) | jumpBits;
+    }
+}
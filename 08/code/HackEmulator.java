@@ -0,0 +1,334 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+
+// A headless Hack CPU: 32K words of ROM, 32K words of RAM, registers A, D and PC.
+// The ROM is decoded once into flat int arrays (ALU operation, destination, jump),
+// so the main loop is one switch per instruction.
+//
+// Usage: java HackEmulator <file.asm | file.hack> [--max-cycles <n>] [--stop-at <label>]
+//                          [--set <address>=<value>]... [--ram <from>-<to>]
+//                          [--profile <file.map> [--top <n>] [--collapsed <file>] [--line-profile <file>]]
+// --profile reports cycles per VM function and line (see Profiler); the map is written by
+// VMTranslator --source-map.
+public class HackEmulator {
+    // Decoded instruction kinds/ALU operations. A_INSTRUCTION loads value[pc] into A;
+    // the others name the computation of a C-instruction, with y = A or M.
+    private static final int A_INSTRUCTION = 0;
+    private static final int ZERO = 1, ONE = 2, MINUS_ONE = 3, D = 4, Y = 5, NOT_D = 6, NOT_Y = 7,
+            NEG_D = 8, NEG_Y = 9, D_PLUS_1 = 10, Y_PLUS_1 = 11, D_MINUS_1 = 12, Y_MINUS_1 = 13,
+            D_PLUS_Y = 14, D_MINUS_Y = 15, Y_MINUS_D = 16, D_AND_Y = 17, D_OR_Y = 18, OTHER = 19;
+    private static final int[] OPERATIONS = new int[64];
+
+    static {
+        Arrays.fill(OPERATIONS, OTHER);
+        int[][] table = {
+            {0b101010, ZERO}, {0b111111, ONE}, {0b111010, MINUS_ONE}, {0b001100, D}, {0b110000, Y},
+            {0b001101, NOT_D}, {0b110001, NOT_Y}, {0b001111, NEG_D}, {0b110011, NEG_Y},
+            {0b011111, D_PLUS_1}, {0b110111, Y_PLUS_1}, {0b001110, D_MINUS_1}, {0b110010, Y_MINUS_1},
+            {0b000010, D_PLUS_Y}, {0b010011, D_MINUS_Y}, {0b000111, Y_MINUS_D}, {0b000000, D_AND_Y},
+            {0b010101, D_OR_Y},
+        };
+        for (int[] entry : table) {
+            OPERATIONS[entry[0]] = entry[1];
+        }
+    }
+
+    private final int[] rom;
+    // Decoded ROM: operation, A-instruction value or raw word, destination bits (A=4, D=2, M=1),
+    // jump bits (JLT=4, JEQ=2, JGT=1), and whether y is M instead of A.
+    private final int[] operation;
+    private final int[] value;
+    private final int[] dest;
+    private final int[] jump;
+    private final boolean[] readsMemory;
+    // Set for "0;JMP" right after "@<its own address - 1>": the usual end-of-program loop.
+    private final boolean[] haltLoop;
+    private final short[] ram = new short[32768];
+    private int a = 0;
+    private int d = 0;
+    private int pc = 0;
+    private long cycles = 0;
+    private int peakSp = 0;
+    // Address whose execution ends the run (e.g. Sys.halt), or -1.
+    private int stopAddress = -1;
+    // Sees every instruction before it executes; null when not profiling.
+    private Profiler profiler = null;
+
+    public HackEmulator(int[] rom) {
+        this.rom = rom;
+        int n = rom.length;
+        operation = new int[n];
+        value = new int[n];
+        dest = new int[n];
+        jump = new int[n];
+        readsMemory = new boolean[n];
+        haltLoop = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            int instruction = rom[i];
+            if ((instruction & 0x8000) == 0) {
+                operation[i] = A_INSTRUCTION;
+                value[i] = instruction;
+                continue;
+            }
+            operation[i] = OPERATIONS[(instruction >> 6) & 0x3F];
+            value[i] = instruction;
+            readsMemory[i] = (instruction & 0x1000) != 0;
+            dest[i] = (instruction >> 3) & 0x7;
+            jump[i] = instruction & 0x7;
+            haltLoop[i] = jump[i] == 0x7 && i > 0 && rom[i - 1] == i - 1;
+        }
+    }
+
+    // Loads an .asm or .hack file.
+    public static int[] load(String path) throws IOException {
+        if (path.endsWith(".asm")) {
+            return HackAssembler.assembleFile(path);
+        }
+        List<String> lines = Files.readAllLines(Paths.get(path));
+        int[] words = new int[lines.size()];
+        int count = 0;
+        for (String line : lines) {
+            line = line.trim();
+            if (!line.isEmpty()) {
+                words[count++] = Integer.parseInt(line, 2);
+            }
+        }
+        return Arrays.copyOf(words, count);
+    }
+
+    public static void main(String[] args) throws IOException {
+        String path = null;
+        long maxCycles = 100_000_000L;
+        String stopLabel = null;
+        int ramFrom = 0;
+        int ramTo = 2047;
+        Map<Integer, Integer> initialRam = new LinkedHashMap<>();
+        String mapPath = null;
+        String collapsedPath = null;
+        String lineProfilePath = null;
+        int topLines = 20;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("--profile") && i + 1 < args.length) {
+                    mapPath = args[++i];
+                } else if (arg.equals("--collapsed") && i + 1 < args.length) {
+                    collapsedPath = args[++i];
+                } else if (arg.equals("--line-profile") && i + 1 < args.length) {
+                    lineProfilePath = args[++i];
+                } else if (arg.equals("--top") && i + 1 < args.length) {
+                    topLines = Integer.parseInt(args[++i]);
+                } else if (arg.equals("--max-cycles") && i + 1 < args.length) {
+                    maxCycles = Long.parseLong(args[++i]);
+                } else if (arg.equals("--stop-at") && i + 1 < args.length) {
+                    stopLabel = args[++i];
+                } else if (arg.equals("--set") && i + 1 < args.length) {
+                    String[] parts = args[++i].split("=");
+                    initialRam.put(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+                } else if (arg.equals("--ram") && i + 1 < args.length) {
+                    String[] parts = args[++i].split("-");
+                    ramFrom = Integer.parseInt(parts[0]);
+                    ramTo = Integer.parseInt(parts[1]);
+                } else if (path == null && !arg.startsWith("--")) {
+                    path = arg;
+                } else {
+                    path = null;
+                    break;
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            // A malformed number, or --set/--ram without their separator.
+            path = null;
+        }
+        if (path == null) {
+            System.out.println("Usage: java HackEmulator <file.asm | file.hack> [--max-cycles <n>]"
+                    + " [--stop-at <label>] [--set <address>=<value>]... [--ram <from>-<to>]"
+                    + " [--profile <file.map> [--top <n>] [--collapsed <file>] [--line-profile <file>]]");
+            return;
+        }
+
+        HackEmulator emulator;
+        try {
+            emulator = new HackEmulator(load(path));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        if (stopLabel != null) {
+            if (!path.endsWith(".asm")) {
+                System.err.println("--stop-at needs an .asm file (labels are not kept in .hack)");
+                return;
+            }
+            Integer address = HackAssembler.labelsOfFile(path).get(stopLabel);
+            if (address == null) {
+                System.err.println("No such label: " + stopLabel);
+                return;
+            }
+            emulator.setStopAddress(address);
+        }
+        for (Map.Entry<Integer, Integer> entry : initialRam.entrySet()) {
+            emulator.setRam(entry.getKey(), entry.getValue());
+        }
+        Profiler profiler = null;
+        if (mapPath != null) {
+            profiler = new Profiler(SourceMap.read(mapPath), emulator.rom.length);
+            emulator.setProfiler(profiler);
+        }
+        long start = System.nanoTime();
+        boolean halted = emulator.run(maxCycles);
+        long elapsed = System.nanoTime() - start;
+
+        System.out.println("Cycles: " + emulator.getCycles() + (halted ? "" : " (limit reached, not halted)"));
+        System.out.println("Peak SP: " + emulator.getPeakSp());
+        System.out.println(String.format("Speed: %.1f M instructions/s",
+                emulator.getCycles() / Math.max(elapsed / 1e9, 1e-9) / 1e6));
+        System.out.println("RAM[" + ramFrom + ".." + ramTo + "] (non-zero):");
+        for (int address = ramFrom; address <= ramTo; address++) {
+            if (emulator.getRam(address) != 0) {
+                System.out.println("  " + address + ": " + emulator.getRam(address));
+            }
+        }
+        if (profiler != null) {
+            profiler.finish();
+            System.out.println();
+            profiler.printReport(System.out, topLines);
+            if (collapsedPath != null) {
+                profiler.writeCollapsed(collapsedPath);
+            }
+            if (lineProfilePath != null) {
+                profiler.writeLineProfile(lineProfilePath);
+            }
+        }
+    }
+
+    public int getRam(int address) {
+        return ram[address];
+    }
+
+    public void setRam(int address, int value) {
+        ram[address] = (short) value;
+        if (address == 0) {
+            peakSp = Math.max(peakSp, ram[0]);
+        }
+    }
+
+    public long getCycles() {
+        return cycles;
+    }
+
+    // Highest value SP (RAM[0]) held during the run.
+    public int getPeakSp() {
+        return peakSp;
+    }
+
+    public void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+    }
+
+    // Ends the run when the instruction at the given address is about to execute.
+    public void setStopAddress(int address) {
+        stopAddress = address;
+    }
+
+    // Runs until the program halts or maxCycles instructions have executed.
+    // A program halts by running past the end of ROM, by reaching the stop address,
+    // or by jumping to itself ("(END) @END 0;JMP"). Returns true if it halted.
+    public boolean run(long maxCycles) {
+        final int[] operation = this.operation;
+        final int[] value = this.value;
+        final int[] dest = this.dest;
+        final int[] jump = this.jump;
+        final boolean[] readsMemory = this.readsMemory;
+        final short[] ram = this.ram;
+        final int n = rom.length;
+        int a = this.a;
+        int d = this.d;
+        int pc = this.pc;
+        long cycles = this.cycles;
+        int peakSp = this.peakSp;
+        final Profiler profiler = this.profiler;
+        boolean halted = false;
+        while (true) {
+            if (pc < 0 || pc >= n || pc == stopAddress) {
+                halted = true;
+                break;
+            }
+            if (cycles >= maxCycles) {
+                break;
+            }
+            cycles++;
+            if (profiler != null) {
+                profiler.step(pc, ram);
+            }
+            int op = operation[pc];
+            if (op == A_INSTRUCTION) {
+                a = value[pc];
+                pc++;
+                continue;
+            }
+            int y = readsMemory[pc] ? ram[a & 0x7FFF] : a;
+            int result;
+            switch (op) {
+                case ZERO: result = 0; break;
+                case ONE: result = 1; break;
+                case MINUS_ONE: result = -1; break;
+                case D: result = d; break;
+                case Y: result = y; break;
+                case NOT_D: result = ~d; break;
+                case NOT_Y: result = ~y; break;
+                case NEG_D: result = -d; break;
+                case NEG_Y: result = -y; break;
+                case D_PLUS_1: result = d + 1; break;
+                case Y_PLUS_1: result = y + 1; break;
+                case D_MINUS_1: result = d - 1; break;
+                case Y_MINUS_1: result = y - 1; break;
+                case D_PLUS_Y: result = d + y; break;
+                case D_MINUS_Y: result = d - y; break;
+                case Y_MINUS_D: result = y - d; break;
+                case D_AND_Y: result = d & y; break;
+                case D_OR_Y: result = d | y; break;
+                default: result = alu(value[pc], d, y); break;
+            }
+            result = (short) result;
+            int target = dest[pc];
+            int address = a;
+            if ((target & 1) != 0) {
+                ram[address & 0x7FFF] = (short) result;
+                if ((address & 0x7FFF) == 0 && result > peakSp) {
+                    peakSp = result;
+                }
+            }
+            if ((target & 4) != 0) a = result;
+            if ((target & 2) != 0) d = result;
+            int condition = result < 0 ? 4 : (result == 0 ? 2 : 1);
+            if ((jump[pc] & condition) != 0) {
+                if (haltLoop[pc] && address == pc - 1) {
+                    halted = true;
+                    break;
+                }
+                pc = address & 0xFFFF;
+            } else {
+                pc++;
+            }
+        }
+        this.a = a;
+        this.d = d;
+        this.pc = pc;
+        this.cycles = cycles;
+        this.peakSp = peakSp;
+        return halted;
+    }
+
+    // The ALU for computations outside the standard table, from the zx nx zy ny f no bits.
+    private static int alu(int instruction, int x, int y) {
+        if ((instruction & 0x0800) != 0) x = 0;
+        if ((instruction & 0x0400) != 0) x = ~x;
+        if ((instruction & 0x0200) != 0) y = 0;
+        if ((instruction & 0x0100) != 0) y = ~y;
+        int result = (instruction & 0x0080) != 0 ? x + y : x & y;
+        if ((instruction & 0x0040) != 0) result = ~result;
+        return result;
+    }
+}
@@ -0,0 +1,305 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Expands calls to small leaf functions (functions that make no calls) at the call site.
+// The inlined body runs in the caller's frame: its arguments and locals live in temp
+// entries that neither the caller nor the callee uses, "static" keeps referring to the
+// callee's file, and pointer 0/1 are saved and restored when the callee changes them,
+// as the return would have done. A call site is left alone when there are not enough
+// free temp entries.
+//
+// Callers must not keep values in temp across a call (the Jack compiler never does).
+public class Inliner {
+    // Largest body, in VM commands (without the function command), that is inlined.
+    public static final int DEFAULT_BUDGET = 12;
+
+    // A function that may be inlined.
+    private static class Function {
+        String fileName;
+        int nLocals;
+        List<VMCommand> body = new ArrayList<>();
+        // Highest argument index used, plus one.
+        int nArguments = 0;
+        // Bit i is set if temp i is used.
+        int tempMask = 0;
+        boolean[] pointerWritten = new boolean[2];
+        boolean makesCalls = false;
+    }
+
+    private final int budget;
+    // Every function of the program, by name.
+    private final Map<String, Function> functions = new HashMap<>();
+    // Names of the functions that may be inlined.
+    private final Set<String> candidates = new TreeSet<>();
+    // Report data; updated by the translation workers.
+    private final Map<String, AtomicInteger> inlinedSites = new ConcurrentHashMap<>();
+    private final AtomicInteger skippedSites = new AtomicInteger();
+
+    private Inliner(int budget) {
+        this.budget = budget;
+    }
+
+    // Scans the program and selects the leaf functions of at most budget commands.
+    public static Inliner build(List<File> files, int budget) throws IOException {
+        Inliner inliner = new Inliner(budget);
+        for (File file : files) {
+            String fileName = file.getName().replace(".vm", "");
+            Parser parser = new Parser(file.getAbsolutePath());
+            Function function = null;
+            while (parser.hasMoreCommands()) {
+                parser.advance();
+                VMCommand command = parser.current();
+                if (command.type == Parser.C_FUNCTION) {
+                    function = new Function();
+                    function.fileName = fileName;
+                    function.nLocals = command.arg2;
+                    inliner.functions.put(command.arg1, function);
+                    continue;
+                }
+                if (function == null) {
+                    continue;
+                }
+                function.body.add(command);
+                if (command.type == Parser.C_CALL) {
+                    function.makesCalls = true;
+                } else if (command.type == Parser.C_PUSH || command.type == Parser.C_POP) {
+                    if (command.arg1.equals("temp")) {
+                        function.tempMask |= 1 << command.arg2;
+                    } else if (command.arg1.equals("argument")) {
+                        function.nArguments = Math.max(function.nArguments, command.arg2 + 1);
+                    } else if (command.arg1.equals("pointer") && command.type == Parser.C_POP) {
+                        function.pointerWritten[command.arg2] = true;
+                    }
+                }
+            }
+        }
+        for (Map.Entry<String, Function> entry : inliner.functions.entrySet()) {
+            Function function = entry.getValue();
+            if (!function.makesCalls && function.body.size() <= budget && isWellFormed(function)) {
+                inliner.candidates.add(entry.getKey());
+            }
+        }
+        return inliner;
+    }
+
+    // Checks that the body can be spliced into straight-line code: every label is
+    // defined, local indexes are in range, and the working stack has a single, fixed
+    // depth at every command, with exactly the return value on it at each return.
+    private static boolean isWellFormed(Function function) {
+        List<VMCommand> body = function.body;
+        Map<String, Integer> labels = new HashMap<>();
+        for (int i = 0; i < body.size(); i++) {
+            VMCommand command = body.get(i);
+            if (command.type == Parser.C_LABEL) {
+                labels.put(command.arg1, i);
+            } else if ((command.type == Parser.C_PUSH || command.type == Parser.C_POP)
+                    && command.arg1.equals("local") && command.arg2 >= function.nLocals) {
+                return false;
+            }
+        }
+        int[] depth = new int[body.size()];
+        Arrays.fill(depth, -1);
+        Deque<Integer> pending = new ArrayDeque<>();
+        if (!body.isEmpty()) {
+            depth[0] = 0;
+            pending.push(0);
+        }
+        while (!pending.isEmpty()) {
+            int i = pending.pop();
+            VMCommand command = body.get(i);
+            int after = depth[i];
+            List<Integer> next = new ArrayList<>(2);
+            switch (command.type) {
+                case Parser.C_PUSH:
+                    after++;
+                    next.add(i + 1);
+                    break;
+                case Parser.C_POP:
+                case Parser.C_IF:
+                    after--;
+                    next.add(i + 1);
+                    break;
+                case Parser.C_ARITHMETIC:
+                    boolean unary = command.arg1.equals("neg") || command.arg1.equals("not");
+                    if (depth[i] < (unary ? 1 : 2)) {
+                        return false;
+                    }
+                    after -= unary ? 0 : 1;
+                    next.add(i + 1);
+                    break;
+                case Parser.C_LABEL:
+                    next.add(i + 1);
+                    break;
+                case Parser.C_GOTO:
+                    break;
+                case Parser.C_RETURN:
+                    if (depth[i] != 1) {
+                        return false;
+                    }
+                    continue;
+                default:
+                    return false;
+            }
+            if (after < 0) {
+                return false;
+            }
+            if (command.type == Parser.C_GOTO || command.type == Parser.C_IF) {
+                Integer target = labels.get(command.arg1);
+                if (target == null) {
+                    return false;
+                }
+                next.add(target);
+            }
+            for (int successor : next) {
+                if (successor >= body.size()) {
+                    return false;    // runs off the end without returning
+                }
+                if (depth[successor] == -1) {
+                    depth[successor] = after;
+                    pending.push(successor);
+                } else if (depth[successor] != after) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // Writes the body of callee in place of "call callee nArgs" inside caller.
+    // site must be unique within the caller's file. Returns false, writing nothing,
+    // if the call has to stay a real call.
+    public boolean inline(CodeWriter writer, String caller, String callee, int nArgs, int site) {
+        Function function = functions.get(callee);
+        if (!candidates.contains(callee) || function.nArguments > nArgs) {
+            return false;
+        }
+        Function callerFunction = functions.get(caller);
+        if (callerFunction == null) {
+            skippedSites.incrementAndGet();
+            return false;
+        }
+        // Hand out the temp entries neither side uses.
+        int used = callerFunction.tempMask | function.tempMask;
+        Deque<Integer> free = new ArrayDeque<>();
+        for (int i = 0; i < 8; i++) {
+            if ((used & (1 << i)) == 0) {
+                free.add(i);
+            }
+        }
+        int[] pointerSlot = {-1, -1};
+        int needed = nArgs + function.nLocals
+                + (function.pointerWritten[0] ? 1 : 0) + (function.pointerWritten[1] ? 1 : 0);
+        if (needed > free.size()) {
+            skippedSites.incrementAndGet();
+            return false;
+        }
+        int[] argumentSlot = new int[nArgs];
+        int[] localSlot = new int[function.nLocals];
+        for (int i = 0; i < nArgs; i++) {
+            argumentSlot[i] = free.poll();
+        }
+        for (int i = 0; i < function.nLocals; i++) {
+            localSlot[i] = free.poll();
+        }
+        for (int i = 0; i < 2; i++) {
+            if (function.pointerWritten[i]) {
+                pointerSlot[i] = free.poll();
+            }
+        }
+
+        // Entry: move the arguments off the stack, clear the locals, save the pointers.
+        for (int i = nArgs - 1; i >= 0; i--) {
+            writer.writePushPop(Parser.C_POP, "temp", argumentSlot[i]);
+        }
+        for (int i = 0; i < function.nLocals; i++) {
+            writer.writePushPop(Parser.C_PUSH, "constant", 0);
+            writer.writePushPop(Parser.C_POP, "temp", localSlot[i]);
+        }
+        for (int i = 0; i < 2; i++) {
+            if (pointerSlot[i] >= 0) {
+                writer.writePushPop(Parser.C_PUSH, "pointer", i);
+                writer.writePushPop(Parser.C_POP, "temp", pointerSlot[i]);
+            }
+        }
+
+        // Body, with labels renamed per site and every return turned into a jump to the end.
+        String prefix = callee + "$" + site + "$";
+        String endLabel = prefix + "END";
+        boolean jumpsToEnd = false;
+        writer.setStaticFileName(function.fileName);
+        List<VMCommand> body = function.body;
+        for (int i = 0; i < body.size(); i++) {
+            VMCommand command = body.get(i);
+            switch (command.type) {
+                case Parser.C_PUSH:
+                case Parser.C_POP:
+                    if (command.arg1.equals("argument")) {
+                        writer.writePushPop(command.type, "temp", argumentSlot[command.arg2]);
+                    } else if (command.arg1.equals("local")) {
+                        writer.writePushPop(command.type, "temp", localSlot[command.arg2]);
+                    } else {
+                        writer.writePushPop(command.type, command.arg1, command.arg2);
+                    }
+                    break;
+                case Parser.C_LABEL:
+                    writer.writeLabel(prefix + command.arg1);
+                    break;
+                case Parser.C_GOTO:
+                    writer.writeGoto(prefix + command.arg1);
+                    break;
+                case Parser.C_IF:
+                    writer.writeIf(prefix + command.arg1);
+                    break;
+                case Parser.C_RETURN:
+                    if (i < body.size() - 1) {
+                        writer.writeGoto(endLabel);
+                        jumpsToEnd = true;
+                    }
+                    break;
+                default:
+                    writer.writeArithmetic(command.arg1);
+                    break;
+            }
+        }
+        writer.setStaticFileName(writer.fileName);
+        if (jumpsToEnd) {
+            writer.writeLabel(endLabel);
+        }
+
+        // Exit: the return value is on the stack; restore the pointers underneath it.
+        for (int i = 0; i < 2; i++) {
+            if (pointerSlot[i] >= 0) {
+                writer.writePushPop(Parser.C_PUSH, "temp", pointerSlot[i]);
+                writer.writePushPop(Parser.C_POP, "pointer", i);
+            }
+        }
+        inlinedSites.computeIfAbsent(callee, name -> new AtomicInteger()).incrementAndGet();
+        return true;
+    }
+
+    public int getBudget() {
+        return budget;
+    }
+
+    // Functions small enough to be inlined, by name.
+    public Set<String> getCandidates() {
+        return candidates;
+    }
+
+    // Number of inlined call sites per function, by name.
+    public Map<String, Integer> getInlinedSites() {
+        Map<String, Integer> counts = new TreeMap<>();
+        for (Map.Entry<String, AtomicInteger> entry : inlinedSites.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return counts;
+    }
+
+    // Calls to candidates that stayed real calls for lack of free temp entries.
+    public int getSkippedSites() {
+        return skippedSites.get();
+    }
+}
@@ -1,7 +1,6 @@
 import java.io.*;
-import java.util.*;
 
-public class Parser {
+public class Parser implements CommandSource {
     // Command type constants.
     public static final int C_ARITHMETIC = 0;
     public static final int C_PUSH       = 1;
@@ -12,85 +11,148 @@ public class Parser {
     public static final int C_FUNCTION   = 6;
     public static final int C_CALL       = 7;
     public static final int C_RETURN     = 8;
-    
-    private List<String> commands;
-    private int currentIndex = 0;
-    private String currentCommand;
+    // "not; if-goto" fused into one branch taken on zero; only ConstantFolder makes it.
+    public static final int C_IF_NOT     = 9;
 
+    private final BufferedReader reader;
+    // The next decoded command (read ahead by hasMoreCommands), or null.
+    private VMCommand nextCommand;
+    private VMCommand currentCommand;
+    // Source line of nextCommand and currentCommand (1-based).
+    private int lineNumber = 0;
+    private int nextLine = 0;
+    private int currentLine = 0;
+
+    // Lines are read and decoded one at a time, so memory use does not grow with the file.
     public Parser(String filePath) throws IOException {
-        commands = new ArrayList<>();
-        BufferedReader reader = new BufferedReader(new FileReader(filePath));
+        reader = new BufferedReader(new FileReader(filePath));
+    }
+
+    // Are there more commands in the input?
+    public boolean hasMoreCommands() throws IOException {
+        if (nextCommand != null) {
+            return true;
+        }
         String line;
         while ((line = reader.readLine()) != null) {
+            lineNumber++;
             // Remove inline comments and trim whitespace.
-            if (line.contains("//")) {
-                line = line.substring(0, line.indexOf("//"));
+            int comment = line.indexOf("//");
+            if (comment >= 0) {
+                line = line.substring(0, comment);
             }
             line = line.trim();
             if (!line.isEmpty()) {
-                commands.add(line);
+                nextCommand = decode(line);
+                nextLine = lineNumber;
+                return true;
             }
         }
         reader.close();
+        return false;
     }
 
-    // Are there more commands in the input?
-    public boolean hasMoreCommands() {
-        return currentIndex < commands.size();
+    // Reads the next command from the input.
+    public void advance() throws IOException {
+        if (!hasMoreCommands()) {
+            throw new IllegalStateException("No more commands");
+        }
+        currentCommand = nextCommand;
+        currentLine = nextLine;
+        nextCommand = null;
     }
 
-    // Reads the next command from the input.
-    public void advance() {
-        currentCommand = commands.get(currentIndex);
-        currentIndex++;
+    // The current command, decoded.
+    public VMCommand current() {
+        return currentCommand;
     }
-    
+
+    // Source line of the current command.
+    public int lineNumber() {
+        return currentLine;
+    }
+
     // Determines the command type of the current command.
     public int commandType() {
-        if (currentCommand.startsWith("push"))
-            return C_PUSH;
-        else if (currentCommand.startsWith("pop"))
-            return C_POP;
-        else if (currentCommand.startsWith("if-goto"))
-            return C_IF;
-        else if (currentCommand.startsWith("goto"))
-            return C_GOTO;
-        else if (currentCommand.startsWith("label"))
-            return C_LABEL;
-        else if (currentCommand.startsWith("function"))
-            return C_FUNCTION;
-        else if (currentCommand.startsWith("call"))
-            return C_CALL;
-        else if (currentCommand.startsWith("return"))
-            return C_RETURN;
-        else
-            return C_ARITHMETIC;
+        return currentCommand.type;
     }
-    
+
     // For arithmetic commands, arg1() returns the entire command (e.g., "add").
     // For push/pop, label, goto, if-goto, function, and call, arg1() returns the first argument.
     // For return, which has no arguments, it returns an empty string.
     public String arg1() {
-        int type = commandType();
-        if (type == C_ARITHMETIC) {
-            return currentCommand;
-        } else if (type == C_RETURN) {
-            return "";
-        } else {
-            String[] parts = currentCommand.split("\\s+");
-            return parts[1];
-        }
+        return currentCommand.arg1;
     }
-    
+
     // For push, pop, function, and call commands, arg2() returns the second argument as an integer.
     // For other commands, no second argument is used.
     public int arg2() {
-        int type = commandType();
+        return currentCommand.arg2;
+    }
+
+    // Closes the input early (it is closed automatically once all commands are read).
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    // Splits a trimmed, comment-free line into its fields and decodes it.
+    static VMCommand decode(String line) {
+        int end = wordEnd(line, 0);
+        String word = line.substring(0, end);
+        int type = typeOf(word);
+        if (type == C_ARITHMETIC) {
+            return new VMCommand(C_ARITHMETIC, word.intern(), -1);
+        }
+        if (type == C_RETURN) {
+            return new VMCommand(C_RETURN, "", -1);
+        }
+        int start = wordStart(line, end);
+        end = wordEnd(line, start);
+        String arg1 = line.substring(start, end).intern();
+        int arg2 = -1;
         if (type == C_PUSH || type == C_POP || type == C_FUNCTION || type == C_CALL) {
-            String[] parts = currentCommand.split("\\s+");
-            return Integer.parseInt(parts[2]);
+            arg2 = parseInt(line, wordStart(line, end));
+        }
+        return new VMCommand(type, arg1, arg2);
+    }
+
+    private static int typeOf(String word) {
+        switch (word) {
+            case "push":     return C_PUSH;
+            case "pop":      return C_POP;
+            case "label":    return C_LABEL;
+            case "goto":     return C_GOTO;
+            case "if-goto":  return C_IF;
+            case "function": return C_FUNCTION;
+            case "call":     return C_CALL;
+            case "return":   return C_RETURN;
+            default:         return C_ARITHMETIC;
         }
-        return -1;
     }
-}
 
+    private static int wordStart(String line, int pos) {
+        while (pos < line.length() && Character.isWhitespace(line.charAt(pos))) pos++;
+        return pos;
+    }
+
+    private static int wordEnd(String line, int pos) {
+        while (pos < line.length() && !Character.isWhitespace(line.charAt(pos))) pos++;
+        return pos;
+    }
+
+    private static int parseInt(String line, int pos) {
+        int end = wordEnd(line, pos);
+        if (pos == end) {
+            throw new NumberFormatException("Missing argument in: " + line);
+        }
+        int value = 0;
+        for (int i = pos; i < end; i++) {
+            char c = line.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new NumberFormatException("Bad argument in: " + line);
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+}
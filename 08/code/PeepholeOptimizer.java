@@ -0,0 +1,225 @@
+import java.util.*;
+import java.util.function.Consumer;
+
+public class PeepholeOptimizer {
+    // A rewrite rule. apply() looks at the end of the window, rewrites it in place
+    // and returns the number of instructions removed (0 if the rule did not match).
+    public interface Rule {
+        String name();
+        int apply(List<String> window);
+    }
+
+    // Lines older than this are written out and can no longer be rewritten.
+    private static final int WINDOW_SIZE = 24;
+
+    private final Consumer<String> sink;
+    private final List<Rule> rules = new ArrayList<>();
+    private final List<String> window = new ArrayList<>();
+    // Instructions removed per rule, in the order the rules were added.
+    private final Map<String, Integer> removed = new LinkedHashMap<>();
+
+    public PeepholeOptimizer(Consumer<String> sink) {
+        this.sink = sink;
+    }
+
+    // Creates an optimizer with the standard rule set.
+    public static PeepholeOptimizer withDefaultRules(Consumer<String> sink) {
+        PeepholeOptimizer optimizer = new PeepholeOptimizer(sink);
+        optimizer.addRule(new PushPopFusion());
+        optimizer.addRule(new PushPopCancellation());
+        optimizer.addRule(new RedundantStackAddress());
+        optimizer.addRule(new RedundantLoad());
+        return optimizer;
+    }
+
+    public void addRule(Rule rule) {
+        rules.add(rule);
+        removed.put(rule.name(), 0);
+    }
+
+    // Adds one line of assembly to the window and applies the rules to it.
+    public void add(String line) {
+        if (line.startsWith("(")) {
+            // A label is a jump target, so no rule may match across it.
+            flush();
+            sink.accept(line);
+            return;
+        }
+        window.add(line);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Rule rule : rules) {
+                int count = rule.apply(window);
+                if (count > 0) {
+                    removed.merge(rule.name(), count, Integer::sum);
+                    changed = true;
+                }
+            }
+        }
+        while (window.size() > WINDOW_SIZE) {
+            sink.accept(window.remove(0));
+        }
+    }
+
+    // Writes out every pending line.
+    public void flush() {
+        for (String line : window) {
+            sink.accept(line);
+        }
+        window.clear();
+    }
+
+    // Number of instructions held in the window (labels are never held).
+    public int getPendingInstructions() {
+        return window.size();
+    }
+
+    public Map<String, Integer> getRemovedCounts() {
+        return removed;
+    }
+
+    // Adds the statistics of another optimizer (e.g. one used for a separately translated file).
+    public void addRemovedCounts(PeepholeOptimizer other) {
+        if (other == null) {
+            return;
+        }
+        addRemovedCounts(other.removed);
+    }
+
+    // Adds removal counts by rule name (e.g. read back from a translation cache).
+    public void addRemovedCounts(Map<String, Integer> counts) {
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            removed.merge(entry.getKey(), entry.getValue(), Integer::sum);
+        }
+    }
+
+    public int getTotalRemoved() {
+        int total = 0;
+        for (int count : removed.values()) {
+            total += count;
+        }
+        return total;
+    }
+
+    // --------------------- Helpers ---------------------
+
+    // Does the window end with the given lines? A null entry matches any A-instruction.
+    private static boolean endsWith(List<String> window, String... pattern) {
+        int start = window.size() - pattern.length;
+        if (start < 0) {
+            return false;
+        }
+        for (int i = 0; i < pattern.length; i++) {
+            String line = window.get(start + i);
+            if (pattern[i] == null ? !line.startsWith("@") : !pattern[i].equals(line)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Replaces the last n lines of the window with the given lines.
+    private static void replaceTail(List<String> window, int n, String... lines) {
+        window.subList(window.size() - n, window.size()).clear();
+        window.addAll(Arrays.asList(lines));
+    }
+
+    // --------------------- Rules ---------------------
+
+    // push x; pop y  ==>  a direct move from x to y without touching the stack.
+    static class PushPopFusion implements Rule {
+        public String name() { return "push-pop-fusion"; }
+
+        public int apply(List<String> window) {
+            // Pop to an address computed without D (pointer, temp, static and small indexes).
+            // After push-pop-cancel this is "@SP, A=M, M=D, <address>, M=D": the value is
+            // stored on the stack top without moving SP, so that store is dead.
+            int end = window.size() - 1;
+            if (end >= 4 && window.get(end).equals("M=D")) {
+                int i = end - 1;
+                while (i > 0 && isAddressStep(window.get(i)) && !window.get(i).equals("@SP")) {
+                    i--;
+                }
+                if (i < end - 1 && i >= 2 && window.get(i + 1).startsWith("@")
+                        && window.get(i).equals("M=D") && window.get(i - 1).equals("A=M")
+                        && window.get(i - 2).equals("@SP")) {
+                    window.subList(i - 2, i + 1).clear();
+                    return 3;
+                }
+            }
+            // Pop to a base+index address (local, argument, this, that); the value waits in R15.
+            if (endsWith(window, "@SP", "A=M", "M=D", "@SP", "M=M+1",
+                                 null, "D=M", null, "D=D+A", "@R13", "M=D",
+                                 "@SP", "AM=M-1", "D=M", "@R13", "A=M", "M=D")) {
+                String base = window.get(window.size() - 12);
+                String index = window.get(window.size() - 10);
+                replaceTail(window, 17, "@R15", "M=D", base, "D=M", index, "D=D+A", "@R13", "M=D",
+                            "@R15", "D=M", "@R13", "A=M", "M=D");
+                return 4;
+            }
+            return 0;
+        }
+    }
+
+    // An instruction that only computes an address in A (it leaves D and memory alone).
+    private static boolean isAddressStep(String line) {
+        return line.startsWith("@") || line.equals("A=M") || line.equals("A=M+1") || line.equals("A=A+1");
+    }
+
+    // SP++ immediately followed by SP--  ==>  just point A at the stack top.
+    static class PushPopCancellation implements Rule {
+        public String name() { return "push-pop-cancel"; }
+
+        public int apply(List<String> window) {
+            if (endsWith(window, "@SP", "M=M+1", "@SP", "AM=M-1")) {
+                replaceTail(window, 4, "@SP", "A=M");
+                return 2;
+            }
+            return 0;
+        }
+    }
+
+    // @SP / A=M when A already holds SP and nothing in between changed A or SP.
+    static class RedundantStackAddress implements Rule {
+        private static final int MAX_GAP = 4;
+
+        public String name() { return "redundant-sp-load"; }
+
+        public int apply(List<String> window) {
+            if (!endsWith(window, "@SP", "A=M")) {
+                return 0;
+            }
+            // A=M points at the stack (>= 256), so stores through M cannot change SP itself.
+            for (int i = window.size() - 3, gap = 0; i >= 1 && gap <= MAX_GAP; i--, gap++) {
+                String line = window.get(i);
+                if (line.equals("A=M") && window.get(i - 1).equals("@SP")) {
+                    window.subList(window.size() - 2, window.size()).clear();
+                    return 2;
+                }
+                if (line.startsWith("@") || line.contains(";") || writesA(line)) {
+                    return 0;
+                }
+            }
+            return 0;
+        }
+
+        private static boolean writesA(String line) {
+            int eq = line.indexOf('=');
+            return eq >= 0 && line.substring(0, eq).contains("A");
+        }
+    }
+
+    // M=D / D=M  ==>  M=D, since D already holds the value just stored.
+    static class RedundantLoad implements Rule {
+        public String name() { return "redundant-load"; }
+
+        public int apply(List<String> window) {
+            if (endsWith(window, "M=D", "D=M")) {
+                window.remove(window.size() - 1);
+                return 1;
+            }
+            return 0;
+        }
+    }
+}
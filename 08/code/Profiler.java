@@ -0,0 +1,227 @@
+import java.io.*;
+import java.util.*;
+
+// Attributes the cycles of a HackEmulator run to VM functions and lines, using the source
+// map written by VMTranslator --source-map. The emulator calls step() before every instruction.
+//
+// A call is seen when execution reaches a function entry with a new LCL (a goto back to the
+// first command of a function keeps LCL), and a return when it reaches a return point.
+// A lower LCL than the current frame's is a tail call (see CodeWriter.writeTailCall): the
+// callee replaces the current function on the stack. A tail call that keeps LCL looks like
+// a loop, and its callee's cycles count for the caller.
+// Self cycles go to the function on top of this call stack, so the cycles of the shared
+// call/return routines count for the function that runs them.
+public class Profiler {
+    private static final int ENTRY = 1, RETURN_POINT = 2;
+    private static final String ROOT = "(bootstrap)";
+
+    private final SourceMap map;
+    // Line record (+1) of each ROM address, 0 if none; and the ENTRY/RETURN_POINT events.
+    private final int[] recordOf;
+    private final byte[] events;
+    private final String[] entryFunction;
+    private final long[] recordCycles;
+
+    // Function statistics, by id.
+    private final Map<String, Integer> functionIds = new HashMap<>();
+    private final List<String> functionNames = new ArrayList<>();
+    private long[] selfCycles = new long[64];
+    private long[] inclusiveCycles = new long[64];
+    private long[] callCounts = new long[64];
+    // How many frames of each function are on the stack (recursion counts once for inclusive).
+    private int[] activeFrames = new int[64];
+
+    // The call stack: function id, LCL at entry, cycle of entry and collapsed-stack key.
+    private int[] stackFunction = new int[256];
+    private int[] stackLcl = new int[256];
+    private long[] stackStart = new long[256];
+    private String[] stackPath = new String[256];
+    private int depth = 0;
+    private long cycles = 0;
+    // Cycle of the last call or return; the cycles since then belong to the current stack.
+    private long lastTransition = 0;
+    private final Map<String, Long> collapsed = new LinkedHashMap<>();
+
+    public Profiler(SourceMap map, int romSize) {
+        this.map = map;
+        recordOf = new int[romSize];
+        events = new byte[romSize];
+        entryFunction = new String[romSize];
+        recordCycles = new long[map.size()];
+        for (int address = 0; address < romSize; address++) {
+            recordOf[address] = map.recordAt(address) + 1;
+        }
+        for (Map.Entry<Integer, String> entry : map.getFunctionEntries().entrySet()) {
+            if (entry.getKey() < romSize) {
+                events[entry.getKey()] |= ENTRY;
+                entryFunction[entry.getKey()] = entry.getValue();
+            }
+        }
+        for (int address : map.getReturnPoints()) {
+            if (address < romSize) {
+                events[address] |= RETURN_POINT;
+            }
+        }
+        push(functionId(ROOT), 0);
+    }
+
+    // Called before the instruction at pc executes.
+    public void step(int pc, short[] ram) {
+        if (pc < recordOf.length) {
+            int record = recordOf[pc];
+            if (record != 0) {
+                recordCycles[record - 1]++;
+            }
+            if (events[pc] != 0) {
+                transition(pc, ram[1]);
+            }
+        }
+        cycles++;
+    }
+
+    private void transition(int pc, int lcl) {
+        if ((events[pc] & RETURN_POINT) != 0 && depth > 1) {
+            account();
+            pop();
+        } else if ((events[pc] & ENTRY) != 0 && lcl != stackLcl[depth - 1]) {
+            account();
+            if (lcl < stackLcl[depth - 1] && depth > 1) {
+                pop();
+            }
+            int function = functionId(entryFunction[pc]);
+            callCounts[function]++;
+            push(function, lcl);
+        }
+    }
+
+    // Adds the cycles since the last transition to the current stack.
+    private void account() {
+        long delta = cycles - lastTransition;
+        if (delta > 0) {
+            selfCycles[stackFunction[depth - 1]] += delta;
+            collapsed.merge(stackPath[depth - 1], delta, Long::sum);
+        }
+        lastTransition = cycles;
+    }
+
+    private void push(int function, int lcl) {
+        if (depth == stackFunction.length) {
+            stackFunction = Arrays.copyOf(stackFunction, depth * 2);
+            stackLcl = Arrays.copyOf(stackLcl, depth * 2);
+            stackStart = Arrays.copyOf(stackStart, depth * 2);
+            stackPath = Arrays.copyOf(stackPath, depth * 2);
+        }
+        stackFunction[depth] = function;
+        stackLcl[depth] = lcl;
+        stackStart[depth] = cycles;
+        String name = functionNames.get(function);
+        stackPath[depth] = depth == 0 ? name : stackPath[depth - 1] + ";" + name;
+        activeFrames[function]++;
+        depth++;
+    }
+
+    private void pop() {
+        depth--;
+        int function = stackFunction[depth];
+        activeFrames[function]--;
+        if (activeFrames[function] == 0) {
+            inclusiveCycles[function] += cycles - stackStart[depth];
+        }
+    }
+
+    private int functionId(String name) {
+        Integer id = functionIds.get(name);
+        if (id != null) {
+            return id;
+        }
+        id = functionNames.size();
+        functionIds.put(name, id);
+        functionNames.add(name);
+        if (id == selfCycles.length) {
+            selfCycles = Arrays.copyOf(selfCycles, id * 2);
+            inclusiveCycles = Arrays.copyOf(inclusiveCycles, id * 2);
+            callCounts = Arrays.copyOf(callCounts, id * 2);
+            activeFrames = Arrays.copyOf(activeFrames, id * 2);
+        }
+        return id;
+    }
+
+    // Ends the run: the frames still on the stack are closed at the current cycle.
+    public void finish() {
+        account();
+        while (depth > 0) {
+            pop();
+        }
+        push(functionId(ROOT), 0);
+    }
+
+    // Prints self and inclusive cycles and call counts per function, then the hottest lines.
+    public void printReport(PrintStream out, int topLines) {
+        long total = Math.max(cycles, 1);
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < functionNames.size(); i++) {
+            order.add(i);
+        }
+        order.sort((x, y) -> Long.compare(selfCycles[y], selfCycles[x]));
+        out.println(String.format("%-32s %10s %14s %7s %14s %7s",
+                "function", "calls", "self", "self%", "inclusive", "incl%"));
+        for (int i : order) {
+            if (selfCycles[i] == 0 && inclusiveCycles[i] == 0) {
+                continue;
+            }
+            out.println(String.format("%-32s %10d %14d %6.2f%% %14d %6.2f%%", functionNames.get(i),
+                    callCounts[i], selfCycles[i], 100.0 * selfCycles[i] / total,
+                    inclusiveCycles[i], 100.0 * inclusiveCycles[i] / total));
+        }
+        out.println();
+        out.println(String.format("%-32s %-32s %14s %7s", "line", "function", "cycles", "%"));
+        Map<String, Long> lines = getLineCycles();
+        List<Map.Entry<String, Long>> hottest = new ArrayList<>(lines.entrySet());
+        hottest.sort((x, y) -> Long.compare(y.getValue(), x.getValue()));
+        Map<String, String> lineFunctions = new HashMap<>();
+        for (int record = 0; record < map.size(); record++) {
+            lineFunctions.putIfAbsent(lineKey(record), map.getFunction(record));
+        }
+        for (Map.Entry<String, Long> entry : hottest.subList(0, Math.min(topLines, hottest.size()))) {
+            String function = lineFunctions.get(entry.getKey());
+            out.println(String.format("%-32s %-32s %14d %6.2f%%", entry.getKey(),
+                    function.isEmpty() ? "-" : function, entry.getValue(), 100.0 * entry.getValue() / total));
+        }
+    }
+
+    // Cycles per VM line, keyed "<file>.vm:<line>" ("(runtime)" for the bootstrap and routines).
+    public Map<String, Long> getLineCycles() {
+        Map<String, Long> lines = new LinkedHashMap<>();
+        for (int record = 0; record < map.size(); record++) {
+            if (recordCycles[record] > 0) {
+                lines.merge(lineKey(record), recordCycles[record], Long::sum);
+            }
+        }
+        return lines;
+    }
+
+    private String lineKey(int record) {
+        return map.getFile(record).equals("-") ? "(runtime)" : map.getFile(record) + ".vm:" + map.getLine(record);
+    }
+
+    // Writes one "<caller;...;callee> <self cycles>" line per distinct stack, the input
+    // format of flamegraph.pl and speedscope.
+    public void writeCollapsed(String path) throws IOException {
+        try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(path)))) {
+            for (Map.Entry<String, Long> entry : collapsed.entrySet()) {
+                writer.println(entry.getKey() + " " + entry.getValue());
+            }
+        }
+    }
+
+    // Writes the line cycles in the format read by VMTranslator --compare-profile.
+    public void writeLineProfile(String path) throws IOException {
+        try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(path)))) {
+            for (Map.Entry<String, Long> entry : getLineCycles().entrySet()) {
+                if (!entry.getKey().startsWith("(")) {
+                    writer.println(entry.getKey() + " " + entry.getValue());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+import java.io.*;
+import java.util.*;
+
+// Maps ROM addresses of a translated program back to the VM code they came from.
+// Written by CodeWriter (see setSourceMap) as a text file with one record per line:
+//   L <address> <file> <line> <function>   instructions from address on come from this VM line
+//   F <address> <function>                 entry point of a function
+//   R <address>                            return point of a call
+// Addresses only increase. Code outside any VM command (the bootstrap, the shared routines)
+// has file "-" and line 0.
+public class SourceMap {
+    private int[] addresses = new int[256];
+    private String[] files = new String[256];
+    private int[] lines = new int[256];
+    private String[] functions = new String[256];
+    private int size = 0;
+    private final Map<Integer, String> entries = new LinkedHashMap<>();
+    private final Set<Integer> returnPoints = new LinkedHashSet<>();
+
+    // Records that the code from address on comes from the given line. A record at the same
+    // address as the previous one replaces it (the earlier command produced no instructions).
+    public void addLine(int address, String file, int line, String function) {
+        if (size > 0 && addresses[size - 1] == address) {
+            size--;
+        }
+        if (size > 0 && files[size - 1].equals(file) && lines[size - 1] == line
+                && functions[size - 1].equals(function)) {
+            return;
+        }
+        if (size == addresses.length) {
+            addresses = Arrays.copyOf(addresses, size * 2);
+            files = Arrays.copyOf(files, size * 2);
+            lines = Arrays.copyOf(lines, size * 2);
+            functions = Arrays.copyOf(functions, size * 2);
+        }
+        addresses[size] = address;
+        files[size] = file;
+        lines[size] = line;
+        functions[size] = function;
+        size++;
+    }
+
+    public void addFunctionEntry(int address, String function) {
+        entries.put(address, function);
+    }
+
+    public void addReturnPoint(int address) {
+        returnPoints.add(address);
+    }
+
+    // Appends the map of a fragment whose code starts at the given address.
+    public void append(SourceMap fragment, int offset) {
+        for (int i = 0; i < fragment.size; i++) {
+            addLine(fragment.addresses[i] + offset, fragment.files[i], fragment.lines[i], fragment.functions[i]);
+        }
+        for (Map.Entry<Integer, String> entry : fragment.entries.entrySet()) {
+            entries.put(entry.getKey() + offset, entry.getValue());
+        }
+        for (int address : fragment.returnPoints) {
+            returnPoints.add(address + offset);
+        }
+    }
+
+    // Returns the index of the line record covering address, or -1.
+    public int recordAt(int address) {
+        int low = 0;
+        int high = size - 1;
+        int found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (addresses[middle] <= address) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return found;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String getFile(int record) {
+        return files[record];
+    }
+
+    public int getLine(int record) {
+        return lines[record];
+    }
+
+    public String getFunction(int record) {
+        return functions[record];
+    }
+
+    // Function entry points by address.
+    public Map<Integer, String> getFunctionEntries() {
+        return entries;
+    }
+
+    public Set<Integer> getReturnPoints() {
+        return returnPoints;
+    }
+
+    public void write(String path) throws IOException {
+        try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(path)))) {
+            // Records are written in address order.
+            Iterator<Map.Entry<Integer, String>> entry = new TreeMap<>(entries).entrySet().iterator();
+            Iterator<Integer> returnPoint = new TreeSet<>(returnPoints).iterator();
+            Map.Entry<Integer, String> nextEntry = entry.hasNext() ? entry.next() : null;
+            Integer nextReturn = returnPoint.hasNext() ? returnPoint.next() : null;
+            for (int i = 0; i <= size; i++) {
+                int limit = i < size ? addresses[i] : Integer.MAX_VALUE;
+                while (nextReturn != null && nextReturn <= limit) {
+                    writer.println("R " + nextReturn);
+                    nextReturn = returnPoint.hasNext() ? returnPoint.next() : null;
+                }
+                while (nextEntry != null && nextEntry.getKey() <= limit) {
+                    writer.println("F " + nextEntry.getKey() + " " + nextEntry.getValue());
+                    nextEntry = entry.hasNext() ? entry.next() : null;
+                }
+                if (i < size) {
+                    writer.println("L " + addresses[i] + " " + files[i] + " " + lines[i] + " "
+                            + (functions[i].isEmpty() ? "-" : functions[i]));
+                }
+            }
+        }
+    }
+
+    public static SourceMap read(String path) throws IOException {
+        SourceMap map = new SourceMap();
+        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.trim().split("\\s+");
+                switch (parts[0]) {
+                    case "L":
+                        map.addLine(Integer.parseInt(parts[1]), parts[2], Integer.parseInt(parts[3]),
+                                parts[4].equals("-") ? "" : parts[4]);
+                        break;
+                    case "F":
+                        map.addFunctionEntry(Integer.parseInt(parts[1]), parts[2]);
+                        break;
+                    case "R":
+                        map.addReturnPoint(Integer.parseInt(parts[1]));
+                        break;
+                    default:
+                        // Blank lines and comments.
+                        break;
+                }
+            }
+        }
+        return map;
+    }
+}
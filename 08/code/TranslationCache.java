@@ -0,0 +1,118 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// An on-disk cache of translated files. Each entry holds the assembly fragment of one .vm
+// file, the statistics CodeWriter.append takes over from it and its source map, under a
+// key that hashes the translator version, the code generation options, the file name
+// (labels and statics are named after it) and the file's contents.
+//
+// Labels and return addresses are numbered per file (see CodeWriter.setFileName), so a
+// fragment does not depend on the files translated before it.
+public class TranslationCache {
+    // Change whenever the generated code changes, so that old entries are no longer used.
+    public static final String VERSION = "8.18";
+
+    private final Path directory;
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    public TranslationCache(String directory) throws IOException {
+        this.directory = Paths.get(directory);
+        Files.createDirectories(this.directory);
+    }
+
+    // Returns the key of a file translated with the given options.
+    public String key(File file, String options) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update((VERSION + "\n" + options + "\n" + file.getName() + "\n").getBytes(StandardCharsets.UTF_8));
+            digest.update(Files.readAllBytes(file.toPath()));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Fills the empty writer with the cached fragment and returns true, or returns false
+    // if there is no entry for the key.
+    public boolean load(String key, CodeWriter fragment) {
+        Path assembly = directory.resolve(key + ".asm");
+        Path stats = directory.resolve(key + ".stats");
+        Path map = directory.resolve(key + ".map");
+        try {
+            if (!Files.exists(stats)) {
+                misses.incrementAndGet();
+                return false;
+            }
+            Map<String, Integer> values = new LinkedHashMap<>();
+            for (String line : Files.readAllLines(stats)) {
+                String[] parts = line.trim().split("\\s+");
+                if (parts.length == 2) {
+                    values.put(parts[0], Integer.parseInt(parts[1]));
+                }
+            }
+            SourceMap sourceMap = Files.exists(map) ? SourceMap.read(map.toString()) : null;
+            fragment.restoreFragment(Files.readAllBytes(assembly), values, sourceMap);
+        } catch (IOException | RuntimeException e) {
+            // A damaged entry is translated again.
+            misses.incrementAndGet();
+            return false;
+        }
+        hits.incrementAndGet();
+        return true;
+    }
+
+    // Stores a closed fragment. The statistics file is written last and marks a complete
+    // entry; every file is moved into place in one step, so a concurrent reader never
+    // sees half of one.
+    public void store(String key, CodeWriter fragment) throws IOException {
+        write(key + ".asm", fragment.getAssemblyBytes());
+        if (fragment.getSourceMap() != null) {
+            Path temporary = Files.createTempFile(directory, key, ".tmp");
+            fragment.getSourceMap().write(temporary.toString());
+            Files.move(temporary, directory.resolve(key + ".map"), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+        StringBuilder stats = new StringBuilder();
+        for (Map.Entry<String, Integer> entry : fragment.getFragmentStats().entrySet()) {
+            stats.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+        write(key + ".stats", stats.toString().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private void write(String name, byte[] bytes) throws IOException {
+        Path temporary = Files.createTempFile(directory, name, ".tmp");
+        Files.write(temporary, bytes);
+        Files.move(temporary, directory.resolve(name), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Deletes every entry. Returns the number of files removed.
+    public int invalidate() throws IOException {
+        int removed = 0;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory, "*.{asm,stats,map,tmp}")) {
+            for (Path entry : entries) {
+                Files.delete(entry);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    public int getHits() {
+        return hits.get();
+    }
+
+    public int getMisses() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,195 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+// Correctness check for the code generation options. Every test program is translated
+// once with the plain templates (the reference) and once per configuration; both are run
+// on the HackEmulator and the final RAM must match.
+//
+// Usage: java TranslatorCheck [test directories...]   (default: ../../07/test ../test)
+// A .vm file directly inside a test directory is a program without bootstrap code; a
+// subdirectory holding .vm files is a program that starts with the bootstrap.
+public class TranslatorCheck {
+    private static final long MAX_CYCLES = 10_000_000;
+
+    // A code generation configuration under test.
+    private interface Config {
+        CodeWriter create(List<File> files) throws IOException;
+    }
+
+    private static final Map<String, Config> CONFIGS = new LinkedHashMap<>();
+
+    static {
+        CONFIGS.put("specialized", files -> new CodeWriter());
+        CONFIGS.put("peephole", files -> {
+            CodeWriter writer = new CodeWriter();
+            writer.setPeephole(true);
+            return writer;
+        });
+        CONFIGS.put("shared-frames", files -> {
+            CodeWriter writer = new CodeWriter();
+            writer.setSharedFrames(true);
+            return writer;
+        });
+        CONFIGS.put("shared-compare", files -> {
+            CodeWriter writer = new CodeWriter();
+            writer.setComparisonPlan(ComparisonPlan.build(files, Collections.emptyMap(), 0));
+            return writer;
+        });
+        CONFIGS.put("cache-top", files -> new CachedStackCodeWriter());
+        CONFIGS.put("cache-top+shared-compare", files -> {
+            CodeWriter writer = new CachedStackCodeWriter();
+            writer.setComparisonPlan(ComparisonPlan.build(files, Collections.emptyMap(), 0));
+            return writer;
+        });
+        CONFIGS.put("fold", files -> new CodeWriter());
+        CONFIGS.put("cache-top+fold", files -> new CachedStackCodeWriter());
+        CONFIGS.put("skip-locals", files -> {
+            CodeWriter writer = new CodeWriter();
+            writer.setWrittenLocals(WrittenLocals.build(files));
+            return writer;
+        });
+        CONFIGS.put("inline", files -> new CodeWriter());
+        CONFIGS.put("tail-calls", files -> new CodeWriter());
+        CONFIGS.put("all", files -> {
+            CodeWriter writer = new CachedStackCodeWriter();
+            writer.setPeephole(true);
+            writer.setSharedFrames(true);
+            writer.setComparisonPlan(ComparisonPlan.build(files, Collections.emptyMap(), 0));
+            writer.setWrittenLocals(WrittenLocals.build(files));
+            return writer;
+        });
+    }
+
+    // Configurations that also expand small leaf functions (see Inliner).
+    private static final Set<String> INLINED = new HashSet<>(Arrays.asList("inline", "all"));
+    // Configurations that simplify the VM commands first (see ConstantFolder).
+    private static final Set<String> FOLDED = new HashSet<>(Arrays.asList("fold", "cache-top+fold", "all"));
+    // Configurations that turn calls before a return into jumps (see CodeWriter.writeTailCall).
+    private static final Set<String> TAIL_CALLS = new HashSet<>(Arrays.asList("tail-calls", "all"));
+
+    // Initial RAM of the programs without bootstrap, as set by their original test scripts.
+    private static final Map<String, int[][]> INITIAL_RAM = new HashMap<>();
+
+    static {
+        int[][] segments = {{0, 256}, {1, 300}, {2, 400}, {3, 3000}, {4, 3010}};
+        INITIAL_RAM.put("BasicTest", segments);
+        INITIAL_RAM.put("BasicLoop", new int[][] {{0, 256}, {1, 300}, {2, 400}, {400, 3}});
+        INITIAL_RAM.put("NegatedBranch", new int[][] {{0, 256}, {1, 300}, {2, 400}, {400, 5}});
+        INITIAL_RAM.put("FibonacciSeries", new int[][] {{0, 256}, {1, 300}, {2, 400}, {400, 6}, {401, 3000}});
+        INITIAL_RAM.put("SimpleFunction", new int[][] {
+            {0, 317}, {1, 317}, {2, 310}, {3, 3000}, {4, 4000},
+            {310, 1234}, {311, 37}, {312, 1000}, {313, 305}, {314, 300}, {315, 3010}, {316, 4010}});
+    }
+
+    public static void main(String[] args) throws IOException {
+        String[] dirs = args.length > 0 ? args : new String[] {"../../07/test", "../test"};
+        int failures = 0;
+        int checks = 0;
+        for (String dir : dirs) {
+            File[] entries = new File(dir).listFiles();
+            if (entries == null) {
+                System.err.println("Not a directory: " + dir);
+                failures++;
+                continue;
+            }
+            Arrays.sort(entries, Comparator.comparing(File::getName));
+            for (File entry : entries) {
+                List<File> files = new ArrayList<>();
+                boolean bootstrap = entry.isDirectory();
+                if (bootstrap) {
+                    File[] vmFiles = entry.listFiles((d, name) -> name.endsWith(".vm"));
+                    if (vmFiles != null) {
+                        files.addAll(Arrays.asList(vmFiles));
+                        files.sort(Comparator.comparing(File::getName));
+                    }
+                } else if (entry.getName().endsWith(".vm")) {
+                    files.add(entry);
+                }
+                if (files.isEmpty()) {
+                    continue;
+                }
+                String name = entry.getName().replace(".vm", "");
+                HackEmulator reference = run(name, files, bootstrap, referenceWriter(), null, false, null);
+                for (Map.Entry<String, Config> config : CONFIGS.entrySet()) {
+                    checks++;
+                    boolean inlined = INLINED.contains(config.getKey());
+                    Inliner inliner = inlined ? Inliner.build(files, Inliner.DEFAULT_BUDGET) : null;
+                    CallGraph arities = TAIL_CALLS.contains(config.getKey()) ? CallGraph.build(files) : null;
+                    HackEmulator candidate = run(name, files, bootstrap, config.getValue().create(files), inliner,
+                            FOLDED.contains(config.getKey()), arities);
+                    String difference = compare(reference, candidate, inlined);
+                    if (difference != null) {
+                        failures++;
+                    }
+                    System.out.println(String.format("%s %-16s %-18s cycles %8d -> %8d%s",
+                            difference == null ? "PASS" : "FAIL", config.getKey(), name,
+                            reference.getCycles(), candidate.getCycles(),
+                            difference == null ? "" : "  (" + difference + ")"));
+                }
+            }
+        }
+        System.out.println((checks - failures) + " of " + checks + " checks passed");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    // The plain templates of projects 7 and 8.
+    private static CodeWriter referenceWriter() {
+        CodeWriter writer = new CodeWriter();
+        writer.setSpecializeOperands(false);
+        return writer;
+    }
+
+    // Translates a program with the given writer and runs it.
+    private static HackEmulator run(String name, List<File> files, boolean bootstrap, CodeWriter writer,
+                                    Inliner inliner, boolean fold, CallGraph arities) {
+        if (bootstrap) {
+            writer.writeInit();
+        }
+        for (File file : files) {
+            writer.setFileName(file.getName().replace(".vm", ""));
+            VMTranslator.processFile(file, writer, null, inliner, fold, arities);
+        }
+        if (!bootstrap) {
+            // Stop here instead of running into the shared routines.
+            writer.writeLabel("CHECK_END");
+            writer.writeGoto("CHECK_END");
+            writer.writeSharedRoutines();
+        }
+        String assembly = writer.getAssembly();
+        HackEmulator emulator = new HackEmulator(HackAssembler.assemble(assembly));
+        for (int[] entry : INITIAL_RAM.getOrDefault(name, new int[][] {{0, 256}})) {
+            emulator.setRam(entry[0], entry[1]);
+        }
+        emulator.run(MAX_CYCLES);
+        return emulator;
+    }
+
+    // Compares the RAM of two finished runs, ignoring the scratch registers R13-R15,
+    // the unused part of the stack above SP and the saved return addresses (ROM addresses
+    // depend on the code layout). Inlined calls use free temp entries as scratch, so temp
+    // is skipped for them. Returns a description of the first difference, or null.
+    private static String compare(HackEmulator expected, HackEmulator actual, boolean ignoreTemp) {
+        int sp = expected.getRam(0);
+        Set<Integer> returnAddresses = new HashSet<>();
+        for (int frame = expected.getRam(1); frame - 5 >= 256 && frame <= sp; frame = expected.getRam(frame - 4)) {
+            if (!returnAddresses.add(frame - 5)) {
+                break;
+            }
+        }
+        for (int address = 0; address < 24576; address++) {
+            if ((address >= 13 && address <= 15) || (address >= sp && address < 2048)
+                    || (ignoreTemp && address >= 5 && address <= 12)
+                    || returnAddresses.contains(address)) {
+                continue;
+            }
+            if (expected.getRam(address) != actual.getRam(address)) {
+                return "RAM[" + address + "] expected " + expected.getRam(address)
+                        + " but was " + actual.getRam(address);
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,15 @@
+// A decoded VM command: the command type, its first argument and its integer argument.
+public final class VMCommand {
+    // One of the Parser.C_* constants.
+    public final int type;
+    // Arithmetic command name, segment, label or function name (interned); "" for return.
+    public final String arg1;
+    // Index, nLocals or nArgs; -1 when the command has no second argument.
+    public final int arg2;
+
+    public VMCommand(int type, String arg1, int arg2) {
+        this.type = type;
+        this.arg1 = arg1;
+        this.arg2 = arg2;
+    }
+}
@@ -0,0 +1,462 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+// Runs .vm programs directly, without translating them to assembly. The commands are
+// decoded by Parser once and flattened into int arrays (opcode, operand, operand) with
+// every label and function resolved to an instruction index; the program runs on an
+// int[] RAM with the standard VM memory layout and call frames.
+//
+// Usage: java VMInterpreter <file.vm | directory> [--os <directory>] [--input <text>]
+//                           [--max-steps <n>] [--set <address>=<value>]... [--ram <from>-<to>]
+// --os supplies the classes the program does not define itself (e.g. 09/SumTwoNum), the way
+// the VM emulator supplies its built-in OS. --input scripts the keyboard like "set input" in
+// a test script: each character is pressed and released in turn; \n is Enter (128) and \b
+// is Backspace (129).
+public class VMInterpreter {
+    // Opcodes. PUSH_FIXED/POP_FIXED cover pointer, temp and static (operand: the address).
+    private static final int PUSH_CONSTANT = 0, PUSH_LOCAL = 1, PUSH_ARGUMENT = 2, PUSH_THIS = 3,
+            PUSH_THAT = 4, PUSH_FIXED = 5, POP_LOCAL = 6, POP_ARGUMENT = 7, POP_THIS = 8, POP_THAT = 9,
+            POP_FIXED = 10, ADD = 11, SUB = 12, NEG = 13, EQ = 14, GT = 15, LT = 16, AND = 17, OR = 18,
+            NOT = 19, GOTO = 20, IF_GOTO = 21, FUNCTION = 22, CALL = 23, RETURN = 24;
+
+    private static final int KEYBOARD = 24576;
+    // Return address of the bootstrap's call to Sys.init.
+    private static final int NO_RETURN = -1;
+
+    // The decoded program.
+    private int[] code = new int[1024];
+    private int[] first = new int[1024];
+    private int[] second = new int[1024];
+    private int size = 0;
+    // Label and function name of goto/if-goto/call instructions, resolved after loading.
+    private final Map<Integer, String> unresolved = new HashMap<>();
+    private final Map<String, Integer> targets = new HashMap<>();
+    // Next free static address.
+    private int nextStatic = 16;
+
+    private final int[] ram = new int[32768];
+    private long steps = 0;
+    private int peakSp = 0;
+    // Scripted keyboard: key codes still to be pressed, and whether the current one is down.
+    private final Deque<Integer> keys = new ArrayDeque<>();
+    private boolean keyDown = false;
+
+    // Loads the .vm files of a program. Classes missing from files are taken from osFiles.
+    public VMInterpreter(List<File> files, List<File> osFiles) throws IOException {
+        Set<String> classes = new HashSet<>();
+        for (File file : files) {
+            classes.add(file.getName().replace(".vm", ""));
+            load(file);
+        }
+        for (File file : osFiles) {
+            if (classes.add(file.getName().replace(".vm", ""))) {
+                load(file);
+            }
+        }
+        for (Map.Entry<Integer, String> entry : unresolved.entrySet()) {
+            Integer target = targets.get(entry.getValue());
+            if (target == null) {
+                throw new IllegalArgumentException("Undefined label or function: " + entry.getValue());
+            }
+            first[entry.getKey()] = target;
+        }
+        ram[0] = 256;
+    }
+
+    // Decodes one file and appends it to the program.
+    private void load(File file) throws IOException {
+        String fileName = file.getName().replace(".vm", "");
+        int staticBase = nextStatic;
+        String currentFunction = "";
+        Parser parser = new Parser(file.getAbsolutePath());
+        while (parser.hasMoreCommands()) {
+            parser.advance();
+            VMCommand command = parser.current();
+            String scope = currentFunction.isEmpty() ? "" : currentFunction + "$";
+            switch (command.type) {
+                case Parser.C_ARITHMETIC:
+                    emit(arithmeticOpcode(command.arg1), 0, 0);
+                    break;
+                case Parser.C_PUSH:
+                case Parser.C_POP:
+                    boolean push = command.type == Parser.C_PUSH;
+                    int index = command.arg2;
+                    switch (command.arg1) {
+                        case "constant": emit(PUSH_CONSTANT, index, 0); break;
+                        case "local": emit(push ? PUSH_LOCAL : POP_LOCAL, index, 0); break;
+                        case "argument": emit(push ? PUSH_ARGUMENT : POP_ARGUMENT, index, 0); break;
+                        case "this": emit(push ? PUSH_THIS : POP_THIS, index, 0); break;
+                        case "that": emit(push ? PUSH_THAT : POP_THAT, index, 0); break;
+                        case "pointer": emit(push ? PUSH_FIXED : POP_FIXED, 3 + index, 0); break;
+                        case "temp": emit(push ? PUSH_FIXED : POP_FIXED, 5 + index, 0); break;
+                        case "static":
+                            nextStatic = Math.max(nextStatic, staticBase + index + 1);
+                            emit(push ? PUSH_FIXED : POP_FIXED, staticBase + index, 0);
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Unknown segment: " + command.arg1);
+                    }
+                    break;
+                case Parser.C_LABEL:
+                    targets.put(scope + command.arg1, size);
+                    break;
+                case Parser.C_GOTO:
+                case Parser.C_IF:
+                    unresolved.put(size, scope + command.arg1);
+                    emit(command.type == Parser.C_GOTO ? GOTO : IF_GOTO, 0, 0);
+                    break;
+                case Parser.C_FUNCTION:
+                    currentFunction = command.arg1;
+                    targets.put(command.arg1, size);
+                    emit(FUNCTION, command.arg2, 0);
+                    break;
+                case Parser.C_CALL:
+                    unresolved.put(size, command.arg1);
+                    emit(CALL, 0, command.arg2);
+                    break;
+                case Parser.C_RETURN:
+                    emit(RETURN, 0, 0);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unrecognized command in " + fileName);
+            }
+        }
+    }
+
+    private static int arithmeticOpcode(String command) {
+        switch (command) {
+            case "add": return ADD;
+            case "sub": return SUB;
+            case "neg": return NEG;
+            case "eq": return EQ;
+            case "gt": return GT;
+            case "lt": return LT;
+            case "and": return AND;
+            case "or": return OR;
+            case "not": return NOT;
+            default: throw new IllegalArgumentException("Unknown command: " + command);
+        }
+    }
+
+    private void emit(int opcode, int a, int b) {
+        if (size == code.length) {
+            code = Arrays.copyOf(code, size * 2);
+            first = Arrays.copyOf(first, size * 2);
+            second = Arrays.copyOf(second, size * 2);
+        }
+        code[size] = opcode;
+        first[size] = a;
+        second[size] = b;
+        size++;
+    }
+
+    public static void main(String[] args) throws IOException {
+        String path = null;
+        String osPath = null;
+        String input = "";
+        long maxSteps = 100_000_000L;
+        int ramFrom = 0;
+        int ramTo = 2047;
+        Map<Integer, Integer> initialRam = new LinkedHashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--os") && i + 1 < args.length) {
+                osPath = args[++i];
+            } else if (arg.equals("--input") && i + 1 < args.length) {
+                input = args[++i];
+            } else if (arg.equals("--max-steps") && i + 1 < args.length) {
+                maxSteps = Long.parseLong(args[++i]);
+            } else if (arg.equals("--set") && i + 1 < args.length) {
+                String[] parts = args[++i].split("=");
+                initialRam.put(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+            } else if (arg.equals("--ram") && i + 1 < args.length) {
+                String[] parts = args[++i].split("-");
+                ramFrom = Integer.parseInt(parts[0]);
+                ramTo = Integer.parseInt(parts[1]);
+            } else if (path == null && !arg.startsWith("--")) {
+                path = arg;
+            } else {
+                path = null;
+                break;
+            }
+        }
+        if (path == null) {
+            System.out.println("Usage: java VMInterpreter <file.vm | directory> [--os <directory>]"
+                    + " [--input <text>] [--max-steps <n>] [--set <address>=<value>]... [--ram <from>-<to>]");
+            return;
+        }
+
+        VMInterpreter interpreter;
+        try {
+            interpreter = new VMInterpreter(vmFiles(new File(path)),
+                    osPath == null ? Collections.emptyList() : vmFiles(new File(osPath)));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        interpreter.setInput(input);
+        for (Map.Entry<Integer, Integer> entry : initialRam.entrySet()) {
+            interpreter.setRam(entry.getKey(), entry.getValue());
+        }
+        long start = System.nanoTime();
+        boolean halted = interpreter.run(maxSteps);
+        long elapsed = System.nanoTime() - start;
+
+        System.out.println("Steps: " + interpreter.getSteps() + (halted ? "" : " (limit reached, not halted)"));
+        System.out.println("Peak SP: " + interpreter.getPeakSp());
+        System.out.println(String.format("Speed: %.1f M commands/s",
+                interpreter.getSteps() / Math.max(elapsed / 1e9, 1e-9) / 1e6));
+        System.out.println("RAM[" + ramFrom + ".." + ramTo + "] (non-zero):");
+        for (int address = ramFrom; address <= ramTo; address++) {
+            if (interpreter.getRam(address) != 0) {
+                System.out.println("  " + address + ": " + interpreter.getRam(address));
+            }
+        }
+    }
+
+    // The .vm files of a directory, sorted by name, or the file itself.
+    private static List<File> vmFiles(File path) {
+        List<File> files = new ArrayList<>();
+        if (path.isDirectory()) {
+            File[] listed = path.listFiles((dir, name) -> name.endsWith(".vm"));
+            if (listed != null) {
+                files.addAll(Arrays.asList(listed));
+                files.sort(Comparator.comparing(File::getName));
+            }
+        } else {
+            files.add(path);
+        }
+        return files;
+    }
+
+    // Sets the keys to press, in order (see the class comment for escapes).
+    public void setInput(String input) {
+        keys.clear();
+        for (int i = 0; i < input.length(); i++) {
+            char c = input.charAt(i);
+            if (c == '\\' && i + 1 < input.length()) {
+                char escaped = input.charAt(++i);
+                keys.add(escaped == 'n' ? 128 : escaped == 'b' ? 129 : (int) escaped);
+            } else {
+                keys.add((int) c);
+            }
+        }
+        keyDown = false;
+    }
+
+    public int getRam(int address) {
+        return ram[address];
+    }
+
+    public void setRam(int address, int value) {
+        ram[address] = (short) value;
+    }
+
+    public long getSteps() {
+        return steps;
+    }
+
+    public int getPeakSp() {
+        return peakSp;
+    }
+
+    // Reads the keyboard register: every key is seen as pressed by one read and as
+    // released by the next.
+    private int readKeyboard() {
+        if (keys.isEmpty()) {
+            return 0;
+        }
+        if (keyDown) {
+            keys.poll();
+            keyDown = false;
+            return 0;
+        }
+        keyDown = true;
+        return keys.peek();
+    }
+
+    // Runs the program from Sys.init (or from its first command if there is no Sys.init)
+    // until Sys.init returns, Sys.halt is called, execution runs past the last command,
+    // or maxSteps commands have run. Returns false only in the last case.
+    // SP, LCL and ARG live in locals and are stored to RAM[0..2] on every call and return
+    // and at the end of the run; THIS and THAT stay in RAM[3] and RAM[4].
+    public boolean run(long maxSteps) {
+        final int[] code = this.code;
+        final int[] first = this.first;
+        final int[] second = this.second;
+        final int[] ram = this.ram;
+        Integer halt = targets.get("Sys.halt");
+        final int haltTarget = halt == null ? -2 : halt;
+        int sp = ram[0];
+        int lcl = ram[1];
+        int arg = ram[2];
+        int pc = 0;
+        Integer init = targets.get("Sys.init");
+        if (init != null) {
+            // The bootstrap: call Sys.init 0.
+            ram[sp] = NO_RETURN;
+            ram[sp + 1] = lcl;
+            ram[sp + 2] = arg;
+            ram[sp + 3] = ram[3];
+            ram[sp + 4] = ram[4];
+            sp += 5;
+            arg = sp - 5;
+            lcl = sp;
+            pc = init;
+        }
+        int peakSp = Math.max(this.peakSp, sp);
+        long steps = this.steps;
+        boolean halted = true;
+        int x;
+        loop:
+        while (true) {
+            if (pc >= size || pc < 0) {
+                break;
+            }
+            if (steps >= maxSteps) {
+                halted = false;
+                break;
+            }
+            steps++;
+            switch (code[pc]) {
+                case PUSH_CONSTANT:
+                    ram[sp++] = first[pc];
+                    pc++;
+                    break;
+                case PUSH_LOCAL:
+                    ram[sp++] = ram[lcl + first[pc]];
+                    pc++;
+                    break;
+                case PUSH_ARGUMENT:
+                    ram[sp++] = ram[arg + first[pc]];
+                    pc++;
+                    break;
+                case PUSH_THIS:
+                case PUSH_THAT:
+                    x = (ram[code[pc] == PUSH_THIS ? 3 : 4] + first[pc]) & 0x7FFF;
+                    ram[sp++] = x == KEYBOARD ? readKeyboard() : ram[x];
+                    pc++;
+                    break;
+                case PUSH_FIXED:
+                    ram[sp++] = ram[first[pc]];
+                    pc++;
+                    break;
+                case POP_LOCAL:
+                    ram[lcl + first[pc]] = ram[--sp];
+                    pc++;
+                    break;
+                case POP_ARGUMENT:
+                    ram[arg + first[pc]] = ram[--sp];
+                    pc++;
+                    break;
+                case POP_THIS:
+                    ram[(ram[3] + first[pc]) & 0x7FFF] = ram[--sp];
+                    pc++;
+                    break;
+                case POP_THAT:
+                    ram[(ram[4] + first[pc]) & 0x7FFF] = ram[--sp];
+                    pc++;
+                    break;
+                case POP_FIXED:
+                    ram[first[pc]] = ram[--sp];
+                    pc++;
+                    break;
+                case ADD:
+                    sp--;
+                    ram[sp - 1] = (short) (ram[sp - 1] + ram[sp]);
+                    pc++;
+                    break;
+                case SUB:
+                    sp--;
+                    ram[sp - 1] = (short) (ram[sp - 1] - ram[sp]);
+                    pc++;
+                    break;
+                case NEG:
+                    ram[sp - 1] = (short) -ram[sp - 1];
+                    pc++;
+                    break;
+                case EQ:
+                    sp--;
+                    ram[sp - 1] = ram[sp - 1] == ram[sp] ? -1 : 0;
+                    pc++;
+                    break;
+                case GT:
+                    sp--;
+                    ram[sp - 1] = ram[sp - 1] > ram[sp] ? -1 : 0;
+                    pc++;
+                    break;
+                case LT:
+                    sp--;
+                    ram[sp - 1] = ram[sp - 1] < ram[sp] ? -1 : 0;
+                    pc++;
+                    break;
+                case AND:
+                    sp--;
+                    ram[sp - 1] = ram[sp - 1] & ram[sp];
+                    pc++;
+                    break;
+                case OR:
+                    sp--;
+                    ram[sp - 1] = ram[sp - 1] | ram[sp];
+                    pc++;
+                    break;
+                case NOT:
+                    ram[sp - 1] = ~ram[sp - 1];
+                    pc++;
+                    break;
+                case GOTO:
+                    pc = first[pc];
+                    break;
+                case IF_GOTO:
+                    pc = ram[--sp] != 0 ? first[pc] : pc + 1;
+                    break;
+                case FUNCTION:
+                    for (int i = first[pc]; i > 0; i--) {
+                        ram[sp++] = 0;
+                    }
+                    pc++;
+                    break;
+                case CALL:
+                    if (first[pc] == haltTarget) {
+                        break loop;
+                    }
+                    ram[sp] = pc + 1;
+                    ram[sp + 1] = lcl;
+                    ram[sp + 2] = arg;
+                    ram[sp + 3] = ram[3];
+                    ram[sp + 4] = ram[4];
+                    sp += 5;
+                    arg = sp - 5 - second[pc];
+                    lcl = sp;
+                    pc = first[pc];
+                    if (sp > peakSp) {
+                        peakSp = sp;
+                    }
+                    break;
+                case RETURN:
+                    int frame = lcl;
+                    int returnAddress = ram[frame - 5];
+                    ram[arg] = ram[sp - 1];
+                    sp = arg + 1;
+                    ram[4] = ram[frame - 1];
+                    ram[3] = ram[frame - 2];
+                    arg = ram[frame - 3];
+                    lcl = ram[frame - 4];
+                    if (returnAddress == NO_RETURN) {
+                        break loop;
+                    }
+                    pc = returnAddress;
+                    break;
+                default:
+                    throw new IllegalStateException("Bad opcode at " + pc);
+            }
+        }
+        ram[0] = sp;
+        ram[1] = lcl;
+        ram[2] = arg;
+        this.steps = steps;
+        this.peakSp = Math.max(peakSp, sp);
+        return halted;
+    }
+}
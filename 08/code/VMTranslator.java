@@ -1,100 +1,478 @@
 import java.io.File;
 import java.io.IOException;
+import java.util.*;
+import java.util.stream.Collectors;
 
 public class VMTranslator {
+    // Code generation options, applied to every CodeWriter.
+    private static boolean sharedFrames = false;
+    private static boolean peephole = false;
+    private static boolean cacheTop = false;
+    // Write Hack machine code (.hack) instead of assembly.
+    private static boolean hackOutput = false;
+    // Write a source map (<output>.map) for the emulator's profiler.
+    private static boolean sourceMap = false;
+    private static boolean pruneFunctions = false;
+    private static boolean sharedComparisons = false;
+    private static int compareBudget = 0;
+    private static String compareProfile = null;
+    private static ComparisonPlan comparisonPlan = null;
+    private static int inlineBudget = -1;
+    // Expands calls to small leaf functions; null when inlining is off.
+    private static Inliner inliner = null;
+    private static boolean skipWrittenLocals = false;
+    // Locals that need no zeroing at function entry; null when every local is zeroed.
+    private static WrittenLocals writtenLocals = null;
+    // Simplify the VM commands with a ConstantFolder before translating them.
+    private static boolean fold = false;
+    // Write "call f n; return" as a jump that reuses the frame (see CodeWriter.writeTailCall).
+    private static boolean tailCalls = false;
+    // Argument counts of the functions, for tail calls; null when they are off.
+    private static CallGraph arities = null;
+    // Translated files from earlier runs; null when not caching.
+    private static TranslationCache cache = null;
+    // Functions that can be reached from Sys.init; null when every function is emitted.
+    private static Set<String> liveFunctions = null;
+
     public static void main(String[] args) {
+        // Separate the options from the input file or directory.
+        String inputPath = null;
+        String cachePath = null;
+        boolean clearCache = false;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--cost-table")) {
+                CodeWriter.printPushPopCosts();
+                System.out.println();
+                CodeWriter.printLocalInitCosts();
+                return;
+            } else if (arg.equals("--shared-frames")) {
+                sharedFrames = true;
+            } else if (arg.equals("--peephole")) {
+                peephole = true;
+            } else if (arg.equals("--cache-top")) {
+                cacheTop = true;
+            } else if (arg.equals("--hack")) {
+                hackOutput = true;
+            } else if (arg.equals("--source-map")) {
+                sourceMap = true;
+            } else if (arg.equals("--skip-written-locals")) {
+                skipWrittenLocals = true;
+            } else if (arg.equals("--cache") && i + 1 < args.length) {
+                cachePath = args[++i];
+            } else if (arg.equals("--clear-cache")) {
+                clearCache = true;
+            } else if (arg.equals("--fold")) {
+                fold = true;
+            } else if (arg.equals("--tail-calls")) {
+                tailCalls = true;
+            } else if (arg.equals("--prune")) {
+                pruneFunctions = true;
+            } else if (arg.equals("--shared-compare")) {
+                sharedComparisons = true;
+            } else if (arg.equals("--compare-budget") && i + 1 < args.length) {
+                sharedComparisons = true;
+                compareBudget = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--compare-profile") && i + 1 < args.length) {
+                sharedComparisons = true;
+                compareProfile = args[++i];
+            } else if (arg.equals("--inline")) {
+                inlineBudget = Inliner.DEFAULT_BUDGET;
+            } else if (arg.equals("--inline-budget") && i + 1 < args.length) {
+                inlineBudget = Integer.parseInt(args[++i]);
+            } else if (inputPath == null && !arg.startsWith("--")) {
+                inputPath = arg;
+            } else {
+                inputPath = null;
+                break;
+            }
+        }
+        
+        // Open the translation cache, emptying it first if asked to.
+        if (cachePath != null) {
+            try {
+                cache = new TranslationCache(cachePath);
+                if (clearCache) {
+                    System.out.println("Cache cleared: " + cache.invalidate() + " files removed from " + cachePath);
+                }
+            } catch (IOException e) {
+                System.err.println("Error opening cache: " + e.getMessage());
+                return;
+            }
+            if (inputPath == null && clearCache) {
+                return;
+            }
+        }
+        
         // Check if user provided an input file or directory.
-        if (args.length != 1) {
-            System.out.println("Usage: java VMTranslator <inputfile.vm | inputdirectory>");
+        if (inputPath == null) {
+            System.out.println("Usage: java VMTranslator --cost-table");
+            System.out.println("       java VMTranslator --cache <directory> --clear-cache");
+            System.out.println("       java VMTranslator [--hack] [--source-map] [--shared-frames] [--peephole] [--cache-top] [--prune]"
+                    + " [--fold] [--skip-written-locals] [--tail-calls] [--cache <directory> [--clear-cache]]"
+                    + " [--shared-compare] [--compare-budget <words>] [--compare-profile <file>]"
+                    + " [--inline] [--inline-budget <commands>]"
+                    + " <inputfile.vm | inputdirectory>");
             return;
         }
         
-        String inputPath = args[0];
         File inFile = new File(inputPath);
         
         // Determine the output file name.
         // If a directory is provided, output one file whose name is the directory name + ".asm".
-        // Otherwise, change the .vm extension to .asm.
+        // Otherwise, change the .vm extension to .asm. Machine code goes to .hack instead.
+        String extension = hackOutput ? ".hack" : ".asm";
         String outputPath;
         if (inFile.isDirectory()) {
-            outputPath = inputPath + "/" + inFile.getName() + ".asm";
+            outputPath = inputPath + "/" + inFile.getName() + extension;
         } else {
-            outputPath = inputPath.substring(0, inputPath.lastIndexOf('.')) + ".asm";
+            outputPath = inputPath.substring(0, inputPath.lastIndexOf('.')) + extension;
         }
         
         // Create an instance of CodeWriter with the output file.
+        // For .hack output the assembly stays in memory and is assembled at the end.
         CodeWriter codeWriter = null;
         try {
-            codeWriter = new CodeWriter(outputPath);
+            if (hackOutput) {
+                codeWriter = newCodeWriter();
+            } else {
+                codeWriter = cacheTop ? new CachedStackCodeWriter(outputPath) : new CodeWriter(outputPath);
+            }
         } catch (IOException e) {
             System.err.println("Error opening output file: " + e.getMessage());
             return;
         }
         
-        // Write bootstrap code (sets SP=256 and calls Sys.init).
-        codeWriter.writeInit();
-        
-        // Process all .vm files.
+        // Collect the .vm files, sorted by name so the output is reproducible.
+        List<File> files = new ArrayList<>();
         if (inFile.isDirectory()) {
-            File[] files = inFile.listFiles((dir, name) -> name.endsWith(".vm"));
-            if (files != null) {
-                for (File file : files) {
-                    // Set the file name (needed for static variables).
-                    codeWriter.setFileName(file.getName().replace(".vm", ""));
-                    processFile(file, codeWriter);
-                }
+            File[] listed = inFile.listFiles((dir, name) -> name.endsWith(".vm"));
+            if (listed != null) {
+                files.addAll(Arrays.asList(listed));
+                files.sort(Comparator.comparing(File::getName));
             }
         } else {
-            codeWriter.setFileName(inFile.getName().replace(".vm", ""));
-            processFile(inFile, codeWriter);
+            files.add(inFile);
+        }
+        
+        // Find the functions that can actually run, starting from the bootstrap's call to Sys.init.
+        List<String> droppedFunctions = new ArrayList<>();
+        if (pruneFunctions) {
+            try {
+                CallGraph graph = CallGraph.build(files);
+                if (graph.defines("Sys.init")) {
+                    liveFunctions = graph.reachableFrom("Sys.init");
+                    for (String function : graph.functions()) {
+                        if (!liveFunctions.contains(function)) {
+                            droppedFunctions.add(function);
+                        }
+                    }
+                } else {
+                    System.err.println("No Sys.init found; keeping all functions.");
+                }
+            } catch (IOException e) {
+                System.err.println("Error building call graph: " + e.getMessage());
+            }
+        }
+        
+        // Decide which comparisons stay inline when the shared comparison routines are used.
+        if (sharedComparisons) {
+            try {
+                Map<String, Long> profile = compareProfile == null
+                        ? Collections.emptyMap() : ComparisonPlan.readProfile(compareProfile);
+                comparisonPlan = ComparisonPlan.build(files, profile, compareBudget);
+            } catch (IOException e) {
+                System.err.println("Error planning comparisons: " + e.getMessage());
+                return;
+            }
+        }
+        
+        // Find the leaf functions small enough to be expanded at their call sites.
+        if (inlineBudget >= 0) {
+            try {
+                inliner = Inliner.build(files, inlineBudget);
+            } catch (IOException e) {
+                System.err.println("Error scanning functions for inlining: " + e.getMessage());
+                return;
+            }
+        }
+        
+        // Find the locals that are written before they are read.
+        if (skipWrittenLocals) {
+            try {
+                writtenLocals = WrittenLocals.build(files);
+            } catch (IOException e) {
+                System.err.println("Error scanning functions for local writes: " + e.getMessage());
+                return;
+            }
+        }
+        
+        // Find how many arguments each function is called with.
+        if (tailCalls) {
+            try {
+                arities = CallGraph.build(files);
+            } catch (IOException e) {
+                System.err.println("Error scanning calls for tail calls: " + e.getMessage());
+                return;
+            }
         }
         
+        // A change in one file can change the code of others under these options.
+        if (cache != null && (inliner != null || liveFunctions != null || arities != null)) {
+            System.err.println("The cache is not used with --inline, --prune or --tail-calls.");
+            cache = null;
+        }
+        
+        // Translate every file on its own worker into an in-memory fragment.
+        // Labels are scoped by file name, so the fragments do not depend on each other.
+        List<CodeWriter> fragments = files.parallelStream()
+                .map(VMTranslator::translateFile)
+                .collect(Collectors.toList());
+        
+        // Write bootstrap code (sets SP=256 and calls Sys.init), then the fragments in file order.
+        configure(codeWriter);
+        codeWriter.writeInit();
+        for (CodeWriter fragment : fragments) {
+            codeWriter.append(fragment);
+        }
+        // The fragments' text now lives in codeWriter.
+        fragments.clear();
+        
         // Close the CodeWriter.
         codeWriter.close();
+        if (hackOutput) {
+            try {
+                byte[] assembly = codeWriter.getAssemblyBytes();
+                int[] words = HackAssembler.assemble(assembly, assembly.length);
+                HackAssembler.writeHack(words, outputPath);
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println("Error writing output file: " + e.getMessage());
+                return;
+            }
+        }
+        if (sourceMap) {
+            String mapPath = outputPath.substring(0, outputPath.lastIndexOf('.')) + ".map";
+            try {
+                codeWriter.getSourceMap().write(mapPath);
+            } catch (IOException e) {
+                System.err.println("Error writing source map: " + e.getMessage());
+                return;
+            }
+            System.out.println("Source map saved to " + mapPath);
+        }
         System.out.println("Translation complete! Output saved to " + outputPath);
+        if (cache != null) {
+            System.out.println("Cache: " + cache.getHits() + " hits, " + cache.getMisses() + " misses");
+        }
+        if (sharedFrames) {
+            System.out.println("Instructions: " + codeWriter.getInlineInstructionCount() + " inline -> "
+                    + codeWriter.getInstructionCount() + " with shared call/return routines");
+        }
+        if (comparisonPlan != null) {
+            System.out.println("Comparisons: " + comparisonPlan.getInlineSiteCount() + " of "
+                    + comparisonPlan.getSiteCount() + " sites inline, the rest use the shared routines");
+        }
+        if (inliner != null) {
+            Map<String, Integer> inlined = inliner.getInlinedSites();
+            int sites = inlined.values().stream().mapToInt(Integer::intValue).sum();
+            System.out.println("Inlined " + sites + " call sites of " + inlined.size() + " functions (budget "
+                    + inliner.getBudget() + " commands, " + inliner.getCandidates().size() + " candidates, "
+                    + inliner.getSkippedSites() + " sites kept for lack of free temp entries)");
+            for (Map.Entry<String, Integer> entry : inlined.entrySet()) {
+                System.out.println("  " + entry.getKey() + ": " + entry.getValue());
+            }
+        }
+        if (fold) {
+            System.out.println("Folding: removed " + codeWriter.getFoldedCommandCount() + " VM commands");
+            for (Map.Entry<String, Integer> entry : codeWriter.getFoldCounts().entrySet()) {
+                System.out.println("  " + entry.getKey() + ": " + entry.getValue());
+            }
+        }
+        if (tailCalls) {
+            System.out.println("Tail calls: " + codeWriter.getTailCallCount() + " calls written as jumps");
+        }
+        if (writtenLocals != null) {
+            System.out.println("Locals written before they are read, not zeroed: " + writtenLocals.getSkippedCount());
+        }
+        if (pruneFunctions) {
+            System.out.println("Dropped " + droppedFunctions.size() + " unreachable functions, saving "
+                    + codeWriter.getDroppedInstructionCount() + " instructions");
+            for (String function : droppedFunctions) {
+                System.out.println("  " + function);
+            }
+        }
+        if (peephole) {
+            PeepholeOptimizer optimizer = codeWriter.getPeephole();
+            System.out.println("Peephole: removed " + optimizer.getTotalRemoved() + " of "
+                    + codeWriter.getInstructionCount() + " instructions");
+            for (Map.Entry<String, Integer> entry : optimizer.getRemovedCounts().entrySet()) {
+                System.out.println("  " + entry.getKey() + ": " + entry.getValue());
+            }
+        }
     }
 
-    private static void processFile(File file, CodeWriter codeWriter) {
+    // Applies the command line options to a CodeWriter.
+    private static void configure(CodeWriter codeWriter) {
+        codeWriter.setSharedFrames(sharedFrames);
+        codeWriter.setPeephole(peephole);
+        codeWriter.setComparisonPlan(comparisonPlan);
+        codeWriter.setSourceMap(sourceMap);
+        codeWriter.setWrittenLocals(writtenLocals);
+    }
+
+    // Creates an in-memory CodeWriter of the selected kind.
+    private static CodeWriter newCodeWriter() {
+        return cacheTop ? new CachedStackCodeWriter() : new CodeWriter();
+    }
+
+    // Translates one .vm file into an in-memory CodeWriter, or takes it from the cache.
+    private static CodeWriter translateFile(File file) {
+        String key = null;
+        if (cache != null) {
+            try {
+                key = cache.key(file, cacheOptions(file));
+                CodeWriter cached = newCodeWriter();
+                configure(cached);
+                if (cache.load(key, cached)) {
+                    return cached;
+                }
+            } catch (IOException e) {
+                System.err.println("Error reading file " + file.getName() + ": " + e.getMessage());
+            }
+        }
+        CodeWriter fragment = newCodeWriter();
+        configure(fragment);
+        // Set the file name (needed for static variables and labels).
+        fragment.setFileName(file.getName().replace(".vm", ""));
+        if (liveFunctions == null) {
+            processFile(file, fragment, null, inliner, fold, arities);
+        } else {
+            // Unreachable functions are still translated, into a separate writer, to measure their size.
+            CodeWriter dropped = newCodeWriter();
+            configure(dropped);
+            dropped.setFileName(file.getName().replace(".vm", ""));
+            processFile(file, fragment, dropped, inliner, fold, arities);
+            dropped.close();
+            fragment.addDroppedInstructions(dropped.getInstructionCount());
+        }
+        if (key != null) {
+            try {
+                cache.store(key, fragment);
+            } catch (IOException e) {
+                System.err.println("Error writing cache entry for " + file.getName() + ": " + e.getMessage());
+            }
+        }
+        return fragment;
+    }
+    
+    // The options that affect the code of one file, as part of its cache key.
+    private static String cacheOptions(File file) {
+        String fileName = file.getName().replace(".vm", "");
+        return "shared-frames=" + sharedFrames + " peephole=" + peephole + " cache-top=" + cacheTop
+                + " skip-written-locals=" + skipWrittenLocals + " fold=" + fold + " source-map=" + sourceMap
+                + " compare=" + (comparisonPlan == null ? "off" : comparisonPlan.getInlineSites(fileName));
+    }
+
+    // Translates a file. Functions outside liveFunctions go to the dropped writer instead.
+    // Calls the inliner accepts are expanded in place; inliner may be null. With fold set the
+    // commands go through a ConstantFolder, whose rewrites are recorded in liveWriter. With
+    // arities set, a call directly followed by return becomes a tail call when the current
+    // function is always called with at least as many arguments as the callee takes.
+    static void processFile(File file, CodeWriter liveWriter, CodeWriter droppedWriter, Inliner inliner,
+                            boolean fold, CallGraph arities) {
+        CodeWriter codeWriter = liveWriter;
+        String currentFunction = "";
+        int inlineSite = 0;
         try {
-            Parser parser = new Parser(file.getAbsolutePath());
-            while (parser.hasMoreCommands()) {
-                parser.advance();
-                int type = parser.commandType();
-                switch (type) {
-                    case Parser.C_ARITHMETIC:
-                        codeWriter.writeArithmetic(parser.arg1());
-                        break;
-                    case Parser.C_PUSH:
-                    case Parser.C_POP:
-                        codeWriter.writePushPop(type, parser.arg1(), parser.arg2());
-                        break;
-                    case Parser.C_LABEL:
-                        codeWriter.writeLabel(parser.arg1());
-                        break;
-                    case Parser.C_GOTO:
-                        codeWriter.writeGoto(parser.arg1());
-                        break;
-                    case Parser.C_IF:
-                        codeWriter.writeIf(parser.arg1());
-                        break;
-                    case Parser.C_FUNCTION:
-                        codeWriter.writeFunction(parser.arg1(), parser.arg2());
-                        break;
-                    case Parser.C_CALL:
-                        codeWriter.writeCall(parser.arg1(), parser.arg2());
-                        break;
-                    case Parser.C_RETURN:
-                        codeWriter.writeReturn();
-                        break;
-                    default:
-                        // Should not happen.
-                        System.err.println("Unrecognized command: " + parser.arg1());
-                        break;
+            CommandSource parser = new Parser(file.getAbsolutePath());
+            ConstantFolder folder = null;
+            if (fold) {
+                folder = new ConstantFolder(parser);
+                parser = folder;
+            }
+            // One command of lookahead, to see the return after a call.
+            VMCommand next = null;
+            int nextLine = 0;
+            while (next != null || parser.hasMoreCommands()) {
+                VMCommand command;
+                int line;
+                if (next != null) {
+                    command = next;
+                    line = nextLine;
+                    next = null;
+                } else {
+                    parser.advance();
+                    command = parser.current();
+                    line = parser.lineNumber();
+                }
+                if (command.type == Parser.C_FUNCTION) {
+                    currentFunction = command.arg1;
+                    if (droppedWriter != null) {
+                        codeWriter = liveFunctions.contains(command.arg1) ? liveWriter : droppedWriter;
+                    }
+                }
+                codeWriter.setLineNumber(line);
+                if (command.type == Parser.C_CALL && inliner != null && codeWriter == liveWriter
+                        && inliner.inline(codeWriter, currentFunction, command.arg1, command.arg2, inlineSite)) {
+                    inlineSite++;
+                    continue;
                 }
+                if (command.type == Parser.C_CALL && arities != null && parser.hasMoreCommands()) {
+                    parser.advance();
+                    next = parser.current();
+                    nextLine = parser.lineNumber();
+                    int callerArgs = arities.arity(currentFunction);
+                    if (next.type == Parser.C_RETURN && command.arg2 <= callerArgs) {
+                        codeWriter.writeTailCall(command.arg1, command.arg2, callerArgs);
+                        next = null;
+                        continue;
+                    }
+                }
+                writeCommand(codeWriter, command);
+            }
+            if (folder != null) {
+                liveWriter.addFoldCounts(folder.getRewrites(), folder.getRemovedCommands());
             }
         } catch (IOException e) {
             System.err.println("Error processing file " + file.getName() + ": " + e.getMessage());
         }
     }
-}
 
+    // Translates one VM command.
+    static void writeCommand(CodeWriter codeWriter, VMCommand command) {
+        switch (command.type) {
+            case Parser.C_ARITHMETIC:
+                codeWriter.writeArithmetic(command.arg1);
+                break;
+            case Parser.C_PUSH:
+            case Parser.C_POP:
+                codeWriter.writePushPop(command.type, command.arg1, command.arg2);
+                break;
+            case Parser.C_LABEL:
+                codeWriter.writeLabel(command.arg1);
+                break;
+            case Parser.C_GOTO:
+                codeWriter.writeGoto(command.arg1);
+                break;
+            case Parser.C_IF:
+                codeWriter.writeIf(command.arg1);
+                break;
+            case Parser.C_IF_NOT:
+                codeWriter.writeIfNot(command.arg1);
+                break;
+            case Parser.C_FUNCTION:
+                codeWriter.writeFunction(command.arg1, command.arg2);
+                break;
+            case Parser.C_CALL:
+                codeWriter.writeCall(command.arg1, command.arg2);
+                break;
+            case Parser.C_RETURN:
+                codeWriter.writeReturn();
+                break;
+            default:
+                // Should not happen.
+                System.err.println("Unrecognized command: " + command.arg1);
+                break;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+// Finds the locals of each function that are always written before they are read, so
+// writeFunction does not have to zero them. Only the straight-line start of a function is
+// examined: the commands up to its first label, goto, if-goto or return. A "pop local i"
+// there that comes before any "push local i" writes local i first. Calls do not end the
+// start, as a callee has no way to name the caller's locals.
+public class WrittenLocals {
+    // Function name -> locals written first.
+    private final Map<String, BitSet> written = new HashMap<>();
+    private int skippedCount = 0;
+
+    public static WrittenLocals build(List<File> files) throws IOException {
+        WrittenLocals result = new WrittenLocals();
+        for (File file : files) {
+            Parser parser = new Parser(file.getAbsolutePath());
+            BitSet writtenFirst = null;
+            BitSet read = null;
+            while (parser.hasMoreCommands()) {
+                parser.advance();
+                VMCommand command = parser.current();
+                if (command.type == Parser.C_FUNCTION) {
+                    writtenFirst = new BitSet();
+                    read = new BitSet();
+                    result.written.put(command.arg1, writtenFirst);
+                    continue;
+                }
+                if (writtenFirst == null) {
+                    continue;
+                }
+                switch (command.type) {
+                    case Parser.C_PUSH:
+                        if (command.arg1.equals("local")) {
+                            read.set(command.arg2);
+                        }
+                        break;
+                    case Parser.C_POP:
+                        if (command.arg1.equals("local") && !read.get(command.arg2)) {
+                            writtenFirst.set(command.arg2);
+                        }
+                        break;
+                    case Parser.C_LABEL:
+                    case Parser.C_GOTO:
+                    case Parser.C_IF:
+                    case Parser.C_RETURN:
+                        writtenFirst = null;
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+        for (BitSet locals : result.written.values()) {
+            result.skippedCount += locals.cardinality();
+        }
+        return result;
+    }
+
+    public boolean isWrittenFirst(String function, int local) {
+        BitSet locals = written.get(function);
+        return locals != null && locals.get(local);
+    }
+
+    // Number of locals, over all functions, that need no zeroing.
+    public int getSkippedCount() {
+        return skippedCount;
+    }
+}
@@ -0,0 +1,297 @@
+@256
+D=A
+@SP
+M=D
+@RETURN_LABEL0
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@LCL
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@ARG
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@THIS
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@THAT
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@SP
+D=M
+@5
+D=D-A
+@ARG
+M=D
+@SP
+D=M
+@LCL
+M=D
+@Sys.init
+0;JMP
+(RETURN_LABEL0)
+@SP
+A=M
+M=0
+@SP
+M=M+1
+@SP
+AM=M-1
+D=M
+@LCL
+A=M
+M=D
+@SP
+A=M
+M=0
+@SP
+M=M+1
+@SP
+AM=M-1
+D=M
+@LCL
+A=M+1
+M=D
+(LOOP)
+@ARG
+A=M
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@SP
+A=M
+M=0
+@SP
+M=M+1
+@SP
+AM=M-1
+D=M
+A=A-1
+D=M-D
+@NegatedBranch$TRUE_LABEL0
+D;JGT
+@SP
+A=M-1
+M=0
+@NegatedBranch$END_LABEL0
+0;JMP
+(NegatedBranch$TRUE_LABEL0)
+@SP
+A=M-1
+M=-1
+(NegatedBranch$END_LABEL0)
+@SP
+A=M-1
+M=!M
+@SP
+AM=M-1
+D=M
+@END
+D;JNE
+@ARG
+A=M
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@SP
+A=M
+M=1
+@SP
+M=M+1
+@SP
+AM=M-1
+D=M
+A=A-1
+M=M&D
+@SP
+A=M
+M=0
+@SP
+M=M+1
+@SP
+AM=M-1
+D=M
+A=A-1
+D=M-D
+@NegatedBranch$TRUE_LABEL1
+D;JEQ
+@SP
+A=M-1
+M=0
+@NegatedBranch$END_LABEL1
+0;JMP
+(NegatedBranch$TRUE_LABEL1)
+@SP
+A=M-1
+M=-1
+(NegatedBranch$END_LABEL1)
+@SP
+A=M-1
+M=!M
+@SP
+AM=M-1
+D=M
+@ODD
+D;JNE
+@LCL
+A=M+1
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@SP
+A=M
+M=1
+@SP
+M=M+1
+@SP
+AM=M-1
+D=M
+A=A-1
+M=M+D
+@SP
+AM=M-1
+D=M
+@LCL
+A=M+1
+M=D
+@NEXT
+0;JMP
+(ODD)
+@LCL
+A=M
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@SP
+A=M
+M=1
+@SP
+M=M+1
+@SP
+AM=M-1
+D=M
+A=A-1
+M=M+D
+@SP
+AM=M-1
+D=M
+@LCL
+A=M
+M=D
+(NEXT)
+@ARG
+A=M
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@SP
+A=M
+M=1
+@SP
+M=M+1
+@SP
+AM=M-1
+D=M
+A=A-1
+M=M-D
+@SP
+AM=M-1
+D=M
+@ARG
+A=M
+M=D
+@LOOP
+0;JMP
+(END)
+@LCL
+A=M
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@LCL
+A=M
+D=M
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@SP
+AM=M-1
+D=M
+A=A-1
+D=M-D
+@NegatedBranch$TRUE_LABEL2
+D;JEQ
+@SP
+A=M-1
+M=0
+@NegatedBranch$END_LABEL2
+0;JMP
+(NegatedBranch$TRUE_LABEL2)
+@SP
+A=M-1
+M=-1
+(NegatedBranch$END_LABEL2)
+(CHECK)
+@SP
+A=M-1
+M=!M
+@SP
+AM=M-1
+D=M
+@SKIP
+D;JNE
+@7
+D=A
+@SP
+A=M
+M=D
+@SP
+M=M+1
+@SP
+AM=M-1
+D=M
+@LCL
+A=M+1
+A=A+1
+M=D
+(SKIP)
@@ -1,11 +1,25 @@
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.io.*;
 import java.util.*;
 
+// Splits Jack source into tokens in one pass over a Reader. Comments and whitespace are
+// skipped as they come, so the source is never copied; only a fixed-size buffer of it is
+// held at a time. Every token records the line and column (both from 1) where it starts.
 public class JackTokenizer {
+    private static final int BUFFER_SIZE = 8192;
+
     private final String inputPath;
-    private String src;
+    private Reader reader;
+    private final char[] buffer = new char[BUFFER_SIZE];
     private int pos = 0;
+    private int limit = 0;
+    private boolean endOfInput = false;
+    // Position of buffer[pos].
+    private int line = 1;
+    private int column = 1;
+    // Text of the identifier, number or string being read.
+    private final StringBuilder text = new StringBuilder();
 
     private static final Set<Character> SYMBOLS = Set.of(
         '{','}','(',')','[',']','.',',',';','+','-','*','/','&','|','<','>','=','~'
@@ -21,48 +35,75 @@ public class JackTokenizer {
         this.inputPath = inputPath;
     }
 
-    public List<Token> getTokens() throws IOException {
-        src = Files.readString(Path.of(inputPath));
-        src = src.replaceAll("/\\*\\*?[^*]*\\*+(?:[^/*][^*]*\\*+)*/", "");  // block comments
-        src = src.replaceAll("//.*", "");  // single line comments
+    // Reads the tokens from a Reader instead of a file.
+    public JackTokenizer(Reader reader) {
+        this.inputPath = null;
+        this.reader = reader;
+    }
 
+    public List<Token> getTokens() throws IOException {
         List<Token> tokens = new ArrayList<>();
-        pos = 0;
-        while (pos < src.length()) {
-            skipWhitespace();
-            if (pos >= src.length()) break;
-
-            char c = src.charAt(pos);
-
-            if (SYMBOLS.contains(c)) {
-                tokens.add(new Token("symbol", String.valueOf(c)));
-                pos++;
-            } else if (c == '"') {
-                pos++;
-                int start = pos;
-                while (pos < src.length() && src.charAt(pos) != '"') pos++;
-                String strVal = src.substring(start, pos);
-                tokens.add(new Token("stringConstant", strVal));
-                pos++; // skip closing "
-            } else if (Character.isDigit(c)) {
-                int start = pos;
-                while (pos < src.length() && Character.isDigit(src.charAt(pos))) pos++;
-                String num = src.substring(start, pos);
-                tokens.add(new Token("integerConstant", num));
-            } else {
-                int start = pos;
-                while (pos < src.length() && (Character.isLetterOrDigit(src.charAt(pos)) || src.charAt(pos) == '_')) pos++;
-                String word = src.substring(start, pos);
-                if (KEYWORDS.contains(word)) {
-                    tokens.add(new Token("keyword", word));
-                } else {
-                    tokens.add(new Token("identifier", word));
-                }
+        try {
+            Token token;
+            while ((token = nextToken()) != null) {
+                tokens.add(token);
             }
+        } finally {
+            close();
         }
         return tokens;
     }
 
+    // Returns the next token, or null at the end of the input.
+    public Token nextToken() throws IOException {
+        if (reader == null) {
+            reader = Files.newBufferedReader(Path.of(inputPath), StandardCharsets.UTF_8);
+        }
+        skipWhitespaceAndComments();
+        if (!ensure(1)) {
+            return null;
+        }
+        int startLine = line;
+        int startColumn = column;
+        char c = buffer[pos];
+
+        if (SYMBOLS.contains(c)) {
+            next();
+            return new Token("symbol", String.valueOf(c), startLine, startColumn);
+        } else if (c == '"') {
+            next();
+            text.setLength(0);
+            while (true) {
+                if (!ensure(1) || buffer[pos] == '\n') {
+                    throw error("Unterminated string constant", startLine, startColumn);
+                }
+                char d = next();
+                if (d == '"') break;
+                text.append(d);
+            }
+            return new Token("stringConstant", text.toString(), startLine, startColumn);
+        } else if (Character.isDigit(c)) {
+            text.setLength(0);
+            while (ensure(1) && Character.isDigit(buffer[pos])) text.append(next());
+            return new Token("integerConstant", text.toString(), startLine, startColumn);
+        } else if (Character.isLetter(c) || c == '_') {
+            text.setLength(0);
+            while (ensure(1) && (Character.isLetterOrDigit(buffer[pos]) || buffer[pos] == '_')) text.append(next());
+            String word = text.toString();
+            if (KEYWORDS.contains(word)) {
+                return new Token("keyword", word, startLine, startColumn);
+            }
+            return new Token("identifier", word, startLine, startColumn);
+        }
+        throw error("Unexpected character '" + c + "'", startLine, startColumn);
+    }
+
+    public void close() throws IOException {
+        if (reader != null) {
+            reader.close();
+        }
+    }
+
     public void writeTokens(String outputPath) throws IOException {
         List<Token> tokens = getTokens();
         try (BufferedWriter w = Files.newBufferedWriter(Path.of(outputPath))) {
@@ -74,8 +115,74 @@ public class JackTokenizer {
         }
     }
 
-    private void skipWhitespace() {
-        while (pos < src.length() && Character.isWhitespace(src.charAt(pos))) pos++;
+    // Skips whitespace, "// ..." to the end of the line and "/* ... */" (and "/** ... */").
+    // A '/' that starts neither is left for nextToken as a symbol.
+    private void skipWhitespaceAndComments() throws IOException {
+        while (ensure(1)) {
+            char c = buffer[pos];
+            if (Character.isWhitespace(c)) {
+                next();
+            } else if (c == '/' && ensure(2) && buffer[pos + 1] == '/') {
+                while (ensure(1) && buffer[pos] != '\n') next();
+            } else if (c == '/' && ensure(2) && buffer[pos + 1] == '*') {
+                int startLine = line;
+                int startColumn = column;
+                next();
+                next();
+                while (true) {
+                    if (!ensure(2)) {
+                        throw error("Unterminated comment", startLine, startColumn);
+                    }
+                    if (buffer[pos] == '*' && buffer[pos + 1] == '/') {
+                        next();
+                        next();
+                        break;
+                    }
+                    next();
+                }
+            } else {
+                return;
+            }
+        }
+    }
+
+    // Consumes one character, keeping track of the line and column.
+    private char next() {
+        char c = buffer[pos++];
+        if (c == '\n') {
+            line++;
+            column = 1;
+        } else {
+            column++;
+        }
+        return c;
+    }
+
+    // Makes sure count characters are buffered at pos; false if the input ends first.
+    private boolean ensure(int count) throws IOException {
+        if (limit - pos >= count) {
+            return true;
+        }
+        if (endOfInput) {
+            return false;
+        }
+        System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+        limit -= pos;
+        pos = 0;
+        while (limit < count) {
+            int read = reader.read(buffer, limit, buffer.length - limit);
+            if (read < 0) {
+                endOfInput = true;
+                return false;
+            }
+            limit += read;
+        }
+        return true;
+    }
+
+    private IOException error(String message, int atLine, int atColumn) {
+        String source = inputPath == null ? "input" : inputPath;
+        return new IOException(source + ":" + atLine + ":" + atColumn + ": " + message);
     }
 
     private static String escape(String s) {
@@ -87,9 +194,13 @@ public class JackTokenizer {
     public static class Token {
         public final String type;
         public final String text;
-        public Token(String type, String text) {
+        public final int line;
+        public final int column;
+        public Token(String type, String text, int line, int column) {
             this.type = type;
             this.text = text;
+            this.line = line;
+            this.column = column;
         }
     }
 }
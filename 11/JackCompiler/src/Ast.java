@@ -0,0 +1,164 @@
+import java.util.List;
+
+// Abstract syntax of one subroutine, built by CompilationEngine and lowered to Ir by
+// IrBuilder. Names are resolved while parsing: a Var carries its VM segment, index and
+// declared type, and a Call the full name of the function it calls.
+public final class Ast {
+    private Ast() {
+    }
+
+    public abstract static class Expr {
+    }
+
+    public static final class IntConst extends Expr {
+        public final int value;
+
+        public IntConst(int value) {
+            this.value = value;
+        }
+    }
+
+    public static final class StringConst extends Expr {
+        public final String value;
+
+        public StringConst(String value) {
+            this.value = value;
+        }
+    }
+
+    public static final class Var extends Expr {
+        public final String segment;
+        public final int index;
+        public final String type;
+
+        public Var(String segment, int index, String type) {
+            this.segment = segment;
+            this.index = index;
+            this.type = type;
+        }
+    }
+
+    // array[index]
+    public static final class Index extends Expr {
+        public final Var array;
+        public final Expr index;
+
+        public Index(Var array, Expr index) {
+            this.array = array;
+            this.index = index;
+        }
+    }
+
+    // op is '-' or '~'.
+    public static final class Unary extends Expr {
+        public final char op;
+        public final Expr operand;
+
+        public Unary(char op, Expr operand) {
+            this.op = op;
+            this.operand = operand;
+        }
+    }
+
+    // op is one of + - * / & | < > =
+    public static final class Binary extends Expr {
+        public final char op;
+        public final Expr left;
+        public final Expr right;
+
+        public Binary(char op, Expr left, Expr right) {
+            this.op = op;
+            this.left = left;
+            this.right = right;
+        }
+    }
+
+    public static final class Call extends Expr {
+        public final String function;
+        public final List<Expr> args;
+
+        public Call(String function, List<Expr> args) {
+            this.function = function;
+            this.args = args;
+        }
+    }
+
+    // A term the compiler does not translate (keyword constants and unknown names). It
+    // produces no code, as in the single-pass compiler.
+    public static final class Skipped extends Expr {
+    }
+
+    public abstract static class Stmt {
+    }
+
+    // let target = value, or let target[index] = value.
+    public static final class Let extends Stmt {
+        public final Var target;
+        public final Expr index;
+        public final Expr value;
+
+        public Let(Var target, Expr index, Expr value) {
+            this.target = target;
+            this.index = index;
+            this.value = value;
+        }
+    }
+
+    public static final class Do extends Stmt {
+        public final Call call;
+
+        public Do(Call call) {
+            this.call = call;
+        }
+    }
+
+    // value is null for "return;".
+    public static final class Return extends Stmt {
+        public final Expr value;
+
+        public Return(Expr value) {
+            this.value = value;
+        }
+    }
+
+    // otherwise is null without an else branch.
+    public static final class If extends Stmt {
+        public final Expr condition;
+        public final List<Stmt> then;
+        public final List<Stmt> otherwise;
+
+        public If(Expr condition, List<Stmt> then, List<Stmt> otherwise) {
+            this.condition = condition;
+            this.then = then;
+            this.otherwise = otherwise;
+        }
+    }
+
+    public static final class While extends Stmt {
+        public final Expr condition;
+        public final List<Stmt> body;
+
+        public While(Expr condition, List<Stmt> body) {
+            this.condition = condition;
+            this.body = body;
+        }
+    }
+
+    public static final class Subroutine {
+        public final String name;
+        // "constructor", "function" or "method".
+        public final String kind;
+        public final int localCount;
+        // Fields of the class, for a constructor's allocation.
+        public final int fieldCount;
+        public final List<Stmt> body;
+
+        public Subroutine(String name, String kind, int localCount, int fieldCount, List<Stmt> body) {
+            this.name = name;
+            this.kind = kind;
+            this.localCount = localCount;
+            this.fieldCount = fieldCount;
+            this.body = body;
+        }
+    }
+}
@@ -1,42 +1,66 @@
 import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.List;
 
+// Parses a class into the AST of one subroutine at a time, lowers it to Ir, runs the
+// optimization passes over it and writes its VM code.
 public class CompilationEngine {
-    private final List<JackTokenizer.Token> tokens;
-    private final VMWriter vmWriter;
+    private final TokenSource tokens;
+    private final IrCodeGenerator generator;
+    private final List<IrPass> passes;
     private final SymbolTable symbolTable = new SymbolTable();
     private int index = 0;
-    private int labelCounter = 0;
+    private IrBuilder irBuilder;
     private String className;
     private String subroutineType;
+    // Where each statement is traced as it is parsed, or null.
+    private PrintStream trace = System.out;
 
-    public CompilationEngine(List<JackTokenizer.Token> tokens, VMWriter vmWriter) {
+    public CompilationEngine(TokenSource tokens, VMWriter vmWriter) {
+        this(tokens, vmWriter, List.of());
+    }
+
+    public CompilationEngine(TokenSource tokens, VMWriter vmWriter, List<IrPass> passes) {
         this.tokens = tokens;
-        this.vmWriter = vmWriter;
+        this.generator = new IrCodeGenerator(vmWriter);
+        this.passes = passes;
+    }
+
+    // Sends the statement trace to out instead of System.out; null turns it off.
+    public void setTrace(PrintStream out) {
+        trace = out;
     }
 
     public void compileClass() throws IOException {
-        advance(); // 'class'
-        className = current().text; advance(); // className
-        advance(); // '{'
-        while (currentIsKeyword("static") || currentIsKeyword("field")) {
-            compileClassVarDec();
-        }
-        while (currentIsKeyword("constructor") || currentIsKeyword("function") || currentIsKeyword("method")) {
-            compileSubroutine();
+        try {
+            advance(); // 'class'
+            className = text(); advance(); // className
+            irBuilder = new IrBuilder(className);
+            advance(); // '{'
+            while (currentIsKeyword(TokenBuffer.STATIC) || currentIsKeyword(TokenBuffer.FIELD)) {
+                compileClassVarDec();
+            }
+            while (currentIsKeyword(TokenBuffer.CONSTRUCTOR) || currentIsKeyword(TokenBuffer.FUNCTION) || currentIsKeyword(TokenBuffer.METHOD)) {
+                compileSubroutine();
+            }
+            advance(); // '}'
+        } catch (UncheckedIOException e) {
+            // A TokenStream that could not read the next token.
+            throw e.getCause();
         }
-        advance(); // '}'
     }
 
     private void compileClassVarDec() {
-        String kind = current().text; advance(); // 'static' or 'field'
-        String type = current().text; advance(); // type
-        String name = current().text; advance(); // varName
+        String kind = text(); advance(); // 'static' or 'field'
+        String type = text(); advance(); // type
+        String name = text(); advance(); // varName
         symbolTable.define(name, type, kind);
 
-        while (symbol(",")) {
+        while (symbol(',')) {
             advance(); // ','
-            name = current().text; advance(); // varName
+            name = text(); advance(); // varName
             symbolTable.define(name, type, kind);
         }
 
@@ -45,366 +69,287 @@ public class CompilationEngine {
 
     private void compileSubroutine() throws IOException {
         symbolTable.startSubroutine();
-        subroutineType = current().text; advance(); // constructor/function/method
+        subroutineType = text(); advance(); // constructor/function/method
         advance(); // return type
-        String subroutineName = current().text; advance(); // name
+        String subroutineName = text(); advance(); // name
         advance(); // '('
         compileParameterList();
         advance(); // ')'
         advance(); // '{'
         int localCount = 0;
-        while (currentIsKeyword("var")) {
+        while (currentIsKeyword(TokenBuffer.VAR)) {
             localCount += defineVarDec();
         }
+        int fieldCount = symbolTable.varCount("field");
+        List<Ast.Stmt> body = compileStatements();
+        advance(); // '}'
 
-        vmWriter.writeFunction(className + "." + subroutineName, localCount);
-
-        if (subroutineType.equals("constructor")) {
-            int nFields = symbolTable.varCount("field");
-            vmWriter.writePush("constant", nFields);
-            vmWriter.writeCall("Memory.alloc", 1);
-            vmWriter.writePop("pointer", 0);
-        }
-
-        if (subroutineType.equals("method")) {
-            vmWriter.writePush("argument", 0);
-            vmWriter.writePop("pointer", 0);
+        Ir.Function function = irBuilder.build(
+                new Ast.Subroutine(subroutineName, subroutineType, localCount, fieldCount, body));
+        for (IrPass pass : passes) {
+            pass.run(function);
+            function.verify();
         }
-
-        compileStatements();
-        advance(); // '}'
+        generator.generate(function);
     }
 
     private void skipParameterList() {
-        while (!symbol(")")) advance();
+        while (!symbol(')')) advance();
     }
 
     private int defineVarDec() {
         int count = 0;
         advance(); // 'var'
-        String type = current().text; advance(); // type
-        String name = current().text; advance(); // varName
+        String type = text(); advance(); // type
+        String name = text(); advance(); // varName
         symbolTable.define(name, type, "var");
         count++;
-        while (symbol(",")) {
+        while (symbol(',')) {
             advance(); // ','
-            name = current().text; advance(); // varName
+            name = text(); advance(); // varName
             symbolTable.define(name, type, "var");
             count++;
         }
         advance(); // ';'
         return count;
     }
-    private void compileParameterList() throws IOException {
-    if (current().type.equals("identifier") || currentIsKeyword("int") || currentIsKeyword("char") || currentIsKeyword("boolean")) {
-        String type = current().text; advance(); // type
-        String name = current().text; advance(); // name
-        symbolTable.define(name, type, "arg");
 
-        while (symbol(",")) {
-            advance(); // ','
-            type = current().text; advance(); // type
-            name = current().text; advance(); // name
+    private void compileParameterList() {
+        if (tokens.kind(index) == TokenBuffer.IDENTIFIER || currentIsKeyword(TokenBuffer.INT) || currentIsKeyword(TokenBuffer.CHAR) || currentIsKeyword(TokenBuffer.BOOLEAN)) {
+            String type = text(); advance(); // type
+            String name = text(); advance(); // name
             symbolTable.define(name, type, "arg");
+
+            while (symbol(',')) {
+                advance(); // ','
+                type = text(); advance(); // type
+                name = text(); advance(); // name
+                symbolTable.define(name, type, "arg");
+            }
         }
     }
-}
-
-   private void compileStatements() throws IOException {
-    while (true) {
-        System.out.println(">> STATEMENT: " + current().text);
-        if (currentIsKeyword("let")) compileLet();
-        else if (currentIsKeyword("do")) compileDo();
-        else if (currentIsKeyword("return")) compileReturn();
-        else if (currentIsKeyword("if")) compileIf();
-        else if (currentIsKeyword("while")) compileWhile();
-        else break;
-    }
-}
-
-    private void compileLet() throws IOException {
-    advance(); // 'let'
-    String varName = current().text; advance(); // varName
-
-    boolean isArray = false;
-    if (symbol("[")) {
-        isArray = true;
-        advance(); // '['
-        compileExpression(); // push index
-        advance(); // ']'
-
-        // Push base address of the array
-        String kind = symbolTable.kindOf(varName);
-        int index = symbolTable.indexOf(varName);
-        String segment = switch (kind) {
-            case "var" -> "local";
-            case "arg" -> "argument";
-            case "static" -> "static";
-            case "field" -> "this";
-            default -> throw new RuntimeException("Unknown kind: " + kind);
-        };
-        vmWriter.writePush(segment, index);
-        vmWriter.writeArithmetic("add"); // arr + index
+
+    private List<Ast.Stmt> compileStatements() {
+        List<Ast.Stmt> statements = new ArrayList<>();
+        while (true) {
+            if (trace != null) {
+                trace.println(">> STATEMENT: " + text());
+            }
+            if (currentIsKeyword(TokenBuffer.LET)) statements.add(compileLet());
+            else if (currentIsKeyword(TokenBuffer.DO)) statements.add(compileDo());
+            else if (currentIsKeyword(TokenBuffer.RETURN)) statements.add(compileReturn());
+            else if (currentIsKeyword(TokenBuffer.IF)) statements.add(compileIf());
+            else if (currentIsKeyword(TokenBuffer.WHILE)) statements.add(compileWhile());
+            else break;
+        }
+        return statements;
     }
 
-    advance(); // '='
-    compileExpression(); // value
-    advance(); // ';'
-
-    if (isArray) {
-        // Save value to temp
-        vmWriter.writePop("temp", 0);      // pop value
-        vmWriter.writePop("pointer", 1);   // set THAT = arr + index
-        vmWriter.writePush("temp", 0);     // restore value
-        vmWriter.writePop("that", 0);      // arr[i] = value
-    } else {
-        String kind = symbolTable.kindOf(varName);
-        int index = symbolTable.indexOf(varName);
-        if (kind.equals("none") || index == -1) {
-            throw new RuntimeException("LET: Unknown variable '" + varName + "'");
+    private Ast.Let compileLet() {
+        advance(); // 'let'
+        String varName = text(); advance(); // varName
+
+        Ast.Var array = null;
+        Ast.Expr arrayIndex = null;
+        if (symbol('[')) {
+            advance(); // '['
+            arrayIndex = compileExpression();
+            advance(); // ']'
+            array = variable(symbolTable.lookup(varName));
         }
 
-        String segment = switch (kind) {
-            case "var" -> "local";
-            case "arg" -> "argument";
-            case "static" -> "static";
-            case "field" -> "this";
-            default -> throw new RuntimeException("Unknown kind: " + kind);
-        };
+        advance(); // '='
+        Ast.Expr value = compileExpression();
+        advance(); // ';'
 
-        vmWriter.writePop(segment, index);
+        if (array != null) {
+            return new Ast.Let(array, arrayIndex, value);
+        }
+        SymbolInfo symbol = symbolTable.lookup(varName);
+        if (symbol == null) {
+            throw new RuntimeException("LET: Unknown variable '" + varName + "'");
+        }
+        return new Ast.Let(variable(symbol), null, value);
     }
-}
 
-    private void compileDo() throws IOException {
+    private Ast.Do compileDo() {
         advance(); // 'do'
-        String name = current().text; advance(); // identifier
-        if (symbol(".")) {
+        String name = text(); advance(); // identifier
+        if (symbol('.')) {
             advance(); // '.'
-            String subroutineName = current().text; advance(); // subroutine
+            String subroutineName = text(); advance(); // subroutine
             name = name + "." + subroutineName;
         } else {
             name = className + "." + name;
         }
 
         advance(); // '('
-        int argCount = compileExpressionList();
+        List<Ast.Expr> args = compileExpressionList();
         advance(); // ')'
         advance(); // ';'
-        vmWriter.writeCall(name, argCount);
-        vmWriter.writePop("temp", 0);
+        return new Ast.Do(new Ast.Call(name, args));
     }
 
-    private void compileReturn() throws IOException {
+    private Ast.Return compileReturn() {
         advance(); // 'return'
-        if (!symbol(";")) {
-            compileExpression();
-        } else {
-            vmWriter.writePush("constant", 0); // void return = push 0
+        Ast.Expr value = null;
+        if (!symbol(';')) {
+            value = compileExpression();
         }
         advance(); // ';'
-        vmWriter.writeReturn();
+        return new Ast.Return(value);
     }
 
-    private void compileIf() throws IOException {
+    private Ast.If compileIf() {
         advance(); // 'if'
-        String labelElse = generateLabel("IF_ELSE");
-        String labelEnd = generateLabel("IF_END");
-
         advance(); // '('
-        compileExpression();
+        Ast.Expr condition = compileExpression();
         advance(); // ')'
-        vmWriter.writeArithmetic("not");
-        vmWriter.writeIf(labelElse);
 
         advance(); // '{'
-        compileStatements();
+        List<Ast.Stmt> then = compileStatements();
         advance(); // '}'
-        vmWriter.writeGoto(labelEnd);
-        vmWriter.writeLabel(labelElse);
 
-        if (currentIsKeyword("else")) {
+        List<Ast.Stmt> otherwise = null;
+        if (currentIsKeyword(TokenBuffer.ELSE)) {
             advance(); // 'else'
             advance(); // '{'
-            compileStatements();
+            otherwise = compileStatements();
             advance(); // '}'
         }
-
-        vmWriter.writeLabel(labelEnd);
+        return new Ast.If(condition, then, otherwise);
     }
 
-    private void compileWhile() throws IOException {
+    private Ast.While compileWhile() {
         advance(); // 'while'
-        String labelExp = generateLabel("WHILE_EXP");
-        String labelEnd = generateLabel("WHILE_END");
-
-        vmWriter.writeLabel(labelExp);
         advance(); // '('
-        compileExpression();
+        Ast.Expr condition = compileExpression();
         advance(); // ')'
-        vmWriter.writeArithmetic("not");
-        vmWriter.writeIf(labelEnd);
 
         advance(); // '{'
-        compileStatements();
+        List<Ast.Stmt> body = compileStatements();
         advance(); // '}'
-
-        vmWriter.writeGoto(labelExp);
-        vmWriter.writeLabel(labelEnd);
+        return new Ast.While(condition, body);
     }
 
-    private int compileExpressionList() throws IOException {
-        int count = 0;
-        if (!symbol(")")) {
-            compileExpression();
-            count++;
-            while (symbol(",")) {
+    private List<Ast.Expr> compileExpressionList() {
+        List<Ast.Expr> expressions = new ArrayList<>();
+        if (!symbol(')')) {
+            expressions.add(compileExpression());
+            while (symbol(',')) {
                 advance(); // ','
-                compileExpression();
-                count++;
+                expressions.add(compileExpression());
             }
         }
-        return count;
+        return expressions;
     }
 
     private boolean isOperator() {
-        return symbol("+") || symbol("-") || symbol("*") || symbol("/") ||
-               symbol("&") || symbol("|") || symbol("<") || symbol(">") || symbol("=");
+        if (tokens.kind(index) != TokenBuffer.SYMBOL) return false;
+        switch (tokens.value(index)) {
+            case '+': case '-': case '*': case '/': case '&': case '|': case '<': case '>': case '=':
+                return true;
+            default:
+                return false;
+        }
     }
 
-    private void compileExpression() throws IOException {
-    compileTerm();
-    while (isOperator()) {
-        String op = current().text;
-        advance();
-        compileTerm();
-
-        switch (op) {
-            case "+" -> vmWriter.writeArithmetic("add");
-            case "-" -> vmWriter.writeArithmetic("sub");
-            case "*" -> vmWriter.writeCall("Math.multiply", 2);
-            case "/" -> vmWriter.writeCall("Math.divide", 2);
-            case "&" -> vmWriter.writeArithmetic("and");
-            case "|" -> vmWriter.writeArithmetic("or");
-            case "<" -> vmWriter.writeArithmetic("lt");
-            case ">" -> vmWriter.writeArithmetic("gt");
-            case "=" -> vmWriter.writeArithmetic("eq");
+    // Operators have no precedence in Jack: a op b op c is (a op b) op c.
+    private Ast.Expr compileExpression() {
+        Ast.Expr expr = compileTerm();
+        while (isOperator()) {
+            char op = (char) tokens.value(index);
+            advance();
+            expr = new Ast.Binary(op, expr, compileTerm());
         }
+        return expr;
     }
-}
-
-private void compileTerm() throws IOException {
-    if (current().type.equals("integerConstant")) {
-        vmWriter.writePush("constant", Integer.parseInt(current().text));
-        advance();
-
-    } else if (current().type.equals("stringConstant")) {
-        String str = current().text;
-        advance();
-        vmWriter.writePush("constant", str.length());
-        vmWriter.writeCall("String.new", 1);
-        for (int i = 0; i < str.length(); i++) {
-            vmWriter.writePush("constant", str.charAt(i));
-            vmWriter.writeCall("String.appendChar", 2);
-        }
 
-    } else if (symbol("(")) {
-        // ( expression )
-        advance();               // consume '('
-        compileExpression();
-        advance();               // consume ')'
-
-    } else if (symbol("-")) {
-        // unary minus
-        advance();               // consume '-'
-        compileTerm();           // compile operand
-        vmWriter.writeArithmetic("neg");
-
-    } else if (symbol("~")) {
-        // bitwise not
-        advance();               // consume '~'
-        compileTerm();           // compile operand
-        vmWriter.writeArithmetic("not");
-
-    } else if (current().type.equals("identifier")) {
-        String name = current().text;
-        advance();               // consume identifier
-
-        if (symbol("[")) {
-            // array access: name[expr]
-            advance();           // '['
-            compileExpression();
-            advance();           // ']'
-
-            String kind = symbolTable.kindOf(name);
-            int index  = symbolTable.indexOf(name);
-            String segment = switch (kind) {
-                case "var"    -> "local";
-                case "arg"    -> "argument";
-                case "static" -> "static";
-                case "field"  -> "this";
-                default       -> throw new RuntimeException("Unknown kind: " + kind);
-            };
-
-            vmWriter.writePush(segment, index);
-            vmWriter.writeArithmetic("add");
-            vmWriter.writePop("pointer", 1);
-            vmWriter.writePush("that", 0);
-
-        } else if (symbol("(")) {
-            // subroutine call in *this* class: name(exprList)
-            advance();           // consume '('
-            int argCount = compileExpressionList();
-            advance();           // consume ')'
-            vmWriter.writeCall(className + "." + name, argCount);
-
-        } else if (symbol(".")) {
-            // qualified call: ClassName|varName.subName(exprList)
-            advance();           // consume '.'
-            String sub = current().text;
-            advance();           // consume subroutine name
-            advance();           // consume '('
-            int argCount = compileExpressionList();
-            advance();           // consume ')'
-            vmWriter.writeCall(name + "." + sub, argCount);
+    private Ast.Expr compileTerm() {
+        if (tokens.kind(index) == TokenBuffer.INT_CONST) {
+            Ast.Expr term = new Ast.IntConst(tokens.value(index));
+            advance();
+            return term;
+
+        } else if (tokens.kind(index) == TokenBuffer.STRING_CONST) {
+            Ast.Expr term = new Ast.StringConst(text());
+            advance();
+            return term;
+
+        } else if (symbol('(')) {
+            // ( expression )
+            advance();               // consume '('
+            Ast.Expr term = compileExpression();
+            advance();               // consume ')'
+            return term;
+
+        } else if (symbol('-') || symbol('~')) {
+            // unary minus or bitwise not
+            char op = (char) tokens.value(index);
+            advance();               // consume operator
+            return new Ast.Unary(op, compileTerm());
+
+        } else if (tokens.kind(index) == TokenBuffer.IDENTIFIER) {
+            String name = text();
+            advance();               // consume identifier
+
+            if (symbol('[')) {
+                // array access: name[expr]
+                advance();           // '['
+                Ast.Expr arrayIndex = compileExpression();
+                advance();           // ']'
+                return new Ast.Index(variable(symbolTable.lookup(name)), arrayIndex);
+
+            } else if (symbol('(')) {
+                // subroutine call in *this* class: name(exprList)
+                advance();           // consume '('
+                List<Ast.Expr> args = compileExpressionList();
+                advance();           // consume ')'
+                return new Ast.Call(className + "." + name, args);
+
+            } else if (symbol('.')) {
+                // qualified call: ClassName|varName.subName(exprList)
+                advance();           // consume '.'
+                String sub = text();
+                advance();           // consume subroutine name
+                advance();           // consume '('
+                List<Ast.Expr> args = compileExpressionList();
+                advance();           // consume ')'
+                return new Ast.Call(name + "." + sub, args);
+
+            } else {
+                // simple var access; an unknown name produces no code
+                SymbolInfo symbol = symbolTable.lookup(name);
+                return symbol != null ? variable(symbol) : new Ast.Skipped();
+            }
 
         } else {
-            // simple var access
-            String kind = symbolTable.kindOf(name);
-            int index  = symbolTable.indexOf(name);
-            if (!kind.equals("none")) {
-                String segment = switch (kind) {
-                    case "var"    -> "local";
-                    case "arg"    -> "argument";
-                    case "static" -> "static";
-                    case "field"  -> "this";
-                    default       -> throw new RuntimeException("Unknown kind: " + kind);
-                };
-                vmWriter.writePush(segment, index);
-            }
+            // fallback: skip unknown token to avoid infinite loop
+            advance();
+            return new Ast.Skipped();
         }
-
-    } else {
-        // fallback: skip unknown token to avoid infinite loop
-        advance();
     }
-}
-
-
 
-    private String generateLabel(String base) {
-        return className + "$" + base + (labelCounter++);
+    // The variable of a symbol, with its VM segment; symbol is null for an undefined name.
+    private Ast.Var variable(SymbolInfo symbol) {
+        String kind = symbol == null ? "none" : symbol.getKind();
+        String segment = switch (kind) {
+            case "var"    -> "local";
+            case "arg"    -> "argument";
+            case "static" -> "static";
+            case "field"  -> "this";
+            default       -> throw new RuntimeException("Unknown kind: " + kind);
+        };
+        return new Ast.Var(segment, symbol.getIndex(), symbol.getType());
     }
 
     /** Token Helpers **/
-    private JackTokenizer.Token current() { return tokens.get(index); }
+    private String text() { return tokens.text(index); }
     private void advance() { index++; }
-    private boolean currentIsKeyword(String kw) {
-        JackTokenizer.Token t = current();
-        return "keyword".equals(t.type) && kw.equals(t.text);
+    private boolean currentIsKeyword(int keyword) {
+        return tokens.isKeyword(index, keyword);
     }
-    private boolean symbol(String s) {
-        JackTokenizer.Token t = current();
-        return "symbol".equals(t.type) && s.equals(t.text);
+    private boolean symbol(char s) {
+        return tokens.isSymbol(index, s);
     }
 }
\ No newline at end of file
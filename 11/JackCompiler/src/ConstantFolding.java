@@ -0,0 +1,64 @@
+// Evaluates operations on constants at compile time, with the 16-bit arithmetic of the Hack
+// machine, and turns conditional jumps on a constant into a goto or nothing. An lt or gt
+// whose x - y overflows is left to run time: the VM translator's code compares by the sign
+// of x - y and the VM emulator does not, so the two disagree there.
+public class ConstantFolding implements IrPass {
+    @Override
+    public void run(Ir.Function f) {
+        // Rewrites the code in place: instruction r moves down to size, after what was folded.
+        int size = 0;
+        for (int r = 0; r < f.size(); r++) {
+            int op = f.op(r);
+            if (op == Ir.UNARY && isConstant(f, size - 1, f.a(r))) {
+                int x = f.value(size - 1);
+                constant(f, size - 1, f.target(r), f.name(r).equals("neg") ? -x : ~x);
+                continue;
+            }
+            if (op == Ir.BINARY && isConstant(f, size - 2, f.a(r)) && isConstant(f, size - 1, f.b(r))) {
+                Integer value = evaluate(f.name(r), (short) f.value(size - 2), (short) f.value(size - 1));
+                if (value != null) {
+                    constant(f, size - 2, f.target(r), value);
+                    size--;
+                    continue;
+                }
+            }
+            if (op == Ir.IF_GOTO && isConstant(f, size - 1, f.a(r))) {
+                if (f.value(size - 1) != 0) {
+                    f.set(size - 1, Ir.GOTO, Ir.NONE, Ir.NONE, Ir.NONE, 0, f.name(r));
+                } else {
+                    size--;
+                }
+                continue;
+            }
+            f.move(r, size++);
+        }
+        f.truncate(size);
+    }
+
+    private static boolean isConstant(Ir.Function f, int i, int temp) {
+        return i >= 0 && f.op(i) == Ir.CONST && f.target(i) == temp;
+    }
+
+    private static void constant(Ir.Function f, int i, int target, int value) {
+        f.set(i, Ir.CONST, target, Ir.NONE, Ir.NONE, (short) value, null);
+    }
+
+    // Returns the value of x op y, or null to leave it to run time.
+    private static Integer evaluate(String op, short x, short y) {
+        switch (op) {
+            case "add": return x + y;
+            case "sub": return x - y;
+            case "mul": return x * y;
+            case "div":
+                // Division by zero is a run-time error; -32768 / -1 overflows.
+                if (y == 0 || (x == Short.MIN_VALUE && y == -1)) return null;
+                return x / y;
+            case "and": return x & y;
+            case "or": return x | y;
+            case "eq": return x == y ? -1 : 0;
+            default:
+                if (x - y != (short) (x - y)) return null;
+                return (op.equals("lt") ? x < y : x > y) ? -1 : 0;
+        }
+    }
+}
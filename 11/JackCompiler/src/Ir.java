@@ -0,0 +1,267 @@
+import java.util.*;
+
+// Three-address code of one subroutine, between IrBuilder and IrCodeGenerator. Every value
+// is a numbered temporary with a type, defined by exactly one instruction:
+//   CONST           t = value
+//   STRING          t = new String name
+//   SKIP            t = (nothing: a term the compiler does not translate, see Ast.Skipped)
+//   LOAD            t = name[value]                  (name is a VM segment)
+//   STORE           name[value] = a
+//   UNARY           t = name a                       (neg, not)
+//   BINARY          t = a name b                     (add sub mul div and or lt gt eq)
+//   CALL            t = call name(args)              (t is NONE for "do")
+//   LOAD_INDIRECT   t = *a
+//   STORE_INDIRECT  *a = b
+//   LABEL, GOTO     name
+//   IF_GOTO         if a goto name
+//   RETURN          return a
+//
+// The code is a flattened expression tree: each temporary is used once, and the operands of
+// an instruction are the temporaries defined most recently and not used yet, in order. The
+// generator keeps them on the VM stack for that reason. Passes must keep this order;
+// verify() checks it.
+public final class Ir {
+    private Ir() {
+    }
+
+    // Operations.
+    public static final int CONST = 0, STRING = 1, SKIP = 2, LOAD = 3, STORE = 4, UNARY = 5, BINARY = 6,
+            CALL = 7, LOAD_INDIRECT = 8, STORE_INDIRECT = 9, LABEL = 10, GOTO = 11, IF_GOTO = 12, RETURN = 13;
+
+    // Types of temporaries.
+    public static final int UNKNOWN = 0, INT = 1, CHAR = 2, BOOLEAN = 3, REF = 4;
+    private static final String[] TYPE_NAMES = {"?", "int", "char", "boolean", "ref"};
+
+    // No temporary.
+    public static final int NONE = -1;
+
+    // The code of a function, stored like TokenBuffer as parallel arrays instead of one object
+    // per instruction. Instruction i has an op, the temporary it defines (target) or NONE, the
+    // temporaries it uses (a, b) or NONE, a value (CONST value, LOAD/STORE index, CALL argument
+    // count) and a name (segment, operator, function, label or string). The arguments of a CALL
+    // are argument(i, 0 .. value - 1).
+    public static final class Function {
+        private String name;
+        private String kind;
+        private int localCount;
+        private int fieldCount;
+
+        private int size = 0;
+        private int[] ops = new int[64];
+        private int[] targets = new int[64];
+        private int[] as = new int[64];
+        private int[] bs = new int[64];
+        private int[] values = new int[64];
+        private String[] names = new String[64];
+        // CALL arguments; a of a CALL is the index of its first argument here.
+        private int[] callArgs = new int[64];
+        private int callArgCount = 0;
+        private int[] types = new int[64];
+        private int tempCount = 0;
+
+        // Starts a function with no code; reset names it.
+        public Function() {
+        }
+
+        // Empties the function for the next subroutine, keeping the arrays.
+        public void reset(String name, String kind, int localCount, int fieldCount) {
+            this.name = name;
+            this.kind = kind;
+            this.localCount = localCount;
+            this.fieldCount = fieldCount;
+            size = 0;
+            callArgCount = 0;
+            tempCount = 0;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        // "constructor", "function" or "method".
+        public String kind() {
+            return kind;
+        }
+
+        public int localCount() {
+            return localCount;
+        }
+
+        // Fields of the class, for a constructor's allocation.
+        public int fieldCount() {
+            return fieldCount;
+        }
+
+        // Returns a new temporary of the given type.
+        public int newTemp(int type) {
+            if (tempCount == types.length) {
+                types = Arrays.copyOf(types, tempCount * 2);
+            }
+            types[tempCount] = type;
+            return tempCount++;
+        }
+
+        public int type(int temp) {
+            return types[temp];
+        }
+
+        public int tempCount() {
+            return tempCount;
+        }
+
+        // Appends an instruction and returns its target.
+        public int add(int op, int target, int a, int b, int value, String name) {
+            if (size == ops.length) {
+                int capacity = size * 2;
+                ops = Arrays.copyOf(ops, capacity);
+                targets = Arrays.copyOf(targets, capacity);
+                as = Arrays.copyOf(as, capacity);
+                bs = Arrays.copyOf(bs, capacity);
+                values = Arrays.copyOf(values, capacity);
+                names = Arrays.copyOf(names, capacity);
+            }
+            set(size++, op, target, a, b, value, name);
+            return target;
+        }
+
+        // Appends a CALL of function with the arguments args[from .. from + argCount - 1], and
+        // returns target.
+        public int addCall(int target, String function, int[] args, int from, int argCount) {
+            while (callArgCount + argCount > callArgs.length) {
+                callArgs = Arrays.copyOf(callArgs, callArgs.length * 2);
+            }
+            System.arraycopy(args, from, callArgs, callArgCount, argCount);
+            add(CALL, target, callArgCount, NONE, argCount, function);
+            callArgCount += argCount;
+            return target;
+        }
+
+        // Replaces instruction i; a pass rewrites the code in place this way and then calls
+        // truncate. A CALL is moved with its a unchanged.
+        public void set(int i, int op, int target, int a, int b, int value, String name) {
+            ops[i] = op;
+            targets[i] = target;
+            as[i] = a;
+            bs[i] = b;
+            values[i] = value;
+            names[i] = name;
+        }
+
+        // Copies instruction from to position to.
+        public void move(int from, int to) {
+            set(to, ops[from], targets[from], as[from], bs[from], values[from], names[from]);
+        }
+
+        // Drops the instructions from size on.
+        public void truncate(int size) {
+            this.size = size;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int op(int i) {
+            return ops[i];
+        }
+
+        public int target(int i) {
+            return targets[i];
+        }
+
+        public int a(int i) {
+            return as[i];
+        }
+
+        public int b(int i) {
+            return bs[i];
+        }
+
+        public int value(int i) {
+            return values[i];
+        }
+
+        public String name(int i) {
+            return names[i];
+        }
+
+        // Argument j of CALL instruction i.
+        public int argument(int i, int j) {
+            return callArgs[as[i] + j];
+        }
+
+        // Number of temporaries instruction i uses; use(i, j) is the j-th, in stack order.
+        public int useCount(int i) {
+            if (ops[i] == CALL) return values[i];
+            if (bs[i] != NONE) return 2;
+            return as[i] != NONE ? 1 : 0;
+        }
+
+        public int use(int i, int j) {
+            if (ops[i] == CALL) return argument(i, j);
+            return j == 0 ? as[i] : bs[i];
+        }
+
+        // Checks the stack order described above; throws IllegalStateException if it is broken.
+        public void verify() {
+            int[] stack = new int[16];
+            int depth = 0;
+            for (int i = 0; i < size; i++) {
+                int uses = useCount(i);
+                if (uses > depth) {
+                    throw new IllegalStateException(name + ": instruction " + i + " uses more values than defined");
+                }
+                for (int j = 0; j < uses; j++) {
+                    if (stack[depth - uses + j] != use(i, j)) {
+                        throw new IllegalStateException(name + ": instruction " + i + " uses t" + use(i, j) + " out of order");
+                    }
+                }
+                depth -= uses;
+                if (targets[i] != NONE) {
+                    if (depth == stack.length) {
+                        stack = Arrays.copyOf(stack, depth * 2);
+                    }
+                    stack[depth++] = targets[i];
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder();
+            text.append(kind).append(' ').append(name).append(" locals=").append(localCount).append('\n');
+            for (int i = 0; i < size; i++) {
+                text.append(ops[i] == LABEL ? "" : "    ").append(format(i)).append('\n');
+            }
+            return text.toString();
+        }
+
+        private static String temp(int temp) {
+            return "t" + temp;
+        }
+
+        private String format(int i) {
+            String target = targets[i] == NONE ? "" : temp(targets[i]) + ":" + TYPE_NAMES[types[targets[i]]] + " = ";
+            switch (ops[i]) {
+                case CONST: return target + values[i];
+                case STRING: return target + "\"" + names[i] + "\"";
+                case SKIP: return target + "skip";
+                case LOAD: return target + names[i] + "[" + values[i] + "]";
+                case STORE: return names[i] + "[" + values[i] + "] = " + temp(as[i]);
+                case UNARY: return target + names[i] + " " + temp(as[i]);
+                case BINARY: return target + temp(as[i]) + " " + names[i] + " " + temp(bs[i]);
+                case CALL: {
+                    StringJoiner args = new StringJoiner(", ");
+                    for (int j = 0; j < values[i]; j++) args.add(temp(argument(i, j)));
+                    return target + "call " + names[i] + "(" + args + ")";
+                }
+                case LOAD_INDIRECT: return target + "*" + temp(as[i]);
+                case STORE_INDIRECT: return "*" + temp(as[i]) + " = " + temp(bs[i]);
+                case LABEL: return names[i] + ":";
+                case GOTO: return "goto " + names[i];
+                case IF_GOTO: return "if " + temp(as[i]) + " goto " + names[i];
+                default: return "return " + temp(as[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,185 @@
+import java.util.Arrays;
+import java.util.List;
+
+// Lowers the AST of each subroutine of a class to Ir. Labels are numbered per class, in the
+// order the single-pass compiler numbered them.
+public class IrBuilder {
+    private final String className;
+    private int labelCounter = 0;
+    // The code of every subroutine is built in the same Function, one per thread, so its
+    // arrays grow once and not for each class.
+    private static final ThreadLocal<Ir.Function> FUNCTIONS = ThreadLocal.withInitial(Ir.Function::new);
+    private final Ir.Function function = FUNCTIONS.get();
+    // Arguments of the calls being lowered; nested calls stack theirs on top.
+    private int[] args = new int[16];
+    private int argTop = 0;
+
+    public IrBuilder(String className) {
+        this.className = className;
+    }
+
+    // Returns the IR of subroutine, which stays valid until the next call on this thread.
+    public Ir.Function build(Ast.Subroutine subroutine) {
+        function.reset(className + "." + subroutine.name, subroutine.kind,
+                subroutine.localCount, subroutine.fieldCount);
+        statements(subroutine.body);
+        return function;
+    }
+
+    private void statements(List<Ast.Stmt> statements) {
+        for (Ast.Stmt statement : statements) {
+            if (statement instanceof Ast.Let) let((Ast.Let) statement);
+            else if (statement instanceof Ast.Do) call(((Ast.Do) statement).call, false);
+            else if (statement instanceof Ast.Return) returnStatement((Ast.Return) statement);
+            else if (statement instanceof Ast.If) ifStatement((Ast.If) statement);
+            else whileStatement((Ast.While) statement);
+        }
+    }
+
+    private void let(Ast.Let let) {
+        Ast.Var target = let.target;
+        if (let.index == null) {
+            int value = expression(let.value);
+            emit(Ir.STORE, Ir.NONE, value, Ir.NONE, target.index, target.segment);
+            return;
+        }
+        int address = address(target, let.index);
+        int value = expression(let.value);
+        emit(Ir.STORE_INDIRECT, Ir.NONE, address, value, 0, null);
+    }
+
+    private void returnStatement(Ast.Return statement) {
+        int value = statement.value == null ? constant(0) : expression(statement.value);
+        emit(Ir.RETURN, Ir.NONE, value, Ir.NONE, 0, null);
+    }
+
+    private void ifStatement(Ast.If statement) {
+        String labelElse = generateLabel("IF_ELSE");
+        String labelEnd = generateLabel("IF_END");
+        jumpUnless(statement.condition, labelElse);
+        statements(statement.then);
+        emit(Ir.GOTO, Ir.NONE, Ir.NONE, Ir.NONE, 0, labelEnd);
+        emit(Ir.LABEL, Ir.NONE, Ir.NONE, Ir.NONE, 0, labelElse);
+        if (statement.otherwise != null) {
+            statements(statement.otherwise);
+        }
+        emit(Ir.LABEL, Ir.NONE, Ir.NONE, Ir.NONE, 0, labelEnd);
+    }
+
+    private void whileStatement(Ast.While statement) {
+        String labelExp = generateLabel("WHILE_EXP");
+        String labelEnd = generateLabel("WHILE_END");
+        emit(Ir.LABEL, Ir.NONE, Ir.NONE, Ir.NONE, 0, labelExp);
+        jumpUnless(statement.condition, labelEnd);
+        statements(statement.body);
+        emit(Ir.GOTO, Ir.NONE, Ir.NONE, Ir.NONE, 0, labelExp);
+        emit(Ir.LABEL, Ir.NONE, Ir.NONE, Ir.NONE, 0, labelEnd);
+    }
+
+    // Jumps to label when condition is false.
+    private void jumpUnless(Ast.Expr condition, String label) {
+        int value = expression(condition);
+        int negated = function.newTemp(Ir.BOOLEAN);
+        emit(Ir.UNARY, negated, value, Ir.NONE, 0, "not");
+        emit(Ir.IF_GOTO, Ir.NONE, negated, Ir.NONE, 0, label);
+    }
+
+    // Lowers an expression and returns the temporary holding its value.
+    private int expression(Ast.Expr expr) {
+        if (expr instanceof Ast.IntConst) {
+            return constant(((Ast.IntConst) expr).value);
+        } else if (expr instanceof Ast.Var) {
+            Ast.Var var = (Ast.Var) expr;
+            return emit(Ir.LOAD, function.newTemp(typeOf(var.type)), Ir.NONE, Ir.NONE, var.index, var.segment);
+        } else if (expr instanceof Ast.Binary) {
+            Ast.Binary binary = (Ast.Binary) expr;
+            int left = expression(binary.left);
+            int right = expression(binary.right);
+            return emit(Ir.BINARY, function.newTemp(binaryType(binary.op, left, right)), left, right, 0,
+                    operator(binary.op));
+        } else if (expr instanceof Ast.Unary) {
+            Ast.Unary unary = (Ast.Unary) expr;
+            int operand = expression(unary.operand);
+            int type = unary.op == '-' ? Ir.INT : function.type(operand);
+            return emit(Ir.UNARY, function.newTemp(type), operand, Ir.NONE, 0, unary.op == '-' ? "neg" : "not");
+        } else if (expr instanceof Ast.Call) {
+            return call((Ast.Call) expr, true);
+        } else if (expr instanceof Ast.Index) {
+            Ast.Index index = (Ast.Index) expr;
+            int address = address(index.array, index.index);
+            return emit(Ir.LOAD_INDIRECT, function.newTemp(Ir.UNKNOWN), address, Ir.NONE, 0, null);
+        } else if (expr instanceof Ast.StringConst) {
+            return emit(Ir.STRING, function.newTemp(Ir.REF), Ir.NONE, Ir.NONE, 0, ((Ast.StringConst) expr).value);
+        } else {
+            return emit(Ir.SKIP, function.newTemp(Ir.UNKNOWN), Ir.NONE, Ir.NONE, 0, null);
+        }
+    }
+
+    // array + index, in the order the single-pass compiler pushed them.
+    private int address(Ast.Var array, Ast.Expr index) {
+        int offset = expression(index);
+        int base = emit(Ir.LOAD, function.newTemp(Ir.REF), Ir.NONE, Ir.NONE, array.index, array.segment);
+        return emit(Ir.BINARY, function.newTemp(Ir.REF), offset, base, 0, "add");
+    }
+
+    // Lowers a call; with hasValue false (a do statement) the result is discarded.
+    private int call(Ast.Call call, boolean hasValue) {
+        int first = argTop;
+        for (Ast.Expr arg : call.args) {
+            int value = expression(arg);
+            if (argTop == args.length) {
+                args = Arrays.copyOf(args, argTop * 2);
+            }
+            args[argTop++] = value;
+        }
+        argTop = first;
+        int target = hasValue ? function.newTemp(Ir.UNKNOWN) : Ir.NONE;
+        return function.addCall(target, call.function, args, first, call.args.size());
+    }
+
+    private int constant(int value) {
+        return emit(Ir.CONST, function.newTemp(Ir.INT), Ir.NONE, Ir.NONE, value, null);
+    }
+
+    private int emit(int op, int target, int a, int b, int value, String name) {
+        return function.add(op, target, a, b, value, name);
+    }
+
+    private static int typeOf(String type) {
+        switch (type) {
+            case "int": return Ir.INT;
+            case "char": return Ir.CHAR;
+            case "boolean": return Ir.BOOLEAN;
+            default: return Ir.REF;
+        }
+    }
+
+    private int binaryType(char op, int left, int right) {
+        switch (op) {
+            case '<': case '>': case '=':
+                return Ir.BOOLEAN;
+            case '&': case '|':
+                return function.type(left) == Ir.BOOLEAN && function.type(right) == Ir.BOOLEAN ? Ir.BOOLEAN : Ir.INT;
+            default:
+                return Ir.INT;
+        }
+    }
+
+    static String operator(char op) {
+        switch (op) {
+            case '+': return "add";
+            case '-': return "sub";
+            case '*': return "mul";
+            case '/': return "div";
+            case '&': return "and";
+            case '|': return "or";
+            case '<': return "lt";
+            case '>': return "gt";
+            default: return "eq";
+        }
+    }
+
+    private String generateLabel(String base) {
+        return className + "$" + base + (labelCounter++);
+    }
+}
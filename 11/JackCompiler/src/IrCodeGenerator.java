@@ -0,0 +1,94 @@
+import java.io.IOException;
+
+// Writes the VM code of an Ir.Function. Temporaries live on the VM stack: an instruction
+// finds its operands on top of it, in order, and leaves its result there.
+public class IrCodeGenerator {
+    private final VMWriter vmWriter;
+
+    public IrCodeGenerator(VMWriter vmWriter) {
+        this.vmWriter = vmWriter;
+    }
+
+    public void generate(Ir.Function function) throws IOException {
+        vmWriter.writeFunction(function.name(), function.localCount());
+
+        if (function.kind().equals("constructor")) {
+            vmWriter.writePush("constant", function.fieldCount());
+            vmWriter.writeCall("Memory.alloc", 1);
+            vmWriter.writePop("pointer", 0);
+        }
+
+        if (function.kind().equals("method")) {
+            vmWriter.writePush("argument", 0);
+            vmWriter.writePop("pointer", 0);
+        }
+
+        for (int i = 0; i < function.size(); i++) {
+            String name = function.name(i);
+            switch (function.op(i)) {
+                case Ir.CONST:
+                    // "push constant" only takes 0..32767; folding can produce the rest.
+                    int value = function.value(i);
+                    if (value >= 0) {
+                        vmWriter.writePush("constant", value);
+                    } else {
+                        vmWriter.writePush("constant", ~value);
+                        vmWriter.writeArithmetic("not");
+                    }
+                    break;
+                case Ir.STRING:
+                    vmWriter.writePush("constant", name.length());
+                    vmWriter.writeCall("String.new", 1);
+                    for (int c = 0; c < name.length(); c++) {
+                        vmWriter.writePush("constant", name.charAt(c));
+                        vmWriter.writeCall("String.appendChar", 2);
+                    }
+                    break;
+                case Ir.SKIP:
+                    break;
+                case Ir.LOAD:
+                    vmWriter.writePush(name, function.value(i));
+                    break;
+                case Ir.STORE:
+                    vmWriter.writePop(name, function.value(i));
+                    break;
+                case Ir.UNARY:
+                    vmWriter.writeArithmetic(name);
+                    break;
+                case Ir.BINARY:
+                    if (name.equals("mul")) vmWriter.writeCall("Math.multiply", 2);
+                    else if (name.equals("div")) vmWriter.writeCall("Math.divide", 2);
+                    else vmWriter.writeArithmetic(name);
+                    break;
+                case Ir.CALL:
+                    vmWriter.writeCall(name, function.value(i));
+                    if (function.target(i) == Ir.NONE) {
+                        vmWriter.writePop("temp", 0);
+                    }
+                    break;
+                case Ir.LOAD_INDIRECT:
+                    vmWriter.writePop("pointer", 1);
+                    vmWriter.writePush("that", 0);
+                    break;
+                case Ir.STORE_INDIRECT:
+                    vmWriter.writePop("temp", 0);      // pop value
+                    vmWriter.writePop("pointer", 1);   // set THAT = arr + index
+                    vmWriter.writePush("temp", 0);     // restore value
+                    vmWriter.writePop("that", 0);      // arr[i] = value
+                    break;
+                case Ir.LABEL:
+                    vmWriter.writeLabel(name);
+                    break;
+                case Ir.GOTO:
+                    vmWriter.writeGoto(name);
+                    break;
+                case Ir.IF_GOTO:
+                    vmWriter.writeIf(name);
+                    break;
+                case Ir.RETURN:
+                    vmWriter.writeReturn();
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,7 @@
+// An optimization over the IR of one subroutine, run between IrBuilder and IrCodeGenerator.
+// A pass rewrites the code in place (Ir.Function.set and truncate), and must keep the stack
+// order described in Ir. One
+// instance serves every class of a parallel directory build, so passes keep no state.
+public interface IrPass {
+    void run(Ir.Function function);
+}
@@ -1,33 +1,171 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.util.List;
+import java.io.PrintStream;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 public class JackParser {
+    // By default the engine pulls the tokens from the tokenizer as it needs them.
+    // --lexer-thread tokenizes on a separate thread; --buffered tokenizes the whole
+    // file before compiling it.
+    private static boolean lexerThread = false;
+    private static boolean buffered = false;
+    // Optimization passes over the IR of each subroutine; --fold adds ConstantFolding.
+    private static final List<IrPass> passes = new ArrayList<>();
+    // A single file always prints the statement trace; a directory only with --trace, one
+    // class after the other once all are compiled.
+    private static boolean trace = false;
+
     public static void main(String[] args) {
-        if (args.length != 2) {
-            System.err.println("Usage: java JackParser <input.jack> <output.vm>");
+        int threads = Runtime.getRuntime().availableProcessors();
+        int first = 0;
+        for (; first < args.length && args[first].startsWith("--"); first++) {
+            if (args[first].equals("--lexer-thread")) {
+                lexerThread = true;
+            } else if (args[first].equals("--buffered")) {
+                buffered = true;
+            } else if (args[first].equals("--trace")) {
+                trace = true;
+            } else if (args[first].equals("--fold")) {
+                passes.add(new ConstantFolding());
+            } else if (args[first].equals("--threads") && first + 1 < args.length) {
+                try {
+                    threads = Integer.parseInt(args[++first]);
+                } catch (NumberFormatException e) {
+                    usage();
+                }
+                if (threads < 1) {
+                    usage();
+                }
+            } else {
+                first = args.length;
+            }
+        }
+        int operands = args.length - first;
+        boolean directoryMode = operands == 1 && new File(args[first]).isDirectory();
+        if (operands != 2 && !directoryMode) {
+            usage();
+        }
+
+        if (!directoryMode) {
+            String error = compileFile(new File(args[first]), new File(args[first + 1]), System.out);
+            if (error != null) {
+                System.err.println("Error: " + error);
+                System.exit(1);
+            }
+            return;
+        }
+
+        // Directory mode: every .jack file becomes a .vm file of the same name, next to it.
+        // The classes do not depend on each other, so they are compiled in parallel.
+        File directory = new File(args[first]);
+        File[] listed = directory.listFiles((dir, name) -> name.endsWith(".jack"));
+        List<File> files = new ArrayList<>(Arrays.asList(listed == null ? new File[0] : listed));
+        files.sort(Comparator.comparing(File::getName));
+        if (files.isEmpty()) {
+            System.err.println("No .jack files in " + directory);
             System.exit(1);
         }
+        long start = System.nanoTime();
+        List<String> errors;
+        ByteArrayOutputStream[] traces = new ByteArrayOutputStream[files.size()];
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            errors = pool.submit(() -> IntStream.range(0, files.size()).parallel()
+                    .mapToObj(i -> {
+                        File file = files.get(i);
+                        PrintStream out = null;
+                        if (trace) {
+                            traces[i] = new ByteArrayOutputStream();
+                            out = new PrintStream(traces[i]);
+                        }
+                        return compileFile(file, new File(file.getPath().replaceAll("\\.jack$", ".vm")), out);
+                    })
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toList())).get();
+        } catch (InterruptedException | ExecutionException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+            return;
+        } finally {
+            pool.shutdown();
+        }
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        if (trace) {
+            for (ByteArrayOutputStream classTrace : traces) {
+                System.out.print(classTrace);
+            }
+        }
+        System.out.println("Compiled " + (files.size() - errors.size()) + " of " + files.size() + " classes in "
+                + millis + " ms on " + threads + " threads");
+        if (!errors.isEmpty()) {
+            for (String error : errors) {
+                System.err.println("Error: " + error);
+            }
+            System.exit(1);
+        }
+    }
 
-        String input = args[0];
-        String output = args[1];
+    private static void usage() {
+        System.err.println("Usage: java JackParser [--lexer-thread | --buffered] [--fold] <input.jack> <output.vm>");
+        System.err.println("       java JackParser [--lexer-thread | --buffered] [--fold] [--threads <n>] [--trace] <directory>");
+        System.exit(1);
+    }
 
+    // Compiles one class, tracing its statements to trace (or not if it is null). Returns
+    // null on success, or a description of the error; the output file is not kept then.
+    static String compileFile(File input, File output, PrintStream trace) {
+        JackTokenizer tokenizer = new JackTokenizer(input.getPath());
+        TokenStream stream = null;
+        VMWriter vmWriter = null;
+        String error = null;
         try {
             // Tokenize
-            JackTokenizer tokenizer = new JackTokenizer(input);
-            List<JackTokenizer.Token> tokens = tokenizer.getTokens();
+            TokenSource tokens;
+            if (buffered) {
+                tokens = tokenizer.tokenize();
+            } else {
+                stream = new TokenStream(tokenizer, lexerThread);
+                tokens = stream;
+            }
 
             // Set up VMWriter
-            VMWriter vmWriter = new VMWriter(output);
+            vmWriter = new VMWriter(output.getPath());
 
             // Parse and generate VM code
-            CompilationEngine engine = new CompilationEngine(tokens, vmWriter);
+            CompilationEngine engine = new CompilationEngine(tokens, vmWriter, passes);
+            engine.setTrace(trace);
             engine.compileClass();
+        } catch (IOException | RuntimeException e) {
+            error = describe(input, e);
+        }
 
-            // Done
-            vmWriter.close();
+        // Done
+        try {
+            if (vmWriter != null) {
+                vmWriter.close();
+            }
+            if (stream != null) {
+                stream.close();
+            }
         } catch (IOException e) {
-            System.err.println("Error: " + e.getMessage());
-            e.printStackTrace();
+            if (error == null) {
+                error = describe(input, e);
+            }
+        }
+        if (error != null) {
+            output.delete();
         }
+        return error;
+    }
+
+    private static String describe(File input, Exception e) {
+        String message = e.getMessage() == null ? e.toString() : e.getMessage();
+        // Tokenizer errors already start with the file name.
+        return message.startsWith(input.getPath()) ? message : input.getPath() + ": " + message;
     }
 }
@@ -1,68 +1,281 @@
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.io.*;
 import java.util.*;
 
+// Splits Jack source into tokens in one pass over a Reader. Comments and whitespace are
+// skipped as they come, so the source is never copied; only a fixed-size buffer of it is
+// held at a time. Every token records the line and column (both from 1) where it starts.
+//
+// Words, numbers and strings are matched in place in the buffer: characters are classified
+// by a table, keywords are found by length and then by comparing characters, and an
+// identifier's String is created once per distinct name and then looked up by its
+// characters, so reading a keyword, symbol, number or known name allocates nothing.
 public class JackTokenizer {
-    private final String inputPath;
-    private String src;
-    private int pos = 0;
+    private static final int BUFFER_SIZE = 8192;
+
+    // Character classes of the ASCII characters. Others are classified with Character.
+    private static final byte SYMBOL = 1, DIGIT = 2, LETTER = 4, SPACE = 8;
+    private static final byte[] CHAR_CLASS = new byte[128];
+
+    static {
+        for (char c : "{}()[].,;+-*/&|<>=~".toCharArray()) CHAR_CLASS[c] = SYMBOL;
+        for (char c = '0'; c <= '9'; c++) CHAR_CLASS[c] = DIGIT;
+        for (char c = 'a'; c <= 'z'; c++) CHAR_CLASS[c] = LETTER;
+        for (char c = 'A'; c <= 'Z'; c++) CHAR_CLASS[c] = LETTER;
+        CHAR_CLASS['_'] = LETTER;
+        for (char c = 0; c < 128; c++) {
+            if (Character.isWhitespace(c)) CHAR_CLASS[c] = SPACE;
+        }
+    }
+
+    // Codes of the keywords of each length.
+    private static final int[][] KEYWORDS_BY_LENGTH = new int[12][];
 
-    private static final Set<Character> SYMBOLS = Set.of(
-        '{','}','(',')','[',']','.',',',';','+','-','*','/','&','|','<','>','=','~'
-    );
+    static {
+        for (int length = 0; length < KEYWORDS_BY_LENGTH.length; length++) {
+            int[] codes = new int[TokenBuffer.KEYWORDS.length];
+            int count = 0;
+            for (int code = 0; code < TokenBuffer.KEYWORDS.length; code++) {
+                if (TokenBuffer.KEYWORDS[code].length() == length) codes[count++] = code;
+            }
+            KEYWORDS_BY_LENGTH[length] = Arrays.copyOf(codes, count);
+        }
+    }
 
-    private static final Set<String> KEYWORDS = Set.of(
-        "class","constructor","function","method","field","static","var",
-        "int","char","boolean","void","true","false","null","this",
-        "let","do","if","else","while","return"
-    );
+    private final String inputPath;
+    private Reader reader;
+    private char[] buffer = new char[BUFFER_SIZE];
+    private int pos = 0;
+    private int limit = 0;
+    private boolean endOfInput = false;
+    // Start of the token being read, kept in the buffer when it is refilled; -1 if none.
+    private int mark = -1;
+    // Distinct identifier names, in an open-addressing table hashed like String.hashCode.
+    private String[] names = new String[256];
+    private int nameCount = 0;
+    // Position of buffer[pos].
+    private int offset = 0;
+    private int line = 1;
+    private int column = 1;
+    // The token found by scan(): where it starts, its value (keyword code, symbol character
+    // or number), its text for identifiers and strings, and the characters of a number in
+    // the buffer.
+    private int tokenOffset;
+    private int tokenLine;
+    private int tokenColumn;
+    private int tokenValue;
+    private String tokenText;
+    private int tokenStart;
+    private int tokenLength;
 
     public JackTokenizer(String inputPath) {
         this.inputPath = inputPath;
     }
 
-    public List<Token> getTokens() throws IOException {
-        src = Files.readString(Path.of(inputPath));
-        src = src.replaceAll("/\\*\\*?[^*]*\\*+(?:[^/*][^*]*\\*+)*/", "");  // block comments
-        src = src.replaceAll("//.*", "");  // single line comments
+    // Reads the tokens from a Reader instead of a file.
+    public JackTokenizer(Reader reader) {
+        this.inputPath = null;
+        this.reader = reader;
+    }
 
+    public List<Token> getTokens() throws IOException {
         List<Token> tokens = new ArrayList<>();
-        pos = 0;
-        while (pos < src.length()) {
-            skipWhitespace();
-            if (pos >= src.length()) break;
-
-            char c = src.charAt(pos);
-
-            if (SYMBOLS.contains(c)) {
-                tokens.add(new Token("symbol", String.valueOf(c)));
-                pos++;
-            } else if (c == '"') {
-                pos++;
-                int start = pos;
-                while (pos < src.length() && src.charAt(pos) != '"') pos++;
-                String strVal = src.substring(start, pos);
-                tokens.add(new Token("stringConstant", strVal));
-                pos++; // skip closing "
-            } else if (Character.isDigit(c)) {
-                int start = pos;
-                while (pos < src.length() && Character.isDigit(src.charAt(pos))) pos++;
-                String num = src.substring(start, pos);
-                tokens.add(new Token("integerConstant", num));
-            } else {
-                int start = pos;
-                while (pos < src.length() && (Character.isLetterOrDigit(src.charAt(pos)) || src.charAt(pos) == '_')) pos++;
-                String word = src.substring(start, pos);
-                if (KEYWORDS.contains(word)) {
-                    tokens.add(new Token("keyword", word));
-                } else {
-                    tokens.add(new Token("identifier", word));
-                }
+        try {
+            Token token;
+            while ((token = nextToken()) != null) {
+                tokens.add(token);
             }
+        } finally {
+            close();
+        }
+        return tokens;
+    }
+
+    // Reads all tokens into a TokenBuffer, without a Token object per token.
+    public TokenBuffer tokenize() throws IOException {
+        TokenBuffer tokens = new TokenBuffer();
+        try {
+            tokenize(tokens, Integer.MAX_VALUE);
+        } finally {
+            close();
         }
         return tokens;
     }
 
+    // Appends up to maxTokens more tokens to a TokenBuffer. Returns the number added,
+    // which is less than maxTokens only at the end of the input.
+    public int tokenize(TokenBuffer tokens, int maxTokens) throws IOException {
+        int count = 0;
+        int kind;
+        while (count < maxTokens && (kind = scan()) >= 0) {
+            int value = tokenValue;
+            if (kind == TokenBuffer.IDENTIFIER) {
+                value = tokens.internIdentifier(tokenText);
+            } else if (kind == TokenBuffer.STRING_CONST) {
+                value = tokens.addString(tokenText);
+            }
+            tokens.add(kind, value, tokenOffset, tokenLine, tokenColumn);
+            count++;
+        }
+        return count;
+    }
+
+    // Returns the next token, or null at the end of the input.
+    public Token nextToken() throws IOException {
+        int kind = scan();
+        if (kind < 0) {
+            return null;
+        }
+        String value;
+        switch (kind) {
+            case TokenBuffer.IDENTIFIER:
+            case TokenBuffer.STRING_CONST:
+                value = tokenText;
+                break;
+            case TokenBuffer.INT_CONST:
+                value = new String(buffer, tokenStart, tokenLength);
+                break;
+            default:
+                value = TokenBuffer.text(kind, tokenValue);
+                break;
+        }
+        return new Token(TokenBuffer.KIND_NAMES[kind], value, tokenLine, tokenColumn);
+    }
+
+    // Reads the next token into the token fields and returns its TokenBuffer kind, or -1 at
+    // the end of the input.
+    private int scan() throws IOException {
+        if (reader == null) {
+            reader = Files.newBufferedReader(Path.of(inputPath), StandardCharsets.UTF_8);
+        }
+        skipWhitespaceAndComments();
+        if (!ensure(1)) {
+            return -1;
+        }
+        tokenOffset = offset;
+        tokenLine = line;
+        tokenColumn = column;
+        char c = buffer[pos];
+        int charClass = classOf(c);
+
+        if (charClass == SYMBOL) {
+            tokenValue = next();
+            return TokenBuffer.SYMBOL;
+        } else if (c == '"') {
+            next();
+            mark = pos;
+            while (true) {
+                if (!ensure(1) || buffer[pos] == '\n') {
+                    throw error("Unterminated string constant", tokenLine, tokenColumn);
+                }
+                if (buffer[pos] == '"') break;
+                next();
+            }
+            tokenText = new String(buffer, mark, pos - mark);
+            mark = -1;
+            next();
+            return TokenBuffer.STRING_CONST;
+        } else if (charClass == DIGIT) {
+            mark = pos;
+            tokenValue = 0;
+            while (ensure(1) && classOf(buffer[pos]) == DIGIT) {
+                tokenValue = tokenValue * 10 + Character.digit(next(), 10);
+                if (tokenValue > 32767) {
+                    throw error("Integer constant out of range", tokenLine, tokenColumn);
+                }
+            }
+            tokenStart = mark;
+            tokenLength = pos - mark;
+            mark = -1;
+            return TokenBuffer.INT_CONST;
+        } else if (charClass == LETTER) {
+            mark = pos;
+            while (ensure(1) && (classOf(buffer[pos]) & (LETTER | DIGIT)) != 0) next();
+            int start = mark;
+            mark = -1;
+            int keyword = keywordCode(buffer, start, pos - start);
+            if (keyword >= 0) {
+                tokenValue = keyword;
+                return TokenBuffer.KEYWORD;
+            }
+            tokenText = intern(buffer, start, pos - start);
+            return TokenBuffer.IDENTIFIER;
+        }
+        throw error("Unexpected character '" + c + "'", tokenLine, tokenColumn);
+    }
+
+    private static int classOf(char c) {
+        if (c < 128) {
+            return CHAR_CLASS[c];
+        }
+        if (Character.isDigit(c)) return DIGIT;
+        if (Character.isLetter(c)) return LETTER;
+        return Character.isWhitespace(c) ? SPACE : 0;
+    }
+
+    // The keyword code of chars[start..start+length), or -1 if it is not a keyword.
+    private static int keywordCode(char[] chars, int start, int length) {
+        if (length >= KEYWORDS_BY_LENGTH.length) {
+            return -1;
+        }
+        for (int code : KEYWORDS_BY_LENGTH[length]) {
+            String keyword = TokenBuffer.KEYWORDS[code];
+            int i = 0;
+            while (i < length && keyword.charAt(i) == chars[start + i]) i++;
+            if (i == length) {
+                return code;
+            }
+        }
+        return -1;
+    }
+
+    // Returns the one String of the name in chars[start..start+length).
+    private String intern(char[] chars, int start, int length) {
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + chars[start + i];
+        }
+        int mask = names.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            String name = names[slot];
+            if (name == null) {
+                name = new String(chars, start, length);
+                names[slot] = name;
+                if (++nameCount * 2 > names.length) {
+                    rehash();
+                }
+                return name;
+            }
+            if (name.hashCode() == hash && name.length() == length) {
+                int i = 0;
+                while (i < length && name.charAt(i) == chars[start + i]) i++;
+                if (i == length) {
+                    return name;
+                }
+            }
+        }
+    }
+
+    private void rehash() {
+        String[] old = names;
+        names = new String[old.length * 2];
+        int mask = names.length - 1;
+        for (String name : old) {
+            if (name != null) {
+                int slot = name.hashCode() & mask;
+                while (names[slot] != null) slot = (slot + 1) & mask;
+                names[slot] = name;
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        if (reader != null) {
+            reader.close();
+        }
+    }
+
     public void writeTokens(String outputPath) throws IOException {
         List<Token> tokens = getTokens();
         try (BufferedWriter w = Files.newBufferedWriter(Path.of(outputPath))) {
@@ -74,8 +287,83 @@ public class JackTokenizer {
         }
     }
 
-    private void skipWhitespace() {
-        while (pos < src.length() && Character.isWhitespace(src.charAt(pos))) pos++;
+    // Skips whitespace, "// ..." to the end of the line and "/* ... */" (and "/** ... */").
+    // A '/' that starts neither is left for nextToken as a symbol.
+    private void skipWhitespaceAndComments() throws IOException {
+        while (ensure(1)) {
+            char c = buffer[pos];
+            if (classOf(c) == SPACE) {
+                next();
+            } else if (c == '/' && ensure(2) && buffer[pos + 1] == '/') {
+                while (ensure(1) && buffer[pos] != '\n') next();
+            } else if (c == '/' && ensure(2) && buffer[pos + 1] == '*') {
+                int startLine = line;
+                int startColumn = column;
+                next();
+                next();
+                while (true) {
+                    if (!ensure(2)) {
+                        throw error("Unterminated comment", startLine, startColumn);
+                    }
+                    if (buffer[pos] == '*' && buffer[pos + 1] == '/') {
+                        next();
+                        next();
+                        break;
+                    }
+                    next();
+                }
+            } else {
+                return;
+            }
+        }
+    }
+
+    // Consumes one character, keeping track of the line and column.
+    private char next() {
+        char c = buffer[pos++];
+        offset++;
+        if (c == '\n') {
+            line++;
+            column = 1;
+        } else {
+            column++;
+        }
+        return c;
+    }
+
+    // Makes sure count characters are buffered at pos; false if the input ends first.
+    // The characters from mark on stay in the buffer, which grows if they fill it.
+    private boolean ensure(int count) throws IOException {
+        if (limit - pos >= count) {
+            return true;
+        }
+        if (endOfInput) {
+            return false;
+        }
+        int keep = mark >= 0 ? mark : pos;
+        System.arraycopy(buffer, keep, buffer, 0, limit - keep);
+        limit -= keep;
+        pos -= keep;
+        if (mark >= 0) {
+            mark = 0;
+        }
+        if (limit == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        while (limit - pos < count) {
+            int read = reader.read(buffer, limit, buffer.length - limit);
+            if (read < 0) {
+                endOfInput = true;
+                return false;
+            }
+            limit += read;
+        }
+        return true;
+    }
+
+    IOException error(String message, int atLine, int atColumn) {
+        String source = inputPath == null ? "input" : inputPath;
+        return new IOException(source + ":" + atLine + ":" + atColumn + ": " + message);
     }
 
     private static String escape(String s) {
@@ -87,9 +375,13 @@ public class JackTokenizer {
     public static class Token {
         public final String type;
         public final String text;
-        public Token(String type, String text) {
+        public final int line;
+        public final int column;
+        public Token(String type, String text, int line, int column) {
             this.type = type;
             this.text = text;
+            this.line = line;
+            this.column = column;
         }
     }
 }
@@ -51,6 +51,12 @@ public class SymbolTable {
         }
     }
 
+    // The symbol a name refers to, or null if it is not defined.
+    public SymbolInfo lookup(String name) {
+        SymbolInfo info = subroutineScope.get(name);
+        return info != null ? info : classScope.get(name);
+    }
+
     public String kindOf(String name) {
         if (subroutineScope.containsKey(name)) {
             return subroutineScope.get(name).getKind();
@@ -0,0 +1,175 @@
+import java.util.*;
+
+// The tokens of one class, stored as parallel int arrays instead of one object per token.
+// Token i has a kind (KEYWORD, SYMBOL, ...) and a value whose meaning depends on the kind:
+//   KEYWORD       the keyword code (CLASS, METHOD, ...)
+//   SYMBOL        the character itself
+//   IDENTIFIER    the id of the name; every occurrence of a name has the same id
+//   INT_CONST     the number
+//   STRING_CONST  the index of the string in the string table
+// plus the offset, line and column where it starts in the source.
+public class TokenBuffer implements TokenSource {
+    // Token kinds.
+    public static final int KEYWORD = 0;
+    public static final int SYMBOL = 1;
+    public static final int IDENTIFIER = 2;
+    public static final int INT_CONST = 3;
+    public static final int STRING_CONST = 4;
+
+    // Element names of the kinds in the XML output of projects 10 and 11.
+    public static final String[] KIND_NAMES = {
+        "keyword", "symbol", "identifier", "integerConstant", "stringConstant"
+    };
+
+    // Keyword codes, the index of the keyword in KEYWORDS.
+    public static final int CLASS = 0, CONSTRUCTOR = 1, FUNCTION = 2, METHOD = 3, FIELD = 4, STATIC = 5,
+            VAR = 6, INT = 7, CHAR = 8, BOOLEAN = 9, VOID = 10, TRUE = 11, FALSE = 12, NULL = 13, THIS = 14,
+            LET = 15, DO = 16, IF = 17, ELSE = 18, WHILE = 19, RETURN = 20;
+
+    public static final String[] KEYWORDS = {
+        "class", "constructor", "function", "method", "field", "static",
+        "var", "int", "char", "boolean", "void", "true", "false", "null", "this",
+        "let", "do", "if", "else", "while", "return"
+    };
+
+    // Text of the single-character symbols, so that text() does not allocate for them.
+    private static final String[] SYMBOL_TEXT = new String[128];
+
+    static {
+        for (char c : "{}()[].,;+-*/&|<>=~".toCharArray()) {
+            SYMBOL_TEXT[c] = String.valueOf(c);
+        }
+    }
+
+    private int size = 0;
+    private int[] kinds;
+    private int[] values;
+    private int[] offsets;
+    private int[] lines;
+    private int[] columns;
+
+    // Identifier names by id, and the id of each name.
+    private final List<String> names = new ArrayList<>();
+    private final Map<String, Integer> nameIds = new HashMap<>();
+    private final List<String> strings = new ArrayList<>();
+
+    public TokenBuffer() {
+        this(1024);
+    }
+
+    public TokenBuffer(int capacity) {
+        kinds = new int[capacity];
+        values = new int[capacity];
+        offsets = new int[capacity];
+        lines = new int[capacity];
+        columns = new int[capacity];
+    }
+
+    // Empties the buffer for the next tokens. Identifier ids stay the same.
+    public void clear() {
+        size = 0;
+        strings.clear();
+    }
+
+    // Appends a token. For identifiers and string constants, value comes from
+    // internIdentifier and addString.
+    public void add(int kind, int value, int offset, int line, int column) {
+        if (size == kinds.length) {
+            int capacity = size * 2;
+            kinds = Arrays.copyOf(kinds, capacity);
+            values = Arrays.copyOf(values, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+            columns = Arrays.copyOf(columns, capacity);
+        }
+        kinds[size] = kind;
+        values[size] = value;
+        offsets[size] = offset;
+        lines[size] = line;
+        columns[size] = column;
+        size++;
+    }
+
+    // Returns the id of an identifier name, giving it a new one the first time.
+    public int internIdentifier(String name) {
+        Integer id = nameIds.get(name);
+        if (id == null) {
+            id = names.size();
+            names.add(name);
+            nameIds.put(name, id);
+        }
+        return id;
+    }
+
+    // Stores a string constant and returns its index.
+    public int addString(String text) {
+        strings.add(text);
+        return strings.size() - 1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int kind(int i) {
+        return kinds[i];
+    }
+
+    @Override
+    public int value(int i) {
+        return values[i];
+    }
+
+    public int offset(int i) {
+        return offsets[i];
+    }
+
+    @Override
+    public int line(int i) {
+        return lines[i];
+    }
+
+    @Override
+    public int column(int i) {
+        return columns[i];
+    }
+
+    @Override
+    public boolean isKeyword(int i, int keyword) {
+        return kinds[i] == KEYWORD && values[i] == keyword;
+    }
+
+    @Override
+    public boolean isSymbol(int i, char symbol) {
+        return kinds[i] == SYMBOL && values[i] == symbol;
+    }
+
+    // Name of identifier id.
+    public String name(int id) {
+        return names.get(id);
+    }
+
+    // Number of distinct identifier names.
+    public int nameCount() {
+        return names.size();
+    }
+
+    @Override
+    public String text(int i) {
+        switch (kinds[i]) {
+            case IDENTIFIER: return names.get(values[i]);
+            case STRING_CONST: return strings.get(values[i]);
+            default: return text(kinds[i], values[i]);
+        }
+    }
+
+    // Text of a keyword, symbol or integer constant with the given value.
+    static String text(int kind, int value) {
+        switch (kind) {
+            case KEYWORD: return KEYWORDS[value];
+            case SYMBOL: return SYMBOL_TEXT[value];
+            default: return Integer.toString(value);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+// The tokens of one class as CompilationEngine reads them: token i by its position in the
+// class (see TokenBuffer for the kinds and values). TokenBuffer holds them all; TokenStream
+// reads them on demand and keeps only the most recent ones.
+public interface TokenSource {
+    int kind(int i);
+
+    int value(int i);
+
+    int line(int i);
+
+    int column(int i);
+
+    boolean isKeyword(int i, int keyword);
+
+    boolean isSymbol(int i, char symbol);
+
+    // The token as it appears in the source (a string constant without its quotes).
+    String text(int i);
+}
@@ -0,0 +1,199 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// Reads the tokens of a class on demand, as CompilationEngine asks for them, and keeps only
+// the last CAPACITY in a ring, so memory does not grow with the size of the source.
+// The tokens come from the JackTokenizer in small TokenBuffer chunks: read on the parser's
+// own thread, or with lexerThread set, on a separate "jack-lexer" thread that stays at most
+// QUEUE_SIZE chunks ahead.
+//
+// Errors of the tokenizer surface as UncheckedIOException from the accessors, since
+// TokenSource cannot throw IOException; CompilationEngine.compileClass turns them back.
+public class TokenStream implements TokenSource, Closeable {
+    private static final int CAPACITY = 16;
+    private static final int MASK = CAPACITY - 1;
+    // Tokens per chunk, on the parser's thread and on the lexer thread.
+    private static final int CHUNK_SIZE = 16;
+    private static final int THREAD_CHUNK_SIZE = 512;
+    private static final int QUEUE_SIZE = 4;
+
+    private final JackTokenizer tokenizer;
+    // The ring: token i is at i & MASK, for count - CAPACITY <= i < count.
+    private final int[] kinds = new int[CAPACITY];
+    private final int[] values = new int[CAPACITY];
+    private final int[] lines = new int[CAPACITY];
+    private final int[] columns = new int[CAPACITY];
+    private final String[] strings = new String[CAPACITY];
+    private int count = 0;
+
+    // Identifier names by id, and the id of each name. On the parser's thread the chunk is
+    // reused and its own ids are kept; chunks from the lexer thread each number their names
+    // from 0, so their identifiers are interned again here.
+    private final List<String> names = new ArrayList<>();
+    private final Map<String, Integer> nameIds = new HashMap<>();
+
+    // The chunk being copied into the ring, and the position in it.
+    private TokenBuffer chunk;
+    private int chunkPos = 0;
+    private final int chunkSize;
+    private boolean lastChunk = false;
+
+    // Lexer thread mode.
+    private final Thread lexer;
+    private final BlockingQueue<TokenBuffer> queue;
+    private volatile IOException lexerError;
+
+    public TokenStream(JackTokenizer tokenizer, boolean lexerThread) {
+        this.tokenizer = tokenizer;
+        if (lexerThread) {
+            chunkSize = THREAD_CHUNK_SIZE;
+            queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+            lexer = new Thread(this::lex, "jack-lexer");
+            lexer.setDaemon(true);
+            lexer.start();
+        } else {
+            chunkSize = CHUNK_SIZE;
+            chunk = new TokenBuffer(CHUNK_SIZE);
+            queue = null;
+            lexer = null;
+        }
+    }
+
+    // Body of the lexer thread. A chunk with fewer than THREAD_CHUNK_SIZE tokens is the last.
+    private void lex() {
+        try {
+            try {
+                int read;
+                do {
+                    TokenBuffer next = new TokenBuffer(THREAD_CHUNK_SIZE);
+                    read = tokenizer.tokenize(next, THREAD_CHUNK_SIZE);
+                    queue.put(next);
+                } while (read == THREAD_CHUNK_SIZE);
+            } catch (IOException e) {
+                lexerError = e;
+                queue.put(new TokenBuffer(1));
+            } finally {
+                tokenizer.close();
+            }
+        } catch (InterruptedException | IOException e) {
+            // Closed by the parser, or the reader failed to close after the last token.
+        }
+    }
+
+    // Returns the ring slot of token i, reading up to it first.
+    private int slot(int i) {
+        while (i >= count) {
+            readToken();
+        }
+        if (i < count - CAPACITY) {
+            throw new IllegalStateException("Token " + i + " is no longer buffered");
+        }
+        return i & MASK;
+    }
+
+    // Copies the next token of the chunk into the ring, taking the next chunk if needed.
+    private void readToken() {
+        try {
+            while (chunk == null || chunkPos == chunk.size()) {
+                if (lastChunk) {
+                    if (lexerError != null) {
+                        throw lexerError;
+                    }
+                    throw tokenizer.error("Unexpected end of input", lines[(count - 1) & MASK],
+                            columns[(count - 1) & MASK]);
+                }
+                if (lexer != null) {
+                    chunk = queue.take();
+                } else {
+                    chunk.clear();
+                    tokenizer.tokenize(chunk, CHUNK_SIZE);
+                }
+                lastChunk = chunk.size() < chunkSize;
+                chunkPos = 0;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new InterruptedIOException("Interrupted while reading tokens"));
+        }
+        int slot = count & MASK;
+        int kind = chunk.kind(chunkPos);
+        kinds[slot] = kind;
+        values[slot] = chunk.value(chunkPos);
+        lines[slot] = chunk.line(chunkPos);
+        columns[slot] = chunk.column(chunkPos);
+        strings[slot] = null;
+        if (kind == TokenBuffer.IDENTIFIER && lexer != null) {
+            values[slot] = internIdentifier(chunk.text(chunkPos));
+        } else if (kind == TokenBuffer.STRING_CONST) {
+            strings[slot] = chunk.text(chunkPos);
+        }
+        chunkPos++;
+        count++;
+    }
+
+    private int internIdentifier(String name) {
+        Integer id = nameIds.get(name);
+        if (id == null) {
+            id = names.size();
+            names.add(name);
+            nameIds.put(name, id);
+        }
+        return id;
+    }
+
+    @Override
+    public int kind(int i) {
+        return kinds[slot(i)];
+    }
+
+    @Override
+    public int value(int i) {
+        return values[slot(i)];
+    }
+
+    @Override
+    public int line(int i) {
+        return lines[slot(i)];
+    }
+
+    @Override
+    public int column(int i) {
+        return columns[slot(i)];
+    }
+
+    @Override
+    public boolean isKeyword(int i, int keyword) {
+        int slot = slot(i);
+        return kinds[slot] == TokenBuffer.KEYWORD && values[slot] == keyword;
+    }
+
+    @Override
+    public boolean isSymbol(int i, char symbol) {
+        int slot = slot(i);
+        return kinds[slot] == TokenBuffer.SYMBOL && values[slot] == symbol;
+    }
+
+    @Override
+    public String text(int i) {
+        int slot = slot(i);
+        switch (kinds[slot]) {
+            case TokenBuffer.IDENTIFIER: return lexer != null ? names.get(values[slot]) : chunk.name(values[slot]);
+            case TokenBuffer.STRING_CONST: return strings[slot];
+            default: return TokenBuffer.text(kinds[slot], values[slot]);
+        }
+    }
+
+    // Stops the lexer thread, if any, and closes the input.
+    @Override
+    public void close() throws IOException {
+        if (lexer != null) {
+            lexer.interrupt();
+        } else {
+            tokenizer.close();
+        }
+    }
+}
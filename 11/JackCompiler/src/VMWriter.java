@@ -1,51 +1,118 @@
-import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
 
+// Writes VM commands. Each command is copied into a char buffer in pieces, without building
+// a String for it, and the buffer goes to the output when it fills.
 public class VMWriter {
-    private final BufferedWriter writer;
+    private static final int FLUSH_SIZE = 4096;
+
+    private final Writer writer;
+    private char[] buffer = new char[FLUSH_SIZE + 256];
+    private int length = 0;
 
     public VMWriter(String outputFile) throws IOException {
-        writer = new BufferedWriter(new FileWriter(outputFile));
+        writer = new FileWriter(outputFile);
+    }
+
+    // Writes the VM code to any Writer (e.g. a StringWriter).
+    public VMWriter(Writer output) {
+        writer = output;
     }
 
     public void writePush(String segment, int index) throws IOException {
-        writer.write("push " + segment + " " + index + "\n");
+        line("push ", segment, index);
     }
 
     public void writePop(String segment, int index) throws IOException {
-        writer.write("pop " + segment + " " + index + "\n");
+        line("pop ", segment, index);
     }
 
     public void writeArithmetic(String command) throws IOException {
-        writer.write(command + "\n");
+        line("", command);
     }
 
     public void writeLabel(String label) throws IOException {
-        writer.write("label " + label + "\n");
+        line("label ", label);
     }
 
     public void writeGoto(String label) throws IOException {
-        writer.write("goto " + label + "\n");
+        line("goto ", label);
     }
 
     public void writeIf(String label) throws IOException {
-        writer.write("if-goto " + label + "\n");
+        line("if-goto ", label);
     }
 
     public void writeCall(String name, int nArgs) throws IOException {
-        writer.write("call " + name + " " + nArgs + "\n");
+        line("call ", name, nArgs);
     }
 
     public void writeFunction(String name, int nLocals) throws IOException {
-        writer.write("function " + name + " " + nLocals + "\n");
+        line("function ", name, nLocals);
     }
 
     public void writeReturn() throws IOException {
-        writer.write("return\n");
+        line("", "return");
     }
 
     public void close() throws IOException {
-        writer.close();
+        try {
+            writer.write(buffer, 0, length);
+        } finally {
+            writer.close();
+        }
+    }
+
+    // Writes "<command><name>\n".
+    private void line(String command, String name) throws IOException {
+        append(command);
+        append(name);
+        endLine();
+    }
+
+    // Writes "<command><name> <number>\n".
+    private void line(String command, String name, int number) throws IOException {
+        append(command);
+        append(name);
+        if (number < 0) {
+            append(" " + number);
+            endLine();
+            return;
+        }
+        int digits = 1;
+        for (int rest = number / 10; rest != 0; rest /= 10) {
+            digits++;
+        }
+        reserve(digits + 1);
+        buffer[length++] = ' ';
+        for (int i = length + digits - 1; i >= length; i--) {
+            buffer[i] = (char) ('0' + number % 10);
+            number /= 10;
+        }
+        length += digits;
+        endLine();
+    }
+
+    private void append(String text) {
+        reserve(text.length());
+        text.getChars(0, text.length(), buffer, length);
+        length += text.length();
+    }
+
+    private void endLine() throws IOException {
+        reserve(1);
+        buffer[length++] = '\n';
+        if (length >= FLUSH_SIZE) {
+            writer.write(buffer, 0, length);
+            length = 0;
+        }
+    }
+
+    private void reserve(int n) {
+        if (length + n > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + n));
+        }
     }
-}
\ No newline at end of file
+}
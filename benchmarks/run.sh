@@ -0,0 +1,14 @@
+#!/usr/bin/env sh
+
+# Compiles the VM translator (08), the Jack compiler (11) and the benchmarks into a
+# temporary directory and runs them from the repository root. Arguments are passed on,
+# e.g. benchmarks/run.sh --quick --json results.json
+
+unset CDPATH
+root="$(cd "$(dirname "$0")/.." && pwd)"
+out="${TMPDIR:-/tmp}/nand2tetris-benchmarks"
+rm -rf "$out"
+mkdir -p "$out"
+cd "$root" || exit 1
+javac -d "$out" 08/code/*.java 11/JackCompiler/src/*.java benchmarks/src/*.java || exit 1
+java -cp "$out" Benchmark "$@"
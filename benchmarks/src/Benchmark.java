@@ -0,0 +1,408 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// Throughput benchmarks for the Jack compiler (project 11) and the VM translator (project 8).
+// Each case is run repeatedly for a warmup period and then for a number of timed rounds;
+// the result is the time per operation and the input processed per second.
+//
+// Cases:
+//   tokenize.<set>    JackTokenizer.tokenize (into a TokenBuffer) over every .jack file of the set
+//   tokenize-list.<set>  JackTokenizer.getTokens (one Token object per token), for comparison
+//   compile.<set>     CompilationEngine.compileClass over the pre-tokenized classes;
+//                     compile-fold runs the ConstantFolding pass over the IR as well
+//   front-end.<set>   tokenize and compile each class from its file, tokenizing it first;
+//                     front-end-stream and front-end-thread pull the tokens from a
+//                     TokenStream instead, on the same thread or from a lexer thread
+//   translate.<set>   Parser + CodeWriter (08) over the .vm files of the set
+//   jack-to-asm.<set> all three stages, from .jack source to assembly
+// Sets: "os" is 12/*.jack (translate.os also includes 07/test and 08/test), "synthetic-xN"
+// is a generated class scaled N times, to show how throughput changes with input size.
+// "os-x128" is the OS sources repeated 128 times in one 4 MB file; it only has the
+// tokenize cases.
+//
+// Usage: benchmarks/run.sh [--quick] [--filter <text>] [--scales 1,4,16,64] [--json <file>]
+public class Benchmark {
+    // One benchmark case. run() does one operation and returns a value derived from its
+    // output, so the work cannot be optimized away.
+    private interface Workload {
+        long run() throws Exception;
+    }
+
+    private static final class Case {
+        final String name;
+        final long inputBytes;
+        final Workload workload;
+
+        Case(String name, long inputBytes, Workload workload) {
+            this.name = name;
+            this.inputBytes = inputBytes;
+            this.workload = workload;
+        }
+    }
+
+    private static final class Result {
+        final Case benchmark;
+        final long operations;
+        final double[] roundMillisPerOp;
+
+        Result(Case benchmark, long operations, double[] roundMillisPerOp) {
+            this.benchmark = benchmark;
+            this.operations = operations;
+            this.roundMillisPerOp = roundMillisPerOp;
+        }
+
+        double mean() {
+            double sum = 0;
+            for (double value : roundMillisPerOp) {
+                sum += value;
+            }
+            return sum / roundMillisPerOp.length;
+        }
+
+        double min() {
+            return Arrays.stream(roundMillisPerOp).min().orElse(0);
+        }
+
+        double max() {
+            return Arrays.stream(roundMillisPerOp).max().orElse(0);
+        }
+
+        double stddev() {
+            double mean = mean();
+            double sum = 0;
+            for (double value : roundMillisPerOp) {
+                sum += (value - mean) * (value - mean);
+            }
+            return Math.sqrt(sum / roundMillisPerOp.length);
+        }
+
+        double megabytesPerSecond() {
+            return benchmark.inputBytes / 1e6 / (mean() / 1000);
+        }
+    }
+
+    private static long warmupMillis = 3000;
+    private static long roundMillis = 1000;
+    private static int rounds = 5;
+    // Consumes the values returned by the workloads.
+    private static long sink = 0;
+    private static Path workDirectory;
+    // Copies of the OS sources in the os-xN tokenize set.
+    private static final int OS_COPIES = 128;
+
+    public static void main(String[] args) throws Exception {
+        String filter = "";
+        String jsonPath = null;
+        int[] scales = {1, 4, 16, 64};
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--quick")) {
+                warmupMillis = 500;
+                roundMillis = 300;
+                rounds = 3;
+            } else if (arg.equals("--filter") && i + 1 < args.length) {
+                filter = args[++i];
+            } else if (arg.equals("--json") && i + 1 < args.length) {
+                jsonPath = args[++i];
+            } else if (arg.equals("--scales") && i + 1 < args.length) {
+                scales = Arrays.stream(args[++i].split(",")).mapToInt(Integer::parseInt).toArray();
+            } else {
+                System.out.println("Usage: java Benchmark [--quick] [--filter <text>] [--scales 1,4,16,64]"
+                        + " [--json <file>]");
+                return;
+            }
+        }
+
+        workDirectory = Files.createTempDirectory("jack-benchmark");
+        List<Case> cases = new ArrayList<>();
+        List<File> osJack = listFiles(new File("12"), ".jack", false);
+        List<File> vmTests = new ArrayList<>(listFiles(new File("07/test"), ".vm", true));
+        vmTests.addAll(listFiles(new File("08/test"), ".vm", true));
+        addJackCases(cases, "os", osJack, vmTests);
+        // The OS sources repeated in one file to a few megabytes, for the tokenizer alone
+        // (the result is not one class).
+        File replicated = workDirectory.resolve("os-x" + OS_COPIES).resolve("OS.jack").toFile();
+        replicated.getParentFile().mkdirs();
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(replicated))) {
+            for (int copy = 0; copy < OS_COPIES; copy++) {
+                for (File file : osJack) {
+                    out.write(Files.readAllBytes(file.toPath()));
+                }
+            }
+        }
+        addTokenizeCases(cases, "os-x" + OS_COPIES, Collections.singletonList(replicated));
+        for (int scale : scales) {
+            File source = workDirectory.resolve("synthetic-x" + scale).resolve("Synthetic.jack").toFile();
+            source.getParentFile().mkdirs();
+            Files.write(source.toPath(), syntheticClass(scale).getBytes(StandardCharsets.US_ASCII));
+            addJackCases(cases, "synthetic-x" + scale, Collections.singletonList(source), Collections.emptyList());
+        }
+
+        // CompilationEngine prints a trace line per statement; keep it out of the report.
+        PrintStream console = System.out;
+        PrintStream silent = new PrintStream(OutputStream.nullOutputStream());
+        List<Result> results = new ArrayList<>();
+        console.println(String.format("%-32s %10s %12s %10s %10s %10s", "benchmark", "input KB", "ms/op",
+                "+-", "MB/s", "ops"));
+        for (Case benchmark : cases) {
+            if (!benchmark.name.contains(filter)) {
+                continue;
+            }
+            System.setOut(silent);
+            Result result;
+            try {
+                result = measure(benchmark);
+            } finally {
+                System.setOut(console);
+            }
+            results.add(result);
+            console.println(String.format("%-32s %10.1f %12.3f %10.3f %10.2f %10d", benchmark.name,
+                    benchmark.inputBytes / 1024.0, result.mean(), result.stddev(), result.megabytesPerSecond(),
+                    result.operations));
+        }
+        if (jsonPath != null) {
+            writeJson(results, jsonPath);
+            console.println("Results written to " + jsonPath);
+        }
+        if (sink == 42) {
+            console.println();
+        }
+    }
+
+    // Adds the pipeline cases for a set of Jack classes. extraVm are translated
+    // together with the compiler's output in the translate case.
+    private static void addJackCases(List<Case> cases, String set, List<File> jackFiles, List<File> extraVm)
+            throws IOException {
+        long jackBytes = totalSize(jackFiles);
+        List<TokenBuffer> tokens = new ArrayList<>();
+        for (File file : jackFiles) {
+            tokens.add(new JackTokenizer(file.getPath()).tokenize());
+        }
+        // The compiler's output, written once for the translate case.
+        Path vmDirectory = workDirectory.resolve(set + "-vm");
+        Files.createDirectories(vmDirectory);
+        List<File> vmFiles = new ArrayList<>(extraVm);
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            for (int i = 0; i < jackFiles.size(); i++) {
+                File vmFile = vmDirectory.resolve(jackFiles.get(i).getName().replace(".jack", ".vm")).toFile();
+                try (Writer writer = new FileWriter(vmFile)) {
+                    writer.write(compile(tokens.get(i)));
+                }
+                vmFiles.add(vmFile);
+            }
+        } finally {
+            System.setOut(console);
+        }
+        long vmBytes = totalSize(vmFiles);
+
+        addTokenizeCases(cases, set, jackFiles);
+        cases.add(new Case("compile." + set, jackBytes, () -> {
+            long length = 0;
+            for (TokenBuffer classTokens : tokens) {
+                length += compile(classTokens).length();
+            }
+            return length;
+        }));
+        cases.add(new Case("compile-fold." + set, jackBytes, () -> {
+            long length = 0;
+            for (TokenBuffer classTokens : tokens) {
+                length += compile(classTokens, List.of(new ConstantFolding())).length();
+            }
+            return length;
+        }));
+        cases.add(new Case("front-end." + set, jackBytes, () -> {
+            long length = 0;
+            for (File file : jackFiles) {
+                length += compile(new JackTokenizer(file.getPath()).tokenize()).length();
+            }
+            return length;
+        }));
+        for (boolean lexerThread : new boolean[] {false, true}) {
+            cases.add(new Case((lexerThread ? "front-end-thread." : "front-end-stream.") + set, jackBytes, () -> {
+                long length = 0;
+                for (File file : jackFiles) {
+                    try (TokenStream stream = new TokenStream(new JackTokenizer(file.getPath()), lexerThread)) {
+                        length += compile(stream).length();
+                    }
+                }
+                return length;
+            }));
+        }
+        cases.add(new Case("translate." + set, vmBytes, () -> {
+            long length = 0;
+            for (File file : vmFiles) {
+                length += translate(file);
+            }
+            return length;
+        }));
+        cases.add(new Case("jack-to-asm." + set, jackBytes, () -> {
+            long length = 0;
+            for (File file : jackFiles) {
+                File vmFile = vmDirectory.resolve("e2e-" + file.getName().replace(".jack", ".vm")).toFile();
+                try (Writer writer = new FileWriter(vmFile)) {
+                    writer.write(compile(new JackTokenizer(file.getPath()).tokenize()));
+                }
+                length += translate(vmFile);
+            }
+            return length;
+        }));
+    }
+
+    // Adds the tokenize and tokenize-list cases for a set of Jack files.
+    private static void addTokenizeCases(List<Case> cases, String set, List<File> jackFiles) {
+        long jackBytes = totalSize(jackFiles);
+        cases.add(new Case("tokenize." + set, jackBytes, () -> {
+            long count = 0;
+            for (File file : jackFiles) {
+                count += new JackTokenizer(file.getPath()).tokenize().size();
+            }
+            return count;
+        }));
+        cases.add(new Case("tokenize-list." + set, jackBytes, () -> {
+            long count = 0;
+            for (File file : jackFiles) {
+                count += new JackTokenizer(file.getPath()).getTokens().size();
+            }
+            return count;
+        }));
+    }
+
+    // Compiles one tokenized class and returns its VM code.
+    private static String compile(TokenSource tokens) throws IOException {
+        return compile(tokens, List.of());
+    }
+
+    // Compiles one tokenized class, running the given passes over the IR.
+    private static String compile(TokenSource tokens, List<IrPass> passes) throws IOException {
+        StringWriter output = new StringWriter();
+        VMWriter vmWriter = new VMWriter(output);
+        new CompilationEngine(tokens, vmWriter, passes).compileClass();
+        vmWriter.close();
+        return output.toString();
+    }
+
+    // Translates one .vm file into memory and returns the size of the assembly.
+    private static long translate(File file) {
+        CodeWriter writer = new CodeWriter();
+        writer.setFileName(file.getName().replace(".vm", ""));
+        VMTranslator.processFile(file, writer, null, null, false, null);
+        return writer.getAssemblyBytes().length;
+    }
+
+    // Runs the warmup, then the timed rounds.
+    private static Result measure(Case benchmark) throws Exception {
+        long end = System.nanoTime() + warmupMillis * 1_000_000;
+        while (System.nanoTime() < end) {
+            sink += benchmark.workload.run();
+        }
+        double[] millisPerOp = new double[rounds];
+        long operations = 0;
+        for (int round = 0; round < rounds; round++) {
+            long start = System.nanoTime();
+            long count = 0;
+            long now;
+            do {
+                sink += benchmark.workload.run();
+                count++;
+                now = System.nanoTime();
+            } while (now - start < roundMillis * 1_000_000);
+            millisPerOp[round] = (now - start) / 1e6 / count;
+            operations += count;
+        }
+        return new Result(benchmark, operations, millisPerOp);
+    }
+
+    // A Jack class with 12 * scale methods that use the common statement and expression forms.
+    static String syntheticClass(int scale) {
+        StringBuilder text = new StringBuilder();
+        text.append("/** Generated benchmark input. */\n");
+        text.append("class Synthetic {\n");
+        text.append("    field int x, y;\n");
+        text.append("    field Array table;\n");
+        text.append("    static int count;\n\n");
+        text.append("    constructor Synthetic new(int size) {\n");
+        text.append("        let x = 0;\n        let y = size;\n        let table = Array.new(size);\n");
+        text.append("        return this;\n    }\n\n");
+        for (int i = 0; i < 12 * scale; i++) {
+            text.append("    /* Method ").append(i).append(". */\n");
+            text.append("    method int step").append(i).append("(int a, int b) {\n");
+            text.append("        var int i, sum;\n");
+            text.append("        var boolean done;\n");
+            text.append("        let i = 0;\n");
+            text.append("        let sum = ").append(i).append(";\n");
+            text.append("        let done = false;\n");
+            text.append("        while ((i < a) & (~done)) {\n");
+            text.append("            // Mix the arguments into the sum.\n");
+            text.append("            let sum = sum + (i * b) - (a / 2);\n");
+            text.append("            if (sum > 1000) {\n");
+            text.append("                let sum = sum - 1000;\n");
+            text.append("                let done = true;\n");
+            text.append("            } else {\n");
+            text.append("                let table[i] = table[i] + sum;\n");
+            text.append("            }\n");
+            text.append("            let i = i + 1;\n");
+            text.append("        }\n");
+            text.append("        do Output.printString(\"step ").append(i).append("\");\n");
+            text.append("        do Output.printInt(Math.max(sum, -x));\n");
+            text.append("        let count = count + 1;\n");
+            text.append("        return sum + y;\n");
+            text.append("    }\n\n");
+        }
+        text.append("}\n");
+        return text.toString();
+    }
+
+    private static List<File> listFiles(File directory, String extension, boolean recursive) {
+        List<File> files = new ArrayList<>();
+        File[] entries = directory.listFiles();
+        if (entries == null) {
+            return files;
+        }
+        Arrays.sort(entries, Comparator.comparing(File::getName));
+        for (File entry : entries) {
+            if (entry.isDirectory() && recursive) {
+                files.addAll(listFiles(entry, extension, true));
+            } else if (entry.getName().endsWith(extension)) {
+                files.add(entry);
+            }
+        }
+        return files;
+    }
+
+    private static long totalSize(List<File> files) {
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+        return size;
+    }
+
+    // Writes the results as one JSON object, for comparison between versions.
+    private static void writeJson(List<Result> results, String path) throws IOException {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"timestamp\": \"").append(java.time.Instant.now()).append("\",\n");
+        json.append("  \"java\": \"").append(System.getProperty("java.version")).append("\",\n");
+        json.append("  \"processors\": ").append(Runtime.getRuntime().availableProcessors()).append(",\n");
+        json.append("  \"warmupMillis\": ").append(warmupMillis).append(",\n");
+        json.append("  \"roundMillis\": ").append(roundMillis).append(",\n");
+        json.append("  \"results\": [\n");
+        for (int i = 0; i < results.size(); i++) {
+            Result result = results.get(i);
+            json.append("    {\"name\": \"").append(result.benchmark.name).append("\"");
+            json.append(", \"inputBytes\": ").append(result.benchmark.inputBytes);
+            json.append(", \"operations\": ").append(result.operations);
+            json.append(String.format(Locale.ROOT, ", \"msPerOp\": {\"mean\": %.4f, \"min\": %.4f, \"max\": %.4f,"
+                    + " \"stddev\": %.4f}", result.mean(), result.min(), result.max(), result.stddev()));
+            json.append(String.format(Locale.ROOT, ", \"mbPerSecond\": %.3f}", result.megabytesPerSecond()));
+            json.append(i + 1 < results.size() ? ",\n" : "\n");
+        }
+        json.append("  ]\n");
+        json.append("}\n");
+        Files.write(Paths.get(path), json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+}